@@ -18,9 +18,21 @@ package com.foxelbox.foxellog;
 
 import com.foxelbox.dependencies.config.Configuration;
 import com.foxelbox.foxellog.commands.FLCommand;
+import com.foxelbox.foxellog.ingest.PlayerIndex;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+import com.foxelbox.foxellog.query.QueryExecutor;
 import com.foxelbox.foxellog.query.QueryInterface;
+import com.foxelbox.foxellog.query.WorldApplier;
+import com.foxelbox.foxellog.storage.ArchiveStore;
+import com.foxelbox.foxellog.storage.Archiver;
+import com.foxelbox.foxellog.storage.IndexManager;
+import com.foxelbox.foxellog.storage.PartitionRouter;
+import com.foxelbox.foxellog.storage.SchemaMigrator;
+import com.foxelbox.foxellog.storage.StateTransitions;
+import com.foxelbox.foxellog.storage.StorageSchema;
 import com.mongodb.DB;
 import com.mongodb.MongoClient;
+import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.IOException;
@@ -36,6 +48,17 @@ public class FoxelLog extends JavaPlugin {
     private DB mongoDB;
 
     private QueryInterface queryInterface;
+    private QueryExecutor queryExecutor;
+    private WorldApplier worldApplier;
+
+    private WorldIndex worldIndex;
+    private PlayerIndex playerIndex;
+    private SchemaMigrator schemaMigrator;
+    private IndexManager indexManager;
+    private PartitionRouter partitionRouter;
+    private StateTransitions stateTransitions;
+    private ArchiveStore archiveStore;
+    private Archiver archiver;
 
     public DB getMongoDB() {
         return mongoDB;
@@ -45,6 +68,50 @@ public class FoxelLog extends JavaPlugin {
         return queryInterface;
     }
 
+    public QueryExecutor getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    public WorldApplier getWorldApplier() {
+        return worldApplier;
+    }
+
+    public WorldIndex getWorldIndex() {
+        return worldIndex;
+    }
+
+    public PlayerIndex getPlayerIndex() {
+        return playerIndex;
+    }
+
+    public SchemaMigrator getSchemaMigrator() {
+        return schemaMigrator;
+    }
+
+    public IndexManager getIndexManager() {
+        return indexManager;
+    }
+
+    public PartitionRouter getPartitionRouter() {
+        return partitionRouter;
+    }
+
+    public StateTransitions getStateTransitions() {
+        return stateTransitions;
+    }
+
+    public ArchiveStore getArchiveStore() {
+        return archiveStore;
+    }
+
+    public Archiver getArchiver() {
+        return archiver;
+    }
+
+    public LoggerListener getLoggerListener() {
+        return listener;
+    }
+
 	@Override
 	public void onEnable() {
 		instance = this;
@@ -63,7 +130,29 @@ public class FoxelLog extends JavaPlugin {
             throw new RuntimeException(e);
         }
 
+        worldIndex = new WorldIndex(mongoDB.getCollection(StorageSchema.COLLECTION_WORLDS));
+        for (World world : getServer().getWorlds())
+            worldIndex.getIndex(world);
+        playerIndex = new PlayerIndex(mongoDB.getCollection(StorageSchema.COLLECTION_PLAYERS));
+
+        indexManager = new IndexManager(this);
+        partitionRouter = new PartitionRouter(this);
+        indexManager.start(partitionRouter.getAllCollections());
+        partitionRouter.startRetention();
+        stateTransitions = new StateTransitions(this);
+
+        schemaMigrator = new SchemaMigrator(this);
+        if (schemaMigrator.isPending())
+            getLogger().warning("Found actions stored in the old layout, queries are refused until /fl migrate went through");
+
+        archiveStore = new ArchiveStore(this);
+        archiver = new Archiver(this, archiveStore);
+        archiver.schedule();
+
         queryInterface = new QueryInterface(this);
+        queryExecutor = new QueryExecutor(this);
+        worldApplier = new WorldApplier(this);
+        stateTransitions.startReconcile();
 
         listener = new LoggerListener(this);
 		getServer().getPluginManager().registerEvents(listener, this);
@@ -77,7 +166,11 @@ public class FoxelLog extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        worldApplier.stop();
+        queryExecutor.shutdown();
         listener.disable();
+        schemaMigrator.stop();
+        archiver.stop();
         mongoClient.close();
         queryInterface = null;
     }
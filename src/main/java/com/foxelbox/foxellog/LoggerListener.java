@@ -16,13 +16,14 @@
  */
 package com.foxelbox.foxellog;
 
-import com.foxelbox.foxellog.actions.BaseAction;
-import com.foxelbox.foxellog.actions.PlayerBlockAction;
-import com.foxelbox.foxellog.actions.PlayerInventoryAction;
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.ingest.ActionPipeline;
 import com.foxelbox.foxellog.util.BukkitUtils;
-import com.mongodb.*;
+import com.foxelbox.foxellog.util.InventoryHistogram;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.DoubleChest;
 import org.bukkit.entity.HumanEntity;
@@ -33,98 +34,91 @@ import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
 import org.bukkit.event.player.PlayerBucketFillEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.InventoryHolder;
-import org.bukkit.inventory.ItemStack;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.UUID;
 
 public class LoggerListener implements Listener {
     private final FoxelLog plugin;
+    private final ActionPipeline pipeline;
     public LoggerListener(FoxelLog plugin) {
         this.plugin = plugin;
+        this.pipeline = new ActionPipeline(plugin);
     }
 
-    private Thread queueProcessingThread;
-    private volatile boolean enabled = false;
+    public ActionPipeline getPipeline() {
+        return pipeline;
+    }
 
     void enable() {
-        enabled = true;
-        queueProcessingThread = new Thread() {
-            @Override
-            public void run() {
-                while (enabled) {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) { }
-
-                    while (!queuedActions.isEmpty()) {
-                        final DB db = plugin.getMongoDB();
-                        final DBCollection collection = db.getCollection(BaseAction.getCollection());
-                        final BulkWriteOperation bulkWriteOperation = collection.initializeUnorderedBulkOperation();
-
-                        DBObject action;
-                        int requestCount = 0;
-                        while ((++requestCount < 100) && ((action = queuedActions.poll()) != null))
-                            bulkWriteOperation.insert(action);
-
-                        try {
-                            bulkWriteOperation.execute();
-                        } catch (BulkWriteException e) {
-                            for(BulkWriteError error : e.getWriteErrors())
-                                queuedActions.add(error.getDetails());
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException ex) { }
-                            break;
-                        }
-                    }
-                }
-            }
-        };
-        queueProcessingThread.start();
+        try {
+            pipeline.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
     }
 
     void disable() {
-        enabled = false;
-        try {
-            if(queueProcessingThread != null)
-                queueProcessingThread.join();
-        } catch (InterruptedException e) { }
+        pipeline.stop();
     }
 
-    private final Queue<DBObject> queuedActions = new ConcurrentLinkedQueue<>();
-    private void queueAction(BaseAction action) {
-        if(!enabled)
-            return;
-        queuedActions.add(action.toDBObject());
+    private final ThreadLocal<ActionRecord> captureRecord = new ThreadLocal<ActionRecord>() {
+        @Override
+        protected ActionRecord initialValue() {
+            return new ActionRecord();
+        }
+    };
+
+    private ActionRecord captureAction(int type, HumanEntity user, World world, int x, int y, int z) {
+        final ActionRecord record = captureRecord.get();
+        record.clear();
+        record.type = type;
+        record.time = System.currentTimeMillis();
+        record.world = plugin.getWorldIndex().getIndex(world);
+        record.x = x;
+        record.y = y;
+        record.z = z;
+        final UUID uuid = user.getUniqueId();
+        record.userMost = uuid.getMostSignificantBits();
+        record.userLeast = uuid.getLeastSignificantBits();
+        record.userName = user.getName();
+        return record;
     }
 
-	private void addBlockChange(HumanEntity user, Location location, Material materialBefore, Material materialAfter) {
-        queueAction(new PlayerBlockAction(user, location, materialBefore, materialAfter));
+	private void addBlockChange(HumanEntity user, Block block, Material materialBefore, Material materialAfter) {
+        final ActionRecord record = captureAction(ActionRecord.TYPE_BLOCK, user, block.getWorld(), block.getX(), block.getY(), block.getZ());
+        record.materialFrom = materialBefore.getId();
+        record.materialTo = materialAfter.getId();
+        pipeline.offer(record);
 	}
 
 	//BLOCK PLAYER EVENTS
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onBlockPlace(BlockPlaceEvent event) {
-		addBlockChange(event.getPlayer(), event.getBlockPlaced().getLocation(), event.getBlockReplacedState().getType(), event.getBlockPlaced().getType());
+		addBlockChange(event.getPlayer(), event.getBlockPlaced(), event.getBlockReplacedState().getType(), event.getBlockPlaced().getType());
 	}
 
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onBlockBreak(BlockBreakEvent event) {
-		addBlockChange(event.getPlayer(), event.getBlock().getLocation(), event.getBlock().getType(), Material.AIR);
+		addBlockChange(event.getPlayer(), event.getBlock(), event.getBlock().getType(), Material.AIR);
 	}
 
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onBucketFill(PlayerBucketFillEvent event) {
-		addBlockChange(event.getPlayer(), event.getBlockClicked().getLocation(), event.getBlockClicked().getType(), Material.AIR);
+		addBlockChange(event.getPlayer(), event.getBlockClicked(), event.getBlockClicked().getType(), Material.AIR);
 	}
 
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
-	public void onBucketEmpty(PlayerBucketFillEvent event) {
+	public void onBucketEmpty(PlayerBucketEmptyEvent event) {
 		Material material = event.getBucket();
 		switch(event.getBucket()) {
 			case WATER_BUCKET:
@@ -134,10 +128,34 @@ public class LoggerListener implements Listener {
 				material = Material.LAVA;
 				break;
 		}
-		addBlockChange(event.getPlayer(), event.getBlockClicked().getRelative(event.getBlockFace()).getLocation(), Material.AIR, material);
+		//Not placed yet, so the block still shows what the liquid replaces
+		final Block block = event.getBlockClicked().getRelative(event.getBlockFace());
+		addBlockChange(event.getPlayer(), block, block.getType(), material);
+	}
+
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerQuitContainers(PlayerQuitEvent event) {
+		final InventoryHistogram contents = containers.remove(event.getPlayer().getUniqueId());
+		if (contents != null) {
+			contents.clear();
+			freeHistograms.add(contents);
+		}
 	}
 
 	//BASE PLAYER EVENTS
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoinIndex(PlayerJoinEvent event) {
+		//Have the player's number ready (and its name up to date) before its first action is written
+		final UUID uuid = event.getPlayer().getUniqueId();
+		final String name = event.getPlayer().getName();
+		plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+			@Override
+			public void run() {
+				plugin.getPlayerIndex().getIndex(uuid, name);
+			}
+		});
+	}
+
 	/*@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onPlayerJoin(PlayerJoinEvent event) {
 		queueAction(new PlayerAction(event.getPlayer(), "join"));
@@ -159,23 +177,35 @@ public class LoggerListener implements Listener {
 	}*/
 
 	//INVENTORY PLAYER EVENTS
-	private final Map<HumanEntity, ItemStack[]> containers = new HashMap<>();
+	/** Contents of the container each player has open, keyed by UUID so no entity is kept after a disconnect */
+	private final Map<UUID, InventoryHistogram> containers = new HashMap<>();
+	private final ArrayDeque<InventoryHistogram> freeHistograms = new ArrayDeque<>();
 
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onInventoryClose(InventoryCloseEvent event) {
 		final InventoryHolder holder = event.getInventory().getHolder();
 		if (holder instanceof BlockState || holder instanceof DoubleChest) {
 			final HumanEntity player = event.getPlayer();
-			final ItemStack[] before = containers.get(player);
-			if (before != null) {
-				final ItemStack[] after = BukkitUtils.compressInventory(event.getInventory().getContents());
-				final ItemStack[] diff = BukkitUtils.compareInventories(before, after);
-				final Location loc = BukkitUtils.getInventoryHolderLocation(holder);
-				final Material block = loc.getBlock().getType();
-				for (final ItemStack item : diff) {
-					queueAction(new PlayerInventoryAction(player, loc, block, item.getType(), item.getAmount()));
+			final InventoryHistogram contents = containers.remove(player.getUniqueId());
+			if (contents != null) {
+				//What is left is before - after
+				contents.addAll(event.getInventory().getContents(), -1);
+				ActionRecord record = null;
+				for (int i = 0; i < contents.size(); i++) {
+					final int amount = -contents.getAmountAt(i);
+					if (amount == 0)
+						continue;
+					if (record == null) {
+						final Location loc = BukkitUtils.getInventoryHolderLocation(holder);
+						record = captureAction(ActionRecord.TYPE_CONTAINER, player, loc.getWorld(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+						record.materialFrom = loc.getBlock().getType().getId();
+					}
+					record.addItem(contents.getKeyAt(i), amount);
 				}
-				containers.remove(player);
+				if (record != null)
+					pipeline.offer(record);
+				contents.clear();
+				freeHistograms.add(contents);
 			}
 		}
 	}
@@ -186,7 +216,13 @@ public class LoggerListener implements Listener {
 			final InventoryHolder holder = event.getInventory().getHolder();
 			if (holder instanceof BlockState || holder instanceof DoubleChest) {
 				if (!BukkitUtils.getInventoryHolderType(holder).equals(Material.WORKBENCH)) {
-					containers.put(event.getPlayer(), BukkitUtils.compressInventory(event.getInventory().getContents()));
+					InventoryHistogram contents = containers.get(event.getPlayer().getUniqueId());
+					if (contents == null) {
+						contents = freeHistograms.isEmpty() ? new InventoryHistogram() : freeHistograms.poll();
+						containers.put(event.getPlayer().getUniqueId(), contents);
+					}
+					contents.clear();
+					contents.addAll(event.getInventory().getContents(), 1);
 				}
 			}
 		}
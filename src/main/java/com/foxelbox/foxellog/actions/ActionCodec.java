@@ -0,0 +1,293 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.foxelbox.foxellog.ingest.PlayerIndex;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.bukkit.Material;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes and reads the stored form of an action type directly as BSON, without going through BasicDBObject.
+ * Every action type provides one of these as its CODEC.
+ */
+public abstract class ActionCodec {
+    private final int recordType;
+    private final String typeName;
+
+    protected ActionCodec(int recordType, String typeName) {
+        this.recordType = recordType;
+        this.typeName = typeName;
+    }
+
+    public int getRecordType() {
+        return recordType;
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Writes the fields specific to this action type
+     */
+    protected abstract void encodeFields(ActionRecord record, BsonWriter writer);
+
+    /**
+     * Reads a field specific to this action type
+     * @return false if the field is not one of this type's
+     */
+    protected abstract boolean decodeField(String name, byte bsonType, BsonReader reader, ActionRecord record);
+
+    public abstract BaseAction createAction(ActionRecord record);
+
+    /**
+     * Builds the action from a document in the layout used before {@link StorageSchema}
+     * @return null if the type did not exist back then
+     */
+    public BaseAction createLegacyAction(DBObject fields) {
+        return null;
+    }
+
+    /**
+     * Writes the action in the compact layout, see {@link StorageSchema}.
+     * The record's player number has to be resolved already.
+     */
+    public void encode(ActionRecord record, ObjectId id, BsonWriter writer) {
+        writer.startDocument();
+        writer.writeObjectId(StorageSchema.ID, id);
+        writer.writeInt32(StorageSchema.FIELD_VERSION, StorageSchema.VERSION);
+        writer.writeDate(StorageSchema.FIELD_DATE, record.time);
+        writer.writeInt32(StorageSchema.FIELD_TYPE, recordType);
+        writer.writeInt32(StorageSchema.FIELD_WORLD, record.world);
+        writer.writeInt32(StorageSchema.FIELD_X, record.x);
+        writer.writeInt32(StorageSchema.FIELD_Y, record.y);
+        writer.writeInt32(StorageSchema.FIELD_Z, record.z);
+        writer.writeInt64(StorageSchema.FIELD_BLOCK_KEY, StorageSchema.packBlockKey(record.x, record.y, record.z));
+        writer.writeInt64(StorageSchema.FIELD_CHUNK_KEY, StorageSchema.packChunkKey(record.x, record.z));
+        writer.writeInt32(StorageSchema.FIELD_USER, record.player);
+        writer.writeInt32(StorageSchema.FIELD_STATE, record.state);
+
+        encodeFields(record, writer);
+        writer.endDocument();
+    }
+
+    /**
+     * Reads a material stored either by id or, in old documents, by name with null for air
+     */
+    static int decodeMaterial(byte bsonType, BsonReader reader) {
+        switch (bsonType) {
+            case BsonReader.NULL:
+                return Material.AIR.getId();
+            case BsonReader.STRING:
+                final Material material = Material.getMaterial(reader.readString());
+                return material == null ? Material.AIR.getId() : material.getId();
+            default:
+                return reader.readNumber(bsonType);
+        }
+    }
+
+    private static final ActionCodec[] codecs = {
+            PlayerBlockAction.CODEC,
+            PlayerInventoryAction.CODEC,
+            PlayerChatAction.CODEC,
+            PlayerContainerAction.CODEC
+    };
+    private static final ActionCodec[] codecsByRecordType;
+    private static final Map<String, ActionCodec> codecsByTypeName = new HashMap<>();
+    static {
+        int maxRecordType = 0;
+        for (ActionCodec codec : codecs)
+            maxRecordType = Math.max(maxRecordType, codec.recordType);
+        codecsByRecordType = new ActionCodec[maxRecordType + 1];
+        for (ActionCodec codec : codecs) {
+            codecsByRecordType[codec.recordType] = codec;
+            codecsByTypeName.put(codec.typeName, codec);
+        }
+    }
+
+    public static ActionCodec forRecordType(int recordType) {
+        final ActionCodec codec = findRecordType(recordType);
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown action record type " + recordType);
+        return codec;
+    }
+
+    private static ActionCodec findRecordType(int recordType) {
+        return (recordType >= 0 && recordType < codecsByRecordType.length) ? codecsByRecordType[recordType] : null;
+    }
+
+    public static ActionCodec forTypeName(String typeName) {
+        return codecsByTypeName.get(typeName);
+    }
+
+    /**
+     * Streams over a stored action in either layout and fills the record from it.
+     * Worlds of old layout actions that are not in the dictionary come back as -1.
+     * @return the codec of the action's type, or null if the type is unknown
+     */
+    public static ActionCodec decode(byte[] data, int offset, BsonReader reader, ActionRecord record, WorldIndex worldIndex, PlayerIndex playerIndex) {
+        return decode(data, offset, reader, record, worldIndex, playerIndex, false);
+    }
+
+    /**
+     * @param addWorlds whether worlds of old layout actions should be added to the dictionary, for callers that
+     *                  store the action again
+     */
+    public static ActionCodec decode(byte[] data, int offset, BsonReader reader, ActionRecord record, WorldIndex worldIndex, PlayerIndex playerIndex, boolean addWorlds) {
+        record.clear();
+        reader.reset(data, offset);
+        reader.readStartDocument();
+
+        ActionCodec codec = null;
+        byte bsonType;
+        while ((bsonType = reader.readType()) != BsonReader.END) {
+            final String name = reader.readName();
+            switch (name) {
+                case StorageSchema.ID:
+                    if (bsonType == BsonReader.OBJECT_ID)
+                        record.id = reader.readObjectId();
+                    else
+                        reader.skipValue(bsonType);
+                    break;
+                case StorageSchema.FIELD_DATE:
+                case "date":
+                    record.time = reader.readDate();
+                    break;
+                case StorageSchema.FIELD_TYPE:
+                    codec = findRecordType(reader.readNumber(bsonType));
+                    if (codec != null)
+                        record.type = codec.recordType;
+                    break;
+                case StorageSchema.FIELD_WORLD:
+                    record.world = reader.readNumber(bsonType);
+                    break;
+                case StorageSchema.FIELD_X:
+                    record.x = reader.readNumber(bsonType);
+                    break;
+                case StorageSchema.FIELD_Y:
+                    record.y = reader.readNumber(bsonType);
+                    break;
+                case StorageSchema.FIELD_Z:
+                    record.z = reader.readNumber(bsonType);
+                    break;
+                case "type":
+                    codec = forTypeName(reader.readString());
+                    if (codec != null)
+                        record.type = codec.recordType;
+                    break;
+                case "location":
+                    reader.readStartDocument();
+                    while ((bsonType = reader.readType()) != BsonReader.END) {
+                        switch (reader.readName()) {
+                            case "x":
+                                record.x = reader.readNumber(bsonType);
+                                break;
+                            case "y":
+                                record.y = reader.readNumber(bsonType);
+                                break;
+                            case "z":
+                                record.z = reader.readNumber(bsonType);
+                                break;
+                            case "world":
+                                final String world = reader.readString();
+                                record.world = addWorlds ? worldIndex.getIndex(world) : worldIndex.lookup(world);
+                                break;
+                            default:
+                                reader.skipValue(bsonType);
+                                break;
+                        }
+                    }
+                    break;
+                case StorageSchema.FIELD_USER:
+                case "user_uuid":
+                    if (bsonType == BsonReader.INT32 || bsonType == BsonReader.INT64) {
+                        record.player = reader.readNumber(bsonType);
+                        final PlayerIndex.Entry player = playerIndex.getEntry(record.player);
+                        if (player != null) {
+                            record.userMost = player.uuid.getMostSignificantBits();
+                            record.userLeast = player.uuid.getLeastSignificantBits();
+                            record.userName = player.getName();
+                        }
+                    } else if (bsonType == BsonReader.BINARY && reader.readBinaryLength() == 16 && reader.readBinarySubtype() == BsonReader.SUBTYPE_UUID_LEGACY) {
+                        record.userMost = reader.readRawInt64();
+                        record.userLeast = reader.readRawInt64();
+                    } else {
+                        throw new IllegalStateException("Unsupported user UUID encoding");
+                    }
+                    break;
+                case StorageSchema.FIELD_STATE:
+                case "state":
+                    record.state = reader.readNumber(bsonType);
+                    break;
+                default:
+                    if (codec != null) {
+                        if (!codec.decodeField(name, bsonType, reader, record))
+                            reader.skipValue(bsonType);
+                        break;
+                    }
+                    //Type not seen yet, only happens for old documents and their field names do not overlap between types
+                    boolean decoded = false;
+                    for (ActionCodec candidate : codecs) {
+                        if (candidate.decodeField(name, bsonType, reader, record)) {
+                            decoded = true;
+                            break;
+                        }
+                    }
+                    if (!decoded)
+                        reader.skipValue(bsonType);
+                    break;
+            }
+        }
+        return codec;
+    }
+
+    private static class Decoder {
+        private final BsonReader reader = new BsonReader();
+        private final ActionRecord record = new ActionRecord();
+    }
+
+    private static final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+
+    /**
+     * Builds the action stored in a raw document
+     */
+    public static BaseAction decodeAction(RawDBObject document, WorldIndex worldIndex, PlayerIndex playerIndex) {
+        return decodeAction(document.getData(), document.getDataOffset(), worldIndex, playerIndex);
+    }
+
+    public static BaseAction decodeAction(byte[] data, int offset, WorldIndex worldIndex, PlayerIndex playerIndex) {
+        final Decoder decoder = decoders.get();
+        final ActionCodec codec = decode(data, offset, decoder.reader, decoder.record, worldIndex, playerIndex);
+        if (codec == null)
+            throw new IllegalArgumentException("Document has no known action type");
+        return codec.createAction(decoder.record);
+    }
+}
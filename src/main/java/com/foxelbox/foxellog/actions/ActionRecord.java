@@ -0,0 +1,184 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import com.foxelbox.foxellog.ingest.IngestQueue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact, reusable capture of an action as it happens.
+ * Event handlers fill one of these on the main thread, the document is only encoded later on the writer thread.
+ */
+public class ActionRecord implements IngestQueue.Slot<ActionRecord> {
+    public static final int TYPE_BLOCK = 1;
+    public static final int TYPE_INVENTORY = 2;
+    public static final int TYPE_CHAT = 3;
+    public static final int TYPE_CONTAINER = 4;
+
+    public int type;
+    public long time;
+    public int world;
+    public int x, y, z;
+    /** Block before for block changes, container for inventory changes */
+    public int materialFrom;
+    /** Block after for block changes, item for inventory changes */
+    public int materialTo;
+    public int amount;
+    /** Items and amounts of a container transaction, only the first itemCount entries are used */
+    public int[] items = new int[0];
+    public int[] amounts = new int[0];
+    public int itemCount;
+    public long userMost, userLeast;
+    /** Name of the user when captured, or the last known one for actions read back */
+    public String userName;
+    /** Number of the user in the player dictionary, resolved off the main thread, -1 until then */
+    public int player;
+    public String message;
+    /** Only set for actions read back from the database */
+    public Object id;
+    public int state;
+
+    public void clear() {
+        type = 0;
+        time = 0;
+        world = 0;
+        x = y = z = 0;
+        materialFrom = 0;
+        materialTo = 0;
+        amount = 0;
+        itemCount = 0;
+        userMost = userLeast = 0;
+        userName = null;
+        player = -1;
+        message = null;
+        id = null;
+        state = ActionState.IN_PLACE.getDbVal();
+    }
+
+    public void ensureItemCapacity(int capacity) {
+        if (items.length < capacity) {
+            final int newCapacity = Math.max(capacity, items.length * 2);
+            items = Arrays.copyOf(items, newCapacity);
+            amounts = Arrays.copyOf(amounts, newCapacity);
+        }
+    }
+
+    /**
+     * @return the lines a lookup shows for this action, one per item for a container transaction
+     */
+    public int getLineCount() {
+        return (type == TYPE_CONTAINER) ? itemCount : 1;
+    }
+
+    public void addItem(int item, int amount) {
+        ensureItemCapacity(itemCount + 1);
+        items[itemCount] = item;
+        amounts[itemCount] = amount;
+        itemCount++;
+    }
+
+    /**
+     * Writes the captured fields as they are, without resolving the user, for the spill journal
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(time);
+        out.writeInt(world);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(z);
+        out.writeInt(materialFrom);
+        out.writeInt(materialTo);
+        out.writeInt(amount);
+        out.writeInt(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            out.writeInt(items[i]);
+            out.writeInt(amounts[i]);
+        }
+        out.writeLong(userMost);
+        out.writeLong(userLeast);
+        writeNullableString(out, userName);
+        writeNullableString(out, message);
+        out.writeByte(state);
+    }
+
+    /**
+     * Reads back what {@link #writeTo(DataOutput)} wrote
+     */
+    public void readFrom(DataInput in) throws IOException {
+        clear();
+        type = in.readByte();
+        time = in.readLong();
+        world = in.readInt();
+        x = in.readInt();
+        y = in.readInt();
+        z = in.readInt();
+        materialFrom = in.readInt();
+        materialTo = in.readInt();
+        amount = in.readInt();
+        final int count = in.readInt();
+        ensureItemCapacity(count);
+        for (int i = 0; i < count; i++) {
+            items[i] = in.readInt();
+            amounts[i] = in.readInt();
+        }
+        itemCount = count;
+        userMost = in.readLong();
+        userLeast = in.readLong();
+        userName = readNullableString(in);
+        message = readNullableString(in);
+        state = in.readByte();
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public void copyFrom(ActionRecord source) {
+        type = source.type;
+        time = source.time;
+        world = source.world;
+        x = source.x;
+        y = source.y;
+        z = source.z;
+        materialFrom = source.materialFrom;
+        materialTo = source.materialTo;
+        amount = source.amount;
+        ensureItemCapacity(source.itemCount);
+        System.arraycopy(source.items, 0, items, 0, source.itemCount);
+        System.arraycopy(source.amounts, 0, amounts, 0, source.itemCount);
+        itemCount = source.itemCount;
+        userMost = source.userMost;
+        userLeast = source.userLeast;
+        userName = source.userName;
+        player = source.player;
+        message = source.message;
+        id = source.id;
+        state = source.state;
+    }
+}
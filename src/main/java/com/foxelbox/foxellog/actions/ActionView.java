@@ -0,0 +1,209 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.foxelbox.foxellog.ingest.PlayerIndex;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+import com.foxelbox.foxellog.storage.StorageSchema;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view over a stored action that decodes single fields when they are asked for.
+ * Pointing it at the next document only notes where that document is, the fields are located on the first access.
+ * Documents in the layout used before {@link StorageSchema} are decoded as a whole instead.
+ */
+public class ActionView {
+    private static final int SLOT_ID = 0;
+    private static final int SLOT_DATE = 1;
+    private static final int SLOT_TYPE = 2;
+    private static final int SLOT_WORLD = 3;
+    private static final int SLOT_X = 4;
+    private static final int SLOT_Y = 5;
+    private static final int SLOT_Z = 6;
+    private static final int SLOT_STATE = 7;
+    private static final int SLOT_MATERIAL_FROM = 8;
+    private static final int SLOT_MATERIAL_TO = 9;
+    private static final int SLOT_COUNT = 10;
+
+    private final WorldIndex worldIndex;
+    private final PlayerIndex playerIndex;
+    private final BsonReader reader = new BsonReader();
+    private final int[] positions = new int[SLOT_COUNT];
+    private final byte[] types = new byte[SLOT_COUNT];
+
+    private byte[] data;
+    private int offset;
+    private boolean indexed;
+    /** Set for documents in the old layout, which are read into this record */
+    private ActionRecord legacyRecord;
+    private final ActionRecord record = new ActionRecord();
+
+    public ActionView(WorldIndex worldIndex, PlayerIndex playerIndex) {
+        this.worldIndex = worldIndex;
+        this.playerIndex = playerIndex;
+    }
+
+    public ActionView reset(RawDBObject document) {
+        return reset(document.getData(), document.getDataOffset());
+    }
+
+    public ActionView reset(byte[] data, int offset) {
+        this.data = data;
+        this.offset = offset;
+        this.indexed = false;
+        this.legacyRecord = null;
+        return this;
+    }
+
+    private static int getSlot(String name) {
+        switch (name) {
+            case StorageSchema.ID:
+                return SLOT_ID;
+            case StorageSchema.FIELD_DATE:
+                return SLOT_DATE;
+            case StorageSchema.FIELD_TYPE:
+                return SLOT_TYPE;
+            case StorageSchema.FIELD_WORLD:
+                return SLOT_WORLD;
+            case StorageSchema.FIELD_X:
+                return SLOT_X;
+            case StorageSchema.FIELD_Y:
+                return SLOT_Y;
+            case StorageSchema.FIELD_Z:
+                return SLOT_Z;
+            case StorageSchema.FIELD_STATE:
+                return SLOT_STATE;
+            case StorageSchema.FIELD_MATERIAL_FROM:
+                return SLOT_MATERIAL_FROM;
+            case StorageSchema.FIELD_MATERIAL_TO:
+                return SLOT_MATERIAL_TO;
+        }
+        return -1;
+    }
+
+    /**
+     * Notes where each field's value starts, one pass over the names without decoding values
+     */
+    private void index() {
+        if (indexed)
+            return;
+        indexed = true;
+        Arrays.fill(types, BsonReader.END);
+        boolean compact = false;
+        reader.reset(data, offset);
+        reader.readStartDocument();
+        byte bsonType;
+        while ((bsonType = reader.readType()) != BsonReader.END) {
+            final String name = reader.readName();
+            if (name.equals(StorageSchema.FIELD_VERSION))
+                compact = true;
+            final int slot = getSlot(name);
+            if (slot >= 0) {
+                positions[slot] = reader.position();
+                types[slot] = bsonType;
+            }
+            reader.skipValue(bsonType);
+        }
+        if (!compact) {
+            ActionCodec.decode(data, offset, reader, record, worldIndex, playerIndex);
+            legacyRecord = record;
+        }
+    }
+
+    private boolean seek(int slot) {
+        index();
+        if (types[slot] == BsonReader.END)
+            return false;
+        reader.seek(positions[slot]);
+        return true;
+    }
+
+    private int getInt(int slot) {
+        return seek(slot) ? reader.readNumber(types[slot]) : 0;
+    }
+
+    public Object getId() {
+        index();
+        if (legacyRecord != null)
+            return legacyRecord.id;
+        return (seek(SLOT_ID) && types[SLOT_ID] == BsonReader.OBJECT_ID) ? reader.readObjectId() : null;
+    }
+
+    public long getTime() {
+        index();
+        if (legacyRecord != null)
+            return legacyRecord.time;
+        return seek(SLOT_DATE) ? reader.readDate() : 0;
+    }
+
+    /**
+     * @return one of the ActionRecord.TYPE_ constants, 0 if unknown
+     */
+    public int getType() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.type : getInt(SLOT_TYPE);
+    }
+
+    public int getWorld() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.world : getInt(SLOT_WORLD);
+    }
+
+    public int getX() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.x : getInt(SLOT_X);
+    }
+
+    public int getY() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.y : getInt(SLOT_Y);
+    }
+
+    public int getZ() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.z : getInt(SLOT_Z);
+    }
+
+    public int getState() {
+        index();
+        return (legacyRecord != null) ? legacyRecord.state : getInt(SLOT_STATE);
+    }
+
+    public int getMaterialFrom() {
+        index();
+        if (legacyRecord != null)
+            return legacyRecord.materialFrom;
+        return seek(SLOT_MATERIAL_FROM) ? ActionCodec.decodeMaterial(types[SLOT_MATERIAL_FROM], reader) : 0;
+    }
+
+    public int getMaterialTo() {
+        index();
+        if (legacyRecord != null)
+            return legacyRecord.materialTo;
+        return seek(SLOT_MATERIAL_TO) ? ActionCodec.decodeMaterial(types[SLOT_MATERIAL_TO], reader) : 0;
+    }
+
+    /**
+     * Decodes the whole action
+     */
+    public BaseAction toAction() {
+        return ActionCodec.decodeAction(data, offset, worldIndex, playerIndex);
+    }
+}
@@ -17,23 +17,26 @@
 package com.foxelbox.foxellog.actions;
 
 import com.foxelbox.foxellog.FoxelLog;
-import com.foxelbox.foxellog.util.ClassUtils;
-import com.mongodb.BasicDBObject;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.foxelbox.foxellog.ingest.PlayerIndex;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.foxelbox.foxellog.util.BlockPos;
 import com.mongodb.DBObject;
+import org.bson.BasicBSONEncoder;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.HumanEntity;
-import org.objenesis.ObjenesisStd;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
 import java.util.*;
 
 public abstract class BaseAction {
 	private final Date date;
-    private final HumanEntity user;
-    private final Location location;
+    private final UUID userUUID;
+    private final String userName;
+    /** Built on first use, actions read back only keep the world's number and the position until then */
+    private Location location;
+    private final int world;
+    private final long position;
     private final Object dbID;
     public ActionState state;
 
@@ -45,91 +48,145 @@ public abstract class BaseAction {
 
     protected BaseAction(HumanEntity user, Location location) {
         this.date = new Date();
-        this.user = user;
+        this.userUUID = user.getUniqueId();
+        this.userName = user.getName();
         this.location = location;
+        this.world = FoxelLog.instance.getWorldIndex().getIndex(location.getWorld());
+        this.position = BlockPos.pack(location.getBlockX(), location.getBlockY(), location.getBlockZ());
         this.dbID = null;
         this.state = ActionState.IN_PLACE;
     }
 
+    /**
+     * Reads a document in the layout used before {@link StorageSchema}
+     */
     protected BaseAction(DBObject fields) {
         dbID = fields.get("_id");
         date = (Date)fields.get("date");
-        user = FoxelLog.instance.getServer().getPlayer((UUID)fields.get("user_uuid"));
+        userUUID = (UUID)fields.get("user_uuid");
+        final PlayerIndex.Entry player = FoxelLog.instance.getPlayerIndex().getEntry(userUUID);
+        userName = (player == null) ? null : player.getName();
         state = ActionState.getByDbVal((int) fields.get("state"));
 
         final DBObject locationFields = (DBObject)fields.get("location");
-        location = new Location(FoxelLog.instance.getServer().getWorld((String)locationFields.get("world")), (double)locationFields.get("x"), (double)locationFields.get("y"), (double)locationFields.get("z"));
+        world = FoxelLog.instance.getWorldIndex().lookup((String)locationFields.get("world"));
+        position = BlockPos.pack((int) Math.floor((double)locationFields.get("x")), (int) Math.floor((double)locationFields.get("y")), (int) Math.floor((double)locationFields.get("z")));
     }
 
-    public final DBObject toDBObject() {
-        return toBasicDBObject(new BasicDBObject());
+    protected BaseAction(ActionRecord record) {
+        dbID = record.id;
+        date = new Date(record.time);
+        userUUID = new UUID(record.userMost, record.userLeast);
+        userName = record.userName;
+        state = ActionState.getByDbVal(record.state);
+        world = record.world;
+        position = BlockPos.pack(record.x, record.y, record.z);
     }
 
-    protected BasicDBObject toBasicDBObject(BasicDBObject builder) {
-        builder.append("date", date);
-
-        builder.append("type", getActionType());
-
-        builder.append("location", new BasicDBObject()
-                .append("x", location.getX())
-                .append("y", location.getY())
-                .append("z", location.getZ())
-                .append("world", location.getWorld().getName())
-        );
-
-        //builder.field("user_name", user.getName());
-        builder.append("user_uuid", user.getUniqueId());
-
-        builder.append("state", state.getDbVal());
+    /**
+     * Takes over everything but the type from another action, for actions stored as part of another one
+     */
+    protected BaseAction(BaseAction parent) {
+        dbID = parent.dbID;
+        date = parent.date;
+        userUUID = parent.userUUID;
+        userName = parent.userName;
+        state = parent.state;
+        location = parent.location;
+        world = parent.world;
+        position = parent.position;
+    }
 
-		return builder;
-	}
+    /**
+     * @return what happened, for display
+     */
+    public String getDescription() {
+        return getActionType();
+    }
 
     public Date getDate() {
         return date;
     }
 
+    /**
+     * @return the user if online right now, null otherwise
+     */
     public HumanEntity getUser() {
-        return user;
+        return FoxelLog.instance.getServer().getPlayer(userUUID);
+    }
+
+    public UUID getUserUUID() {
+        return userUUID;
+    }
+
+    /**
+     * @return the name the user had when last seen, may be null
+     */
+    public String getUserName() {
+        return userName;
     }
 
     public Location getLocation() {
+        if (location == null) {
+            //Unknown worlds are -1, old layout actions do not add theirs to the dictionary when read
+            final String worldName = FoxelLog.instance.getWorldIndex().getName(world);
+            location = new Location((worldName == null) ? null : FoxelLog.instance.getServer().getWorld(worldName), getBlockX(), getBlockY(), getBlockZ());
+        }
         return location;
     }
 
-    public Object getDbID() {
-        return dbID;
+    /**
+     * @return the world's number in the {@link com.foxelbox.foxellog.ingest.WorldIndex}
+     */
+    public int getWorld() {
+        return world;
     }
 
-    private final static Map<String, Class<? extends BaseAction>> typeToClassMap = new HashMap<>();
-    private final static Map<String, Constructor<? extends BaseAction>> typeToCtorMap = new HashMap<>();
-    static {
-        final ObjenesisStd objenesisStd = new ObjenesisStd();
-        for(Class<? extends BaseAction> clazz : ClassUtils.getSubClasses(BaseAction.class, BaseAction.class.getPackage().getName())) {
-            if (!Modifier.isAbstract(clazz.getModifiers())) {
-                try {
-                    final String classType = objenesisStd.newInstance(clazz).getActionType();
-                    typeToClassMap.put(classType, clazz);
-                    typeToCtorMap.put(classType, clazz.getDeclaredConstructor(DBObject.class));
-                } catch (NoSuchMethodException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * @return the position packed by {@link BlockPos}
+     */
+    public long getPosition() {
+        return position;
     }
 
-    public static Set<String> getTypes() {
-        return typeToClassMap.keySet();
+    public int getBlockX() {
+        return BlockPos.getX(position);
+    }
+
+    public int getBlockY() {
+        return BlockPos.getY(position);
+    }
+
+    public int getBlockZ() {
+        return BlockPos.getZ(position);
+    }
+
+    public Object getDbID() {
+        return dbID;
+    }
+
+    /**
+     * @return the lines a lookup shows for this action
+     */
+    public List<? extends BaseAction> getLines() {
+        return Collections.singletonList(this);
     }
 
     public static BaseAction craftActionByTypeAndDBObject(DBObject fields) {
-        try {
-            return typeToCtorMap.get((String)fields.get("type")).newInstance(fields);
-        } catch (IllegalAccessException|InvocationTargetException|InstantiationException e) {
-            throw new RuntimeException(e);
-        }
+        if (fields instanceof RawDBObject)
+            return ActionCodec.decodeAction((RawDBObject) fields, FoxelLog.instance.getWorldIndex(), FoxelLog.instance.getPlayerIndex());
+        if (fields.containsField(StorageSchema.FIELD_VERSION))
+            return ActionCodec.decodeAction(new BasicBSONEncoder().encode(fields), 0, FoxelLog.instance.getWorldIndex(), FoxelLog.instance.getPlayerIndex());
+        final ActionCodec codec = ActionCodec.forTypeName((String)fields.get("type"));
+        final BaseAction action = (codec == null) ? null : codec.createLegacyAction(fields);
+        if (action == null)
+            throw new IllegalArgumentException("Unknown action type " + fields.get("type"));
+        return action;
     }
 
+    /**
+     * Reads a material stored by name, as documents before {@link StorageSchema} did
+     */
     static Material getMaterial(DBObject fields, String name) {
         Object value = fields.get(name);
         if(value != null)
@@ -137,13 +194,6 @@ public abstract class BaseAction {
         return Material.AIR;
     }
 
-    static void storeMaterial(BasicDBObject fields, String name, Material material) {
-        if(material == Material.AIR)
-            fields.append(name, null);
-        else
-            fields.append(name, material.name());
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -152,8 +202,9 @@ public abstract class BaseAction {
         BaseAction action = (BaseAction) o;
 
         if (!date.equals(action.date)) return false;
-        if (!location.equals(action.location)) return false;
-        if (!user.equals(action.user)) return false;
+        if (world != action.world) return false;
+        if (position != action.position) return false;
+        if (!userUUID.equals(action.userUUID)) return false;
 
         return true;
     }
@@ -161,8 +212,9 @@ public abstract class BaseAction {
     @Override
     public int hashCode() {
         int result = date.hashCode();
-        result = 31 * result + user.hashCode();
-        result = 31 * result + location.hashCode();
+        result = 31 * result + userUUID.hashCode();
+        result = 31 * result + world;
+        result = 31 * result + (int) (position ^ (position >>> 32));
         return result;
     }
 }
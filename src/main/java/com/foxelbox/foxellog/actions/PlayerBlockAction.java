@@ -16,13 +16,50 @@
  */
 package com.foxelbox.foxellog.actions;
 
-import com.mongodb.BasicDBObject;
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.storage.StorageSchema;
 import com.mongodb.DBObject;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.HumanEntity;
 
 public class PlayerBlockAction extends BaseAction {
+    public static final String TYPE = "player_block_change";
+
+    public static final ActionCodec CODEC = new ActionCodec(ActionRecord.TYPE_BLOCK, TYPE) {
+        @Override
+        protected void encodeFields(ActionRecord record, BsonWriter writer) {
+            writer.writeInt32(StorageSchema.FIELD_MATERIAL_FROM, record.materialFrom);
+            writer.writeInt32(StorageSchema.FIELD_MATERIAL_TO, record.materialTo);
+        }
+
+        @Override
+        protected boolean decodeField(String name, byte bsonType, BsonReader reader, ActionRecord record) {
+            switch (name) {
+                case StorageSchema.FIELD_MATERIAL_FROM:
+                case "blockFrom":
+                    record.materialFrom = decodeMaterial(bsonType, reader);
+                    return true;
+                case StorageSchema.FIELD_MATERIAL_TO:
+                case "blockTo":
+                    record.materialTo = decodeMaterial(bsonType, reader);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public BaseAction createAction(ActionRecord record) {
+            return new PlayerBlockAction(record);
+        }
+
+        @Override
+        public BaseAction createLegacyAction(DBObject fields) {
+            return new PlayerBlockAction(fields);
+        }
+    };
+
 	private final Material blockFrom;
 	private final Material blockTo;
 
@@ -31,6 +68,12 @@ public class PlayerBlockAction extends BaseAction {
 		this.blockFrom = blockFrom;
 		this.blockTo = blockTo;
 	}
+    protected PlayerBlockAction(ActionRecord record) {
+        super(record);
+        this.blockFrom = Material.getMaterial(record.materialFrom);
+        this.blockTo = Material.getMaterial(record.materialTo);
+    }
+
     protected PlayerBlockAction(DBObject fields) {
         super(fields);
         this.blockFrom = getMaterial(fields, "blockFrom");
@@ -39,17 +82,17 @@ public class PlayerBlockAction extends BaseAction {
 
     @Override
     public String getActionType() {
-        return "player_block_change";
+        return TYPE;
     }
 
-    protected BasicDBObject toBasicDBObject(BasicDBObject builder) {
-        builder = super.toBasicDBObject(builder);
-
-        storeMaterial(builder, "blockFrom", blockFrom);
-        storeMaterial(builder, "blockTo", blockTo);
-
-		return builder;
-	}
+    @Override
+    public String getDescription() {
+        if (blockFrom == Material.AIR)
+            return "placed " + blockTo.name().toLowerCase();
+        if (blockTo == Material.AIR)
+            return "broke " + blockFrom.name().toLowerCase();
+        return "replaced " + blockFrom.name().toLowerCase() + " with " + blockTo.name().toLowerCase();
+    }
 
     public Material getBlockFrom() {
         return blockFrom;
@@ -16,11 +16,40 @@
  */
 package com.foxelbox.foxellog.actions;
 
-import com.mongodb.BasicDBObject;
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.storage.StorageSchema;
 import com.mongodb.DBObject;
 import org.bukkit.entity.HumanEntity;
 
 public class PlayerChatAction extends BaseAction {
+    public static final String TYPE = "player_chat";
+
+    public static final ActionCodec CODEC = new ActionCodec(ActionRecord.TYPE_CHAT, TYPE) {
+        @Override
+        protected void encodeFields(ActionRecord record, BsonWriter writer) {
+            writer.writeString(StorageSchema.FIELD_MESSAGE, record.message);
+        }
+
+        @Override
+        protected boolean decodeField(String name, byte bsonType, BsonReader reader, ActionRecord record) {
+            if (!name.equals(StorageSchema.FIELD_MESSAGE) && !name.equals("message"))
+                return false;
+            record.message = reader.readString();
+            return true;
+        }
+
+        @Override
+        public BaseAction createAction(ActionRecord record) {
+            return new PlayerChatAction(record);
+        }
+
+        @Override
+        public BaseAction createLegacyAction(DBObject fields) {
+            return new PlayerChatAction(fields);
+        }
+    };
+
 	private final String message;
 
 	public PlayerChatAction(HumanEntity user, String message) {
@@ -28,6 +57,11 @@ public class PlayerChatAction extends BaseAction {
 		this.message = message;
 	}
 
+    protected PlayerChatAction(ActionRecord record) {
+        super(record);
+        this.message = record.message;
+    }
+
     protected PlayerChatAction(DBObject fields) {
         super(fields);
         this.message = (String)fields.get("message");
@@ -35,15 +69,11 @@ public class PlayerChatAction extends BaseAction {
 
     @Override
     public String getActionType() {
-        return "player_chat";
+        return TYPE;
     }
 
     @Override
-    protected BasicDBObject toBasicDBObject(BasicDBObject builder) {
-        builder = super.toBasicDBObject(builder);
-
-		builder.append("message", message);
-
-		return builder;
-	}
+    public String getDescription() {
+        return "said " + message;
+    }
 }
@@ -0,0 +1,135 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.entity.HumanEntity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything a player took out of or put into a container in one go, stored as one document.
+ * Items and amounts are stored as two arrays of the same length, so the items can be indexed (multikey).
+ */
+public class PlayerContainerAction extends BaseAction {
+    public static final String TYPE = "player_container_change";
+
+    public static final ActionCodec CODEC = new ActionCodec(ActionRecord.TYPE_CONTAINER, TYPE) {
+        @Override
+        protected void encodeFields(ActionRecord record, BsonWriter writer) {
+            writer.writeInt32(StorageSchema.FIELD_CONTAINER, record.materialFrom);
+            writer.writeInt32Array(StorageSchema.FIELD_ITEM, record.items, record.itemCount);
+            writer.writeInt32Array(StorageSchema.FIELD_AMOUNT, record.amounts, record.itemCount);
+        }
+
+        private int decodeArray(BsonReader reader, ActionRecord record, boolean items) {
+            int index = 0;
+            reader.readStartDocument();
+            byte bsonType;
+            while ((bsonType = reader.readType()) != BsonReader.END) {
+                reader.skipName();
+                record.ensureItemCapacity(index + 1);
+                (items ? record.items : record.amounts)[index++] = reader.readNumber(bsonType);
+            }
+            return index;
+        }
+
+        @Override
+        protected boolean decodeField(String name, byte bsonType, BsonReader reader, ActionRecord record) {
+            switch (name) {
+                case StorageSchema.FIELD_CONTAINER:
+                    record.materialFrom = decodeMaterial(bsonType, reader);
+                    return true;
+                case StorageSchema.FIELD_ITEM:
+                case StorageSchema.FIELD_AMOUNT:
+                    if (bsonType != BsonReader.ARRAY)
+                        return false;
+                    record.itemCount = Math.max(record.itemCount, decodeArray(reader, record, name.equals(StorageSchema.FIELD_ITEM)));
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public BaseAction createAction(ActionRecord record) {
+            return new PlayerContainerAction(record);
+        }
+    };
+
+    private final Material container;
+    private final Material[] items;
+    private final int[] amounts;
+
+    public PlayerContainerAction(HumanEntity user, Location location, Material container, Material[] items, int[] amounts) {
+        super(user, location);
+        this.container = container;
+        this.items = items;
+        this.amounts = amounts;
+    }
+
+    protected PlayerContainerAction(ActionRecord record) {
+        super(record);
+        this.container = Material.getMaterial(record.materialFrom);
+        this.items = new Material[record.itemCount];
+        for (int i = 0; i < items.length; i++)
+            items[i] = Material.getMaterial(record.items[i]);
+        this.amounts = Arrays.copyOf(record.amounts, record.itemCount);
+    }
+
+    @Override
+    public String getActionType() {
+        return TYPE;
+    }
+
+    @Override
+    public String getDescription() {
+        return "changed " + items.length + " items in " + container.name().toLowerCase();
+    }
+
+    /**
+     * @return one inventory action per item, for display
+     */
+    public List<PlayerInventoryAction> expand() {
+        final List<PlayerInventoryAction> actions = new ArrayList<>(items.length);
+        for (int i = 0; i < items.length; i++)
+            actions.add(new PlayerInventoryAction(this, items[i], amounts[i]));
+        return actions;
+    }
+
+    @Override
+    public List<PlayerInventoryAction> getLines() {
+        return expand();
+    }
+
+    public Material getContainer() {
+        return container;
+    }
+
+    public Material[] getItems() {
+        return items;
+    }
+
+    public int[] getAmounts() {
+        return amounts;
+    }
+}
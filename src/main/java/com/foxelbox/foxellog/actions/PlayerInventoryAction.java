@@ -16,13 +16,55 @@
  */
 package com.foxelbox.foxellog.actions;
 
-import com.mongodb.BasicDBObject;
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.storage.StorageSchema;
 import com.mongodb.DBObject;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.HumanEntity;
 
 public class PlayerInventoryAction extends BaseAction {
+    public static final String TYPE = "player_inventory_change";
+
+    public static final ActionCodec CODEC = new ActionCodec(ActionRecord.TYPE_INVENTORY, TYPE) {
+        @Override
+        protected void encodeFields(ActionRecord record, BsonWriter writer) {
+            writer.writeInt32(StorageSchema.FIELD_CONTAINER, record.materialFrom);
+            writer.writeInt32(StorageSchema.FIELD_ITEM, record.materialTo);
+            writer.writeInt32(StorageSchema.FIELD_AMOUNT, record.amount);
+        }
+
+        @Override
+        protected boolean decodeField(String name, byte bsonType, BsonReader reader, ActionRecord record) {
+            switch (name) {
+                case StorageSchema.FIELD_ITEM:
+                case "block":
+                    record.materialTo = decodeMaterial(bsonType, reader);
+                    return true;
+                case StorageSchema.FIELD_CONTAINER:
+                case "container":
+                    record.materialFrom = decodeMaterial(bsonType, reader);
+                    return true;
+                case StorageSchema.FIELD_AMOUNT:
+                case "amount":
+                    record.amount = reader.readNumber(bsonType);
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public BaseAction createAction(ActionRecord record) {
+            return new PlayerInventoryAction(record);
+        }
+
+        @Override
+        public BaseAction createLegacyAction(DBObject fields) {
+            return new PlayerInventoryAction(fields);
+        }
+    };
+
 	private final Material block;
 	private final Material container;
 	private final int amount;
@@ -34,6 +76,20 @@ public class PlayerInventoryAction extends BaseAction {
 		this.amount = amount;
 	}
 
+    PlayerInventoryAction(PlayerContainerAction container, Material block, int amount) {
+        super(container);
+        this.block = block;
+        this.container = container.getContainer();
+        this.amount = amount;
+    }
+
+    protected PlayerInventoryAction(ActionRecord record) {
+        super(record);
+        this.amount = record.amount;
+        this.block = Material.getMaterial(record.materialTo);
+        this.container = Material.getMaterial(record.materialFrom);
+    }
+
     protected PlayerInventoryAction(DBObject fields) {
         super(fields);
         this.amount = (Integer)fields.get("amount");
@@ -43,17 +99,13 @@ public class PlayerInventoryAction extends BaseAction {
 
     @Override
     public String getActionType() {
-        return "player_inventory_change";
+        return TYPE;
     }
 
     @Override
-    protected BasicDBObject toBasicDBObject(BasicDBObject builder) {
-        builder = super.toBasicDBObject(builder);
-
-        storeMaterial(builder, "block", block);
-        storeMaterial(builder, "container", container);
-		builder.append("amount", amount);
-
-		return builder;
-	}
+    public String getDescription() {
+        if (amount < 0)
+            return "took " + (-amount) + " " + block.name().toLowerCase() + " from " + container.name().toLowerCase();
+        return "put " + amount + " " + block.name().toLowerCase() + " into " + container.name().toLowerCase();
+    }
 }
@@ -0,0 +1,283 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.codec;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Walks the elements of a BSON document one by one without building any maps
+ */
+public class BsonReader {
+    public static final byte END = 0x00;
+    public static final byte DOUBLE = 0x01;
+    public static final byte STRING = 0x02;
+    public static final byte DOCUMENT = 0x03;
+    public static final byte ARRAY = 0x04;
+    public static final byte BINARY = 0x05;
+    public static final byte UNDEFINED = 0x06;
+    public static final byte OBJECT_ID = 0x07;
+    public static final byte BOOLEAN = 0x08;
+    public static final byte DATE = 0x09;
+    public static final byte NULL = 0x0A;
+    public static final byte REGEX = 0x0B;
+    public static final byte DB_POINTER = 0x0C;
+    public static final byte CODE = 0x0D;
+    public static final byte SYMBOL = 0x0E;
+    public static final byte CODE_W_SCOPE = 0x0F;
+    public static final byte INT32 = 0x10;
+    public static final byte TIMESTAMP = 0x11;
+    public static final byte INT64 = 0x12;
+    public static final byte MIN_KEY = (byte) 0xFF;
+    public static final byte MAX_KEY = 0x7F;
+
+    public static final byte SUBTYPE_UUID_LEGACY = 0x03;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] bytes;
+    private int position;
+    private int[] documentEnds = new int[8];
+    private int depth = 0;
+
+    private char[] nameBuffer = new char[32];
+
+    public void reset(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.depth = 0;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Moves back to a value whose position was noted with {@link #position()}, in the same document
+     */
+    public void seek(int position) {
+        this.position = position;
+    }
+
+    private int getInt() {
+        final int value = (bytes[position] & 0xFF)
+                | ((bytes[position + 1] & 0xFF) << 8)
+                | ((bytes[position + 2] & 0xFF) << 16)
+                | ((bytes[position + 3] & 0xFF) << 24);
+        position += 4;
+        return value;
+    }
+
+    private int getIntBigEndian() {
+        final int value = ((bytes[position] & 0xFF) << 24)
+                | ((bytes[position + 1] & 0xFF) << 16)
+                | ((bytes[position + 2] & 0xFF) << 8)
+                | (bytes[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    private long getLong() {
+        final long low = getInt() & 0xFFFFFFFFL;
+        final long high = getInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    /**
+     * Enters a document, either the root one or the value of the element just read
+     */
+    public void readStartDocument() {
+        if (depth == documentEnds.length)
+            documentEnds = Arrays.copyOf(documentEnds, depth * 2);
+        final int start = position;
+        documentEnds[depth++] = start + getInt();
+    }
+
+    /**
+     * Reads the type of the next element, or {@link #END} once the current document is done (which also leaves it)
+     */
+    public byte readType() {
+        final byte type = bytes[position++];
+        if (type == END)
+            position = documentEnds[--depth];
+        return type;
+    }
+
+    public String readName() {
+        int length = 0;
+        boolean ascii = true;
+        while (bytes[position + length] != 0) {
+            if (bytes[position + length] < 0)
+                ascii = false;
+            length++;
+        }
+
+        final String name;
+        if (ascii) {
+            if (nameBuffer.length < length)
+                nameBuffer = new char[length];
+            for (int i = 0; i < length; i++)
+                nameBuffer[i] = (char) bytes[position + i];
+            name = new String(nameBuffer, 0, length);
+        } else {
+            name = new String(bytes, position, length, UTF8);
+        }
+        position += length + 1;
+        return name;
+    }
+
+    /**
+     * Skips over the name of the element, for array entries
+     */
+    public void skipName() {
+        while (bytes[position] != 0)
+            position++;
+        position++;
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(getLong());
+    }
+
+    public int readInt32() {
+        return getInt();
+    }
+
+    public long readInt64() {
+        return getLong();
+    }
+
+    public long readDate() {
+        return getLong();
+    }
+
+    public boolean readBoolean() {
+        return bytes[position++] != 0;
+    }
+
+    public String readString() {
+        final int length = getInt();
+        final String value = new String(bytes, position, length - 1, UTF8);
+        position += length;
+        return value;
+    }
+
+    public ObjectId readObjectId() {
+        final int time = getIntBigEndian();
+        final int machine = getIntBigEndian();
+        final int inc = getIntBigEndian();
+        return new ObjectId(time, machine, inc);
+    }
+
+    /**
+     * Reads the length and subtype of a binary value, leaving the reader at its data
+     */
+    public int readBinaryLength() {
+        return getInt();
+    }
+
+    public byte readBinarySubtype() {
+        return bytes[position++];
+    }
+
+    /**
+     * Reads 8 raw little endian bytes, as found in UUID binaries
+     */
+    public long readRawInt64() {
+        return getLong();
+    }
+
+    /**
+     * Reads any numeric value as an int
+     */
+    public int readNumber(byte type) {
+        switch (type) {
+            case DOUBLE:
+                return (int) readDouble();
+            case INT32:
+                return readInt32();
+            case INT64:
+                return (int) readInt64();
+        }
+        throw new IllegalStateException("Not a number: BSON type " + type);
+    }
+
+    /**
+     * Reads any numeric value as a long
+     */
+    public long readLongNumber(byte type) {
+        switch (type) {
+            case DOUBLE:
+                return (long) readDouble();
+            case INT32:
+                return readInt32();
+            case INT64:
+                return readInt64();
+        }
+        throw new IllegalStateException("Not a number: BSON type " + type);
+    }
+
+    public void skipValue(byte type) {
+        switch (type) {
+            case DOUBLE:
+            case DATE:
+            case INT64:
+            case TIMESTAMP:
+                position += 8;
+                break;
+            case STRING:
+            case CODE:
+            case SYMBOL:
+                position += 4 + getInt();
+                break;
+            case DOCUMENT:
+            case ARRAY:
+            case CODE_W_SCOPE:
+                final int size = getInt();
+                position += size - 4;
+                break;
+            case BINARY:
+                position += 1 + getInt();
+                break;
+            case OBJECT_ID:
+                position += 12;
+                break;
+            case BOOLEAN:
+                position += 1;
+                break;
+            case INT32:
+                position += 4;
+                break;
+            case REGEX:
+                while (bytes[position++] != 0) ;
+                while (bytes[position++] != 0) ;
+                break;
+            case DB_POINTER:
+                position += 4 + getInt() + 12;
+                break;
+            case UNDEFINED:
+            case NULL:
+            case MIN_KEY:
+            case MAX_KEY:
+                break;
+            default:
+                throw new IllegalStateException("Unknown BSON type " + type);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.codec;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes BSON documents straight into a reusable byte buffer
+ */
+public class BsonWriter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buffer;
+    private int position = 0;
+    private int[] documentStarts = new int[8];
+    private int depth = 0;
+
+    public BsonWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    public void reset() {
+        position = 0;
+        depth = 0;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensure(int bytes) {
+        if (position + bytes > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+    }
+
+    private void putByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        ensure(4);
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+    }
+
+    private void putIntBigEndian(int value) {
+        ensure(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+        putInt((int) value);
+        putInt((int) (value >>> 32));
+    }
+
+    private void putCString(String value) {
+        final int length = value.length();
+        ensure(length + 1);
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x80) {
+                //Rare, field names are plain ASCII
+                final byte[] bytes = value.getBytes(UTF8);
+                ensure(bytes.length + 1);
+                System.arraycopy(bytes, 0, buffer, position, bytes.length);
+                position += bytes.length;
+                putByte(0);
+                return;
+            }
+            buffer[position + i] = (byte) c;
+        }
+        position += length;
+        buffer[position++] = 0;
+    }
+
+    private void putElement(byte type, String name) {
+        putByte(type);
+        putCString(name);
+    }
+
+    public void startDocument() {
+        if (depth == documentStarts.length)
+            documentStarts = Arrays.copyOf(documentStarts, depth * 2);
+        documentStarts[depth++] = position;
+        putInt(0);
+    }
+
+    public void startDocument(String name) {
+        putElement(BsonReader.DOCUMENT, name);
+        startDocument();
+    }
+
+    public void startArray(String name) {
+        putElement(BsonReader.ARRAY, name);
+        startDocument();
+    }
+
+    private static final String[] INDEX_NAMES = new String[256];
+    static {
+        for (int i = 0; i < INDEX_NAMES.length; i++)
+            INDEX_NAMES[i] = Integer.toString(i);
+    }
+
+    /**
+     * @return the element name of an array entry
+     */
+    public static String indexName(int index) {
+        return index < INDEX_NAMES.length ? INDEX_NAMES[index] : Integer.toString(index);
+    }
+
+    public void writeInt32Array(String name, int[] values, int count) {
+        startArray(name);
+        for (int i = 0; i < count; i++)
+            writeInt32(indexName(i), values[i]);
+        endDocument();
+    }
+
+    public void endDocument() {
+        putByte(0);
+        final int start = documentStarts[--depth];
+        final int size = position - start;
+        buffer[start] = (byte) size;
+        buffer[start + 1] = (byte) (size >>> 8);
+        buffer[start + 2] = (byte) (size >>> 16);
+        buffer[start + 3] = (byte) (size >>> 24);
+    }
+
+    public void writeDouble(String name, double value) {
+        putElement(BsonReader.DOUBLE, name);
+        putLong(Double.doubleToRawLongBits(value));
+    }
+
+    public void writeString(String name, String value) {
+        putElement(BsonReader.STRING, name);
+        final byte[] bytes = value.getBytes(UTF8);
+        putInt(bytes.length + 1);
+        ensure(bytes.length + 1);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+        buffer[position++] = 0;
+    }
+
+    public void writeObjectId(String name, ObjectId value) {
+        putElement(BsonReader.OBJECT_ID, name);
+        putIntBigEndian(value.getTimeSecond());
+        putIntBigEndian(value.getMachine());
+        putIntBigEndian(value.getInc());
+    }
+
+    public void writeBoolean(String name, boolean value) {
+        putElement(BsonReader.BOOLEAN, name);
+        putByte(value ? 1 : 0);
+    }
+
+    public void writeDate(String name, long millis) {
+        putElement(BsonReader.DATE, name);
+        putLong(millis);
+    }
+
+    public void writeNull(String name) {
+        putElement(BsonReader.NULL, name);
+    }
+
+    public void writeInt32(String name, int value) {
+        putElement(BsonReader.INT32, name);
+        putInt(value);
+    }
+
+    public void writeInt64(String name, long value) {
+        putElement(BsonReader.INT64, name);
+        putLong(value);
+    }
+
+    /**
+     * Writes a UUID the way the Java driver does (binary subtype 3, both halves little endian)
+     */
+    public void writeUUID(String name, long mostSignificantBits, long leastSignificantBits) {
+        putElement(BsonReader.BINARY, name);
+        putInt(16);
+        putByte(BsonReader.SUBTYPE_UUID_LEGACY);
+        putLong(mostSignificantBits);
+        putLong(leastSignificantBits);
+    }
+}
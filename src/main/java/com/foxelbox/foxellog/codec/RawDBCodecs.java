@@ -0,0 +1,80 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.codec;
+
+import com.mongodb.*;
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+import java.io.IOException;
+
+/**
+ * Encoder and decoder factories for collections that move {@link RawDBObject}s around
+ */
+public class RawDBCodecs {
+    private static class RawDBCallback extends LazyDBCallback {
+        private RawDBCallback(DBCollection collection) {
+            super(collection);
+        }
+
+        @Override
+        public Object createObject(byte[] data, int offset) {
+            return new RawDBObject(data, offset, this);
+        }
+    }
+
+    private static class RawDBDecoder extends LazyDBDecoder {
+        @Override
+        public DBCallback getDBCallback(DBCollection collection) {
+            return new RawDBCallback(collection);
+        }
+    }
+
+    /**
+     * Copies raw documents as they are and encodes everything else as usual
+     */
+    private static class RawDBEncoder extends DefaultDBEncoder {
+        @Override
+        public int writeObject(OutputBuffer buffer, BSONObject document) {
+            if (!(document instanceof LazyDBObject))
+                return super.writeObject(buffer, document);
+            try {
+                return ((LazyDBObject) document).pipe(buffer);
+            } catch (IOException e) {
+                throw new MongoException("Could not copy raw document", e);
+            }
+        }
+    }
+
+    public static final DBDecoderFactory DECODER_FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new RawDBDecoder();
+        }
+    };
+
+    public static final DBEncoderFactory ENCODER_FACTORY = new DBEncoderFactory() {
+        @Override
+        public DBEncoder create() {
+            return new RawDBEncoder();
+        }
+    };
+
+    public static RawDBObject wrap(byte[] data, int offset, DBCollection collection) {
+        return new RawDBObject(data, offset, new RawDBCallback(collection));
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.codec;
+
+import com.mongodb.LazyDBObject;
+import org.bson.LazyBSONCallback;
+
+/**
+ * A lazily decoded document that also exposes its raw BSON bytes, so codecs can stream over them
+ */
+public class RawDBObject extends LazyDBObject {
+    public RawDBObject(byte[] data, LazyBSONCallback callback) {
+        super(data, callback);
+    }
+
+    public RawDBObject(byte[] data, int offset, LazyBSONCallback callback) {
+        super(data, offset, callback);
+    }
+
+    public byte[] getData() {
+        return _input.array();
+    }
+
+    public int getDataOffset() {
+        return _doc_start_offset;
+    }
+}
@@ -18,23 +18,28 @@ package com.foxelbox.foxellog.commands;
 
 import com.foxelbox.foxellog.FoxelLog;
 import com.foxelbox.foxellog.actions.BaseAction;
-import com.foxelbox.foxellog.actions.PlayerBlockAction;
-import com.foxelbox.foxellog.actions.PlayerInventoryAction;
+import com.foxelbox.foxellog.ingest.ActionPipeline;
+import com.foxelbox.foxellog.ingest.BlockChangeCoalescer;
+import com.foxelbox.foxellog.ingest.BulkWriter;
+import com.foxelbox.foxellog.ingest.IngestQueue;
 import com.foxelbox.foxellog.query.AggregationResult;
+import com.foxelbox.foxellog.query.QueryContext;
+import com.foxelbox.foxellog.query.QueryExecutor;
 import com.foxelbox.foxellog.query.QueryInterface;
 import com.foxelbox.foxellog.query.QueryParams;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
+import com.foxelbox.foxellog.storage.ArchiveStore;
+import com.foxelbox.foxellog.storage.Archiver;
+import com.foxelbox.foxellog.storage.SchemaMigrator;
+import com.foxelbox.foxellog.util.TimeUtils;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.logging.Level;
 
 public class FLCommand implements CommandExecutor {
     private final FoxelLog plugin;
@@ -43,16 +48,96 @@ public class FLCommand implements CommandExecutor {
         this.plugin = plugin;
     }
 
-    private BasicDBObject makeRange(int pos, int range) {
-        return new BasicDBObject("$gte", pos - range).append("$lte", pos + range);
-    }
-
     private final HashMap<UUID, QueryParams> lastQueryParams = new HashMap<>();
 
     public static final UUID CONSOLE_UUID = UUID.nameUUIDFromBytes("COMMANDSENDER:CONSOLE".getBytes());
 
+    private void sendStatus(CommandSender commandSender) {
+        final ActionPipeline pipeline = plugin.getLoggerListener().getPipeline();
+        final IngestQueue<?> queue = pipeline.getQueue();
+        commandSender.sendMessage("Queue: " + queue.size() + "/" + queue.capacity() + " (" + queue.getOverflowPolicy().name().toLowerCase() + ")");
+        commandSender.sendMessage("Dropped: " + queue.getDroppedCount() + ", blocked: " + queue.getBlockedCount() + ", spilled: " + queue.getSpilledCount());
+        final BulkWriter writer = pipeline.getBulkWriter();
+        commandSender.sendMessage("Writer: batch " + writer.getBatchSize() + ", " + writer.getInFlightBatches() + " in flight, last " + writer.getLastLatencyMillis() + "ms");
+        commandSender.sendMessage("Inserted: " + writer.getInsertedCount() + ", retried: " + writer.getRetriedCount() + ", failed: " + writer.getFailedCount() + ", deferred: " + writer.getDeferredCount());
+        final BlockChangeCoalescer coalescer = pipeline.getCoalescer();
+        if (coalescer != null)
+            commandSender.sendMessage("Coalescer: " + coalescer.size() + " held back, saved " + coalescer.getMergedCount() + " merged, " + coalescer.getCancelledCount() + " undone");
+        final QueryExecutor queryExecutor = plugin.getQueryExecutor();
+        commandSender.sendMessage("Queries: " + queryExecutor.getRunningCount() + " active, " + queryExecutor.getQueuedCount() + " queued, " + queryExecutor.getRejectedCount() + " rejected");
+        final ArchiveStore archiveStore = plugin.getArchiveStore();
+        commandSender.sendMessage("Archive: " + archiveStore.getArchivedCount() + " actions in " + archiveStore.getSegmentCount() + " segments" + (plugin.getArchiver().isRunning() ? ", archiving" : ""));
+        commandSender.sendMessage("Journal: " + pipeline.getJournal().getPendingCount() + " unacknowledged, overflow: " + pipeline.getOverflowJournal().getPendingCount() + " spooled, spill: " + pipeline.getSpillJournal().getPendingCount() + " spilled, " + pipeline.getLostCount() + " lost");
+    }
+
+    private void migrate(CommandSender commandSender, boolean stop) {
+        final SchemaMigrator migrator = plugin.getSchemaMigrator();
+        if (stop) {
+            migrator.stop();
+            commandSender.sendMessage("Migration stopped after " + migrator.getMigratedCount() + " actions");
+        } else if (migrator.start()) {
+            commandSender.sendMessage("Migration started");
+        } else {
+            commandSender.sendMessage("Migration running: " + migrator.getMigratedCount() + " actions rewritten, " + migrator.getSkippedCount() + " skipped");
+        }
+    }
+
+    private void archive(CommandSender commandSender) {
+        final Archiver archiver = plugin.getArchiver();
+        if (!archiver.isEnabled())
+            commandSender.sendMessage("Archiving is turned off, set archive-after-days to use it");
+        else if (archiver.start())
+            commandSender.sendMessage("Archiving started");
+        else
+            commandSender.sendMessage("Archiving running: " + archiver.getArchivedCount() + " actions archived, " + archiver.getSkippedCount() + " skipped");
+    }
+
+    private void sendResults(CommandSender commandSender, QueryParams queryParams, QueryInterface.QueryResults results) {
+        switch (queryParams.performMode) {
+            case ROLLBACK:
+                commandSender.sendMessage("Rolled back " + results.count + " blocks");
+                return;
+            case REDO:
+                commandSender.sendMessage("Redid " + results.count + " blocks");
+                return;
+        }
+        commandSender.sendMessage("Found " + (results.countLimited ? "more than " : "") + results.count + " actions, page " + results.page + "/" + results.pageCount);
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss");
+        for (BaseAction action : results.results) {
+            final String user = (action.getUserName() != null) ? action.getUserName() : action.getUserUUID().toString();
+            commandSender.sendMessage(dateFormat.format(action.getDate()) + " " + user + " " + action.getDescription() + " at " + action.getBlockX() + "," + action.getBlockY() + "," + action.getBlockZ());
+        }
+        if (results.page < results.pageCount)
+            commandSender.sendMessage("Use /fl page " + (results.page + 1) + " for more");
+    }
+
+    private void sendResults(CommandSender commandSender, QueryInterface.AggregationResults results) {
+        commandSender.sendMessage(results.label + ": placed / destroyed");
+        for (AggregationResult result : results.results)
+            commandSender.sendMessage(result.label + ": " + result.placed + " / " + result.destroyed);
+    }
+
     @Override
-    public boolean onCommand(CommandSender commandSender, Command command, String commandName, String[] argsRaw) {
+    public boolean onCommand(final CommandSender commandSender, Command command, String commandName, String[] argsRaw) {
+        if(argsRaw.length == 1 && argsRaw[0].equalsIgnoreCase("status")) {
+            sendStatus(commandSender);
+            return true;
+        }
+        if(argsRaw.length == 1 && argsRaw[0].equalsIgnoreCase("cancel")) {
+            final UUID owner = (commandSender instanceof Player) ? ((Player)commandSender).getUniqueId() : CONSOLE_UUID;
+            if(!plugin.getQueryExecutor().cancel(owner))
+                commandSender.sendMessage("You have no query running");
+            return true;
+        }
+        if(argsRaw.length == 1 && argsRaw[0].equalsIgnoreCase("archive")) {
+            archive(commandSender);
+            return true;
+        }
+        if(argsRaw.length >= 1 && argsRaw[0].equalsIgnoreCase("migrate")) {
+            migrate(commandSender, argsRaw.length == 2 && argsRaw[1].equalsIgnoreCase("stop"));
+            return true;
+        }
+
         QueryParams queryParams = new QueryParams();
         final UUID myUUID;
         if(commandSender instanceof Player)
@@ -60,100 +145,156 @@ public class FLCommand implements CommandExecutor {
         else
             myUUID = CONSOLE_UUID;
 
-        for(String arg : argsRaw)
-            if(arg.equalsIgnoreCase("last"))
-                queryParams = lastQueryParams.get(myUUID);
+        for(String arg : argsRaw) {
+            if(arg.equalsIgnoreCase("last") || arg.equalsIgnoreCase("page")) {
+                final QueryParams lastParams = lastQueryParams.get(myUUID);
+                if(lastParams == null) {
+                    commandSender.sendMessage("You have no previous query");
+                    return true;
+                }
+                queryParams = lastParams.copy();
+            }
+        }
 
         queryParams.aggregationMode = null;
         queryParams.performMode = QueryParams.PerformMode.GET;
-
-        lastQueryParams.put(myUUID, queryParams);
+        queryParams.explain = false;
+        queryParams.page = 1;
 
         if(queryParams.setLocation == null)
             queryParams.setLocation = (commandSender instanceof Player) ? ((Player)commandSender).getLocation() : new Location(plugin.getServer().getWorlds().get(0), 0, 0, 0);
 
-        for(int i = 0; i < argsRaw.length; i += 2) {
-            String arg = argsRaw[i];
-            String param = (i < argsRaw.length - 1) ? argsRaw[i + 1] : "";
-
-            switch(arg.toLowerCase()) {
-                case "self":
-                case "me":
-                case "myself":
-                    param = "me";
-                    i--;
-                case "player":
-                    final Set<UUID> playersToMatch = new HashSet<>();
-                    for(final String ply : param.split(",")) {
-                        if (ply.equals("self") || ply.equals("myself") || ply.equals("me"))
-                            playersToMatch.add(myUUID);
-                        else
-                            playersToMatch.add(plugin.getServer().getPlayer(param).getUniqueId());
-                    }
-
-                    final int size = playersToMatch.size();
-                    if(size == 1)
-                        queryParams.query.put("user_uuid", playersToMatch.iterator().next());
-                    else if(size > 1)
-                        queryParams.query.put("user_uuid", new BasicDBObject("$in", playersToMatch.toArray(new UUID[size])));
-                    break;
-                case "world":
-                    queryParams.worldSet = true;
-                    queryParams.setLocation.setWorld(plugin.getServer().getWorld(param));
-                    break;
-                case "loc":
-                case "location":
-                    String[] locs = param.split("[,;]+");
-                    if(locs.length == 2) {
-                        queryParams.setLocation.setX(Integer.parseInt(locs[0]));
-                        queryParams.setLocation.setZ(Integer.parseInt(locs[1]));
-                    } else if(locs.length == 3) {
-                        queryParams.setLocation.setX(Integer.parseInt(locs[0]));
-                        queryParams.setLocation.setY(Integer.parseInt(locs[1]));
-                        queryParams.setLocation.setZ(Integer.parseInt(locs[2]));
-                    }
-                    break;
-                case "area":
-                    queryParams.area = Integer.parseInt(param);
-                    break;
-                case "since":
-                    //All newer than X time
-                    break;
-                case "before":
-                    //All older than X time
-                    break;
-                case "last":
-                    i--; //Ignore!
-                    break;
-                case "rollback":
-                    queryParams.performMode = QueryParams.PerformMode.ROLLBACK;
-                    i--;
-                    break;
-                case "redo":
-                    queryParams.performMode = QueryParams.PerformMode.REDO;
-                    i--;
-                    break;
-                case "sum":
-                    switch(param.toLowerCase()) {
-                        case "player":
-                        case "players":
-                            queryParams.aggregationMode = QueryParams.AggregationMode.PLAYERS;
-                            break;
-                        case "block":
-                        case "blocks":
-                            queryParams.aggregationMode = QueryParams.AggregationMode.BLOCKS;
-                            break;
-                    }
-                    break;
+        final long now = System.currentTimeMillis();
+        try {
+            for(int i = 0; i < argsRaw.length; i += 2) {
+                String arg = argsRaw[i];
+                String param = (i < argsRaw.length - 1) ? argsRaw[i + 1] : "";
+
+                switch(arg.toLowerCase()) {
+                    case "self":
+                    case "me":
+                    case "myself":
+                        param = "me";
+                        i--;
+                    case "player":
+                        //Only collected here, looking them up may go to the database
+                        queryParams.players = new ArrayList<>();
+                        queryParams.self = null;
+                        for(final String ply : param.split(",")) {
+                            if (ply.equals("self") || ply.equals("myself") || ply.equals("me")) {
+                                if(commandSender instanceof Player)
+                                    queryParams.self = myUUID;
+                                else
+                                    commandSender.sendMessage("The console has no actions of its own");
+                            } else {
+                                queryParams.players.add(ply);
+                            }
+                        }
+                        break;
+                    case "world":
+                        queryParams.worldSet = true;
+                        queryParams.setLocation.setWorld(plugin.getServer().getWorld(param));
+                        break;
+                    case "loc":
+                    case "location":
+                        String[] locs = param.split("[,;]+");
+                        if(locs.length == 2) {
+                            queryParams.setLocation.setX(Integer.parseInt(locs[0]));
+                            queryParams.setLocation.setZ(Integer.parseInt(locs[1]));
+                        } else if(locs.length == 3) {
+                            queryParams.setLocation.setX(Integer.parseInt(locs[0]));
+                            queryParams.setLocation.setY(Integer.parseInt(locs[1]));
+                            queryParams.setLocation.setZ(Integer.parseInt(locs[2]));
+                        }
+                        break;
+                    case "area":
+                        queryParams.area = Integer.parseInt(param);
+                        break;
+                    case "since":
+                        //All newer than X time
+                        queryParams.since = TimeUtils.parseTime(param, now);
+                        break;
+                    case "before":
+                        //All older than X time
+                        queryParams.before = TimeUtils.parseTime(param, now);
+                        break;
+                    case "explain":
+                        queryParams.explain = true;
+                        i--;
+                        break;
+                    case "page":
+                        queryParams.page = Math.max(1, Integer.parseInt(param));
+                        break;
+                    case "last":
+                        i--; //Ignore!
+                        break;
+                    case "rollback":
+                        queryParams.performMode = QueryParams.PerformMode.ROLLBACK;
+                        i--;
+                        break;
+                    case "redo":
+                        queryParams.performMode = QueryParams.PerformMode.REDO;
+                        i--;
+                        break;
+                    case "sum":
+                        switch(param.toLowerCase()) {
+                            case "player":
+                            case "players":
+                                queryParams.aggregationMode = QueryParams.AggregationMode.PLAYERS;
+                                break;
+                            case "block":
+                            case "blocks":
+                                queryParams.aggregationMode = QueryParams.AggregationMode.BLOCKS;
+                                break;
+                        }
+                        break;
+                }
             }
+        } catch (IllegalArgumentException e) {
+            commandSender.sendMessage("Invalid argument: " + e.getMessage());
+            return true;
         }
 
+        //The worker gets its own copy, it adds to the filter while the next command may already read the kept one
+        lastQueryParams.put(myUUID, queryParams);
+        final QueryParams finalQueryParams = queryParams.copy();
         try {
-            if (queryParams.aggregationMode == null) {
-                plugin.getQueryInterface().doNormalQuery(queryParams);
-            } else {
-                plugin.getQueryInterface().doAggregatedQuery(queryParams);
-            }
+            final QueryContext context = plugin.getQueryExecutor().submit(myUUID, new QueryExecutor.Query<Object>() {
+                @Override
+                protected Object run(QueryContext context) throws Exception {
+                    if (finalQueryParams.explain)
+                        return plugin.getQueryInterface().explainQuery(finalQueryParams, context);
+                    else if (finalQueryParams.aggregationMode == null)
+                        return plugin.getQueryInterface().doNormalQuery(finalQueryParams, context);
+                    else
+                        return plugin.getQueryInterface().doAggregatedQuery(finalQueryParams, context);
+                }
+
+                @Override
+                protected void deliver(Object result) {
+                    if (result instanceof List)
+                        for (Object line : (List<?>) result)
+                            commandSender.sendMessage(line.toString());
+                    else if (result instanceof QueryInterface.AggregationResults)
+                        sendResults(commandSender, (QueryInterface.AggregationResults) result);
+                    else
+                        sendResults(commandSender, finalQueryParams, (QueryInterface.QueryResults) result);
+                }
+
+                @Override
+                protected void progress(String message) {
+                    commandSender.sendMessage(message);
+                }
+
+                @Override
+                protected void fail(Throwable cause) {
+                    if (!(cause instanceof QueryInterface.QueryException))
+                        plugin.getLogger().log(Level.WARNING, "Query failed", cause);
+                    commandSender.sendMessage(QueryExecutor.describeFailure(cause));
+                }
+            }, finalQueryParams.getPriority());
+            if (context.getQueuePosition() > 0)
+                commandSender.sendMessage("Query queued at position " + context.getQueuePosition());
         } catch (QueryInterface.QueryException e) {
             commandSender.sendMessage(e.getMessage());
         }
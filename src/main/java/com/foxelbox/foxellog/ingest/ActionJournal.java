@@ -0,0 +1,333 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal made of memory-mapped segment files.
+ * Every record stays on disk until it is acknowledged, segments are deleted once all their records are.
+ * Records are laid out as [int length][int crc32][payload], a zero length marks the end of a segment.
+ * Acknowledging a record negates its length in place, so a restart only replays the records that were not stored.
+ * Those marks are not forced to disk, after a crash some stored records may be replayed again.
+ */
+public class ActionJournal implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 8;
+
+    public static class Record {
+        public final long position;
+        public final byte[] payload;
+
+        private Record(long position, byte[] payload) {
+            this.position = position;
+            this.payload = payload;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean sealed = false;
+        private int writeOffset = 0;
+
+        private Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean followAppends;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final long firstAppendedSegment;
+    private Segment activeSegment = null;
+    private long nextSegmentId;
+
+    private Segment readSegment;
+    private int readOffset = 0;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] checksumBuffer = new byte[8192];
+    private final Logger logger;
+
+    /**
+     * @param followAppends whether {@link #poll()} should return records appended after opening or only the ones
+     *                      left over from earlier runs
+     */
+    public ActionJournal(File directory, int segmentSize, boolean followAppends, Logger logger) throws IOException {
+        this.directory = directory;
+        this.logger = logger;
+        this.segmentSize = segmentSize;
+        this.followAppends = followAppends;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory " + directory);
+
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final long[] ids = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+        }
+        Arrays.sort(ids);
+
+        long lastId = -1;
+        for (long id : ids) {
+            final File file = segmentFile(id);
+            final Segment segment = new Segment(id, file, (int) file.length());
+            segment.sealed = true;
+            segment.writeOffset = scan(segment);
+            lastId = id;
+            if (segment.pending.get() == 0)
+                deleteSegment(segment);
+            else
+                segments.put(id, segment);
+        }
+
+        nextSegmentId = lastId + 1;
+        firstAppendedSegment = nextSegmentId;
+        readSegment = segments.isEmpty() ? null : segments.firstEntry().getValue();
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%016x", id) + SEGMENT_SUFFIX);
+    }
+
+    private static long position(Segment segment, int offset) {
+        return (segment.id << 32) | offset;
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        for (int remaining = length; remaining > 0; ) {
+            final int chunk = Math.min(remaining, checksumBuffer.length);
+            source.get(checksumBuffer, 0, chunk);
+            crc.update(checksumBuffer, 0, chunk);
+            remaining -= chunk;
+        }
+        return (int) crc.getValue();
+    }
+
+    private int checksum(byte[] data, int offset, int length) {
+        crc.reset();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Counts the valid, unacknowledged records of a segment left over from an earlier run
+     * @return offset right behind the last valid record
+     */
+    private int scan(Segment segment) {
+        final ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length == 0 || length == Integer.MIN_VALUE || offset + HEADER_SIZE + Math.abs(length) > buffer.capacity())
+                break;
+            if (length < 0) {
+                offset += HEADER_SIZE - length; //Stored already
+                continue;
+            }
+            if (checksum(buffer, offset + HEADER_SIZE, length) != buffer.getInt(offset + 4))
+                break; //Torn write, nothing behind this can be trusted
+            segment.pending.incrementAndGet();
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private void rollSegment(int minimumSize) throws IOException {
+        final Segment previous = activeSegment;
+        final long id = nextSegmentId++;
+        activeSegment = new Segment(id, segmentFile(id), Math.max(segmentSize, minimumSize));
+        segments.put(id, activeSegment);
+
+        if (followAppends && readSegment == null)
+            readSegment = activeSegment;
+
+        if (previous != null) {
+            previous.buffer.force();
+            previous.sealed = true;
+            if (previous.pending.get() == 0 && previous != readSegment)
+                deleteSegment(previous);
+        }
+    }
+
+    /**
+     * Writes a record to the journal
+     * @return position to pass to {@link #acknowledge(long)} once the record is stored elsewhere
+     */
+    public long append(byte[] payload) throws IOException {
+        return append(payload, 0, payload.length);
+    }
+
+    /**
+     * Writes a record to the journal
+     * @return position to pass to {@link #acknowledge(long)} once the record is stored elsewhere
+     */
+    public synchronized long append(byte[] data, int dataOffset, int length) throws IOException {
+        final int size = HEADER_SIZE + length;
+        if (activeSegment == null || activeSegment.writeOffset + size + 4 > activeSegment.buffer.capacity())
+            rollSegment(size + 4);
+
+        final Segment segment = activeSegment;
+        final int offset = segment.writeOffset;
+        final MappedByteBuffer buffer = segment.buffer;
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(data, dataOffset, length);
+        buffer.putInt(offset + 4, checksum(data, dataOffset, length));
+        buffer.putInt(offset, length); //Length last, so readers never see a half-written record
+
+        segment.pending.incrementAndGet();
+        segment.writeOffset = offset + size;
+        return position(segment, offset);
+    }
+
+    /**
+     * Reads the next unread record, or returns null if there is none yet
+     */
+    public synchronized Record poll() {
+        while (readSegment != null) {
+            final ByteBuffer buffer = readSegment.buffer;
+            if (readOffset < readSegment.writeOffset) {
+                final int length = buffer.getInt(readOffset);
+                if (length < 0) {
+                    readOffset += HEADER_SIZE - length;
+                    continue;
+                }
+                final byte[] payload = new byte[length];
+                final ByteBuffer source = buffer.duplicate();
+                source.position(readOffset + HEADER_SIZE);
+                source.get(payload);
+
+                final Record record = new Record(position(readSegment, readOffset), payload);
+                readOffset += HEADER_SIZE + length;
+                return record;
+            }
+
+            if (!readSegment.sealed)
+                return null;
+
+            final Segment finished = readSegment;
+            final Map.Entry<Long, Segment> next = segments.higherEntry(finished.id);
+            if (finished.pending.get() == 0)
+                deleteSegment(finished);
+            if (next == null || (!followAppends && next.getKey() >= firstAppendedSegment)) {
+                readSegment = null;
+                return null;
+            }
+            readSegment = next.getValue();
+            readOffset = 0;
+        }
+        return null;
+    }
+
+    public void acknowledge(long position) {
+        final Segment segment = segments.get(position >>> 32);
+        if (segment == null)
+            return;
+        final int offset = (int) position;
+        final int length = segment.buffer.getInt(offset);
+        if (length > 0)
+            segment.buffer.putInt(offset, -length);
+        if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+            synchronized (this) {
+                if (segments.get(segment.id) == segment && segment.pending.get() == 0 && segment != readSegment)
+                    deleteSegment(segment);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close journal segment " + segment.file, e);
+        }
+        if (!segment.file.delete())
+            segment.file.deleteOnExit();
+    }
+
+    /**
+     * Number of records that were written but not acknowledged yet
+     */
+    public long getPendingCount() {
+        long pending = 0;
+        for (Segment segment : segments.values())
+            pending += segment.pending.get();
+        return pending;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized void force() {
+        if (activeSegment != null)
+            activeSegment.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            if (segment.pending.get() == 0) {
+                deleteSegment(segment);
+                continue;
+            }
+            segment.buffer.force();
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close journal segment " + segment.file, e);
+            }
+        }
+        segments.clear();
+        activeSegment = null;
+        readSegment = null;
+    }
+}
@@ -0,0 +1,386 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionCodec;
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.actions.BaseAction;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.foxelbox.foxellog.storage.PartitionRouter;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Moves actions from the event handlers into MongoDB.
+ * Records are encoded straight to BSON by their type's {@link ActionCodec} and inserted as raw documents into the
+ * partition of their time.
+ * Actions handed to the writer are written to a journal first and only removed from it once stored.
+ * Actions that do not fit in memory (full queue or saturated writer) go to the overflow journal and are read
+ * back from there when the writer has room. Actions spilled from a full queue are written as raw records to the
+ * spill journal instead, as the producers must not resolve users. Batches the writer gives up on while the database
+ * is down are moved to the overflow journal as well, so they are retried once it is back. All journals are replayed
+ * on the next start.
+ */
+public class ActionPipeline {
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long RESERVE_WAIT_MILLIS = 50;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    private final FoxelLog plugin;
+
+    private IngestQueue<ActionRecord> queue;
+    private BulkWriter bulkWriter;
+    private ActionJournal journal;
+    private ActionJournal overflowJournal;
+    private ActionJournal spillJournal;
+    private BulkWriter.Acknowledger journalAcknowledger;
+    private BulkWriter.Acknowledger overflowAcknowledger;
+    private BlockChangeCoalescer coalescer;
+    private DBCollection collection;
+
+    private Thread processingThread;
+    private volatile boolean running = false;
+
+    private final AtomicLong lostCount = new AtomicLong();
+
+    /**
+     * Gives access to the array behind the stream, so records can be journaled without copying them
+     */
+    private static class SpillBuffer extends ByteArrayOutputStream {
+        private SpillBuffer() {
+            super(256);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+
+    public ActionPipeline(FoxelLog plugin) {
+        this.plugin = plugin;
+    }
+
+    public void start() throws IOException {
+        final int capacity = Integer.parseInt(plugin.configuration.getValue("queue-capacity", "65536"));
+        final OverflowPolicy overflowPolicy = OverflowPolicy.getByName(plugin.configuration.getValue("queue-overflow-policy", "block"));
+        final long blockMillis = Long.parseLong(plugin.configuration.getValue("queue-block-timeout-ms", "5"));
+        final long lingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(plugin.configuration.getValue("queue-flush-latency-ms", "20")));
+        final int segmentSize = Integer.parseInt(plugin.configuration.getValue("spool-segment-size", "16777216"));
+        final long coalesceWindowMillis = Long.parseLong(plugin.configuration.getValue("coalesce-window-ms", "0"));
+        final int coalesceMaxEntries = Integer.parseInt(plugin.configuration.getValue("coalesce-max-entries", "65536"));
+
+        final File spoolFolder = new File(plugin.getDataFolder(), "spool");
+        journal = new ActionJournal(new File(spoolFolder, "journal"), segmentSize, false, plugin.getLogger());
+        overflowJournal = new ActionJournal(new File(spoolFolder, "overflow"), segmentSize, true, plugin.getLogger());
+        spillJournal = new ActionJournal(new File(spoolFolder, "spill"), segmentSize, true, plugin.getLogger());
+        journalAcknowledger = new JournalAcknowledger(journal, overflowJournal, plugin.getLogger());
+        overflowAcknowledger = new JournalAcknowledger(overflowJournal, overflowJournal, plugin.getLogger());
+
+        final IngestQueue.SlotFactory<ActionRecord> slotFactory = new IngestQueue.SlotFactory<ActionRecord>() {
+            @Override
+            public ActionRecord newSlot() {
+                return new ActionRecord();
+            }
+        };
+        queue = new IngestQueue<>(capacity, slotFactory, overflowPolicy, blockMillis, new IngestQueue.SpillHandler<ActionRecord>() {
+            private final SpillBuffer buffer = new SpillBuffer();
+            private final DataOutputStream out = new DataOutputStream(buffer);
+
+            @Override
+            public synchronized void spill(ActionRecord element) {
+                //Runs on the producer, so the record is stored raw and only encoded once the processor reads it back
+                try {
+                    buffer.reset();
+                    element.writeTo(out);
+                    spillJournal.append(buffer.array(), 0, buffer.size());
+                } catch (IOException e) {
+                    lost(e);
+                }
+            }
+        });
+
+        coalescer = (coalesceWindowMillis > 0) ? new BlockChangeCoalescer(coalesceWindowMillis, coalesceMaxEntries) : null;
+
+        final BulkWriter.Settings writerSettings = new BulkWriter.Settings();
+        writerSettings.threads = Integer.parseInt(plugin.configuration.getValue("writer-threads", "3"));
+        writerSettings.maxInFlight = Integer.parseInt(plugin.configuration.getValue("writer-max-inflight", "4"));
+        writerSettings.maxBatchSize = Integer.parseInt(plugin.configuration.getValue("writer-max-batch-size", "2000"));
+        writerSettings.maxBatchBytes = Integer.parseInt(plugin.configuration.getValue("writer-max-batch-bytes", "8388608"));
+        writerSettings.targetLatencyMillis = Long.parseLong(plugin.configuration.getValue("writer-target-latency-ms", "50"));
+        writerSettings.retryBaseMillis = Long.parseLong(plugin.configuration.getValue("writer-retry-base-ms", "100"));
+        writerSettings.retryMaxMillis = Long.parseLong(plugin.configuration.getValue("writer-retry-max-ms", "10000"));
+        collection = plugin.getMongoDB().getCollection(BaseAction.getCollection());
+        final PartitionRouter partitionRouter = plugin.getPartitionRouter();
+        bulkWriter = new BulkWriter(new BulkWriter.CollectionRouter() {
+            @Override
+            public DBCollection route(DBObject document) {
+                return partitionRouter.getCollection(((Date) document.get(StorageSchema.FIELD_DATE)).getTime());
+            }
+        }, plugin.getLogger(), writerSettings);
+
+        running = true;
+        processingThread = new Thread("FoxelLog queue processor") {
+            @Override
+            public void run() {
+                try {
+                    process(lingerNanos);
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Action processing stopped, queued actions are not stored anymore", e);
+                } catch (InterruptedException e) { }
+            }
+        };
+        processingThread.start();
+    }
+
+    /**
+     * Stops the pipeline. Everything not stored yet stays in the journals for the next start.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (processingThread != null) {
+                queue.wakeConsumer();
+                processingThread.join();
+            }
+        } catch (InterruptedException e) { }
+        if (bulkWriter != null)
+            bulkWriter.close(SHUTDOWN_TIMEOUT_MILLIS);
+        if (journal != null)
+            journal.close();
+        if (overflowJournal != null)
+            overflowJournal.close();
+        if (spillJournal != null)
+            spillJournal.close();
+    }
+
+    /**
+     * Queues a copy of the record, so callers can keep reusing theirs
+     */
+    public boolean offer(ActionRecord action) {
+        return running && queue.offer(action);
+    }
+
+    private void encode(ActionRecord action, BsonWriter writer) {
+        action.player = plugin.getPlayerIndex().getIndex(action.userMost, action.userLeast, action.userName);
+        //Fixed _id, so replaying an action that made it into the database already is a harmless duplicate
+        ActionCodec.forRecordType(action.type).encode(action, new ObjectId(), writer);
+    }
+
+    private void lost(IOException e) {
+        //Logged once and then every thousandth time, a failing disk would otherwise flood the log
+        final long lost = lostCount.incrementAndGet();
+        if (lost == 1 || lost % 1000 == 0)
+            plugin.getLogger().log(Level.SEVERE, "Could not spill action to disk, " + lost + " actions lost so far", e);
+    }
+
+
+    /**
+     * Reads up to one batch from a journal and submits it, using a reservation the caller already made
+     */
+    private boolean submitFromJournal(ActionJournal source, BulkWriter.Acknowledger acknowledger) {
+        final int batchSize = bulkWriter.getBatchSize();
+        final List<DBObject> batch = new ArrayList<>(batchSize);
+        long[] tickets = new long[batchSize];
+        ActionJournal.Record record;
+        while (batch.size() < batchSize && (record = source.poll()) != null) {
+            tickets[batch.size()] = record.position;
+            batch.add(RawDBCodecs.wrap(record.payload, 0, collection));
+        }
+        if (batch.isEmpty())
+            return false;
+        if (batch.size() < batchSize)
+            tickets = Arrays.copyOf(tickets, batch.size());
+        bulkWriter.submit(batch, tickets, acknowledger);
+        return true;
+    }
+
+    private void process(long lingerNanos) throws IOException, InterruptedException {
+        final BsonWriter writer = new BsonWriter(64 * 1024);
+        final ActionRecord record = new ActionRecord();
+        int[] offsets = new int[bulkWriter.getBatchSize()];
+        long[] spillTickets = new long[offsets.length];
+
+        //Whatever the last run did not get to store
+        while (running) {
+            if (!bulkWriter.tryReserve(RESERVE_WAIT_MILLIS))
+                continue;
+            if (!submitFromJournal(journal, journalAcknowledger)) {
+                bulkWriter.release();
+                break;
+            }
+        }
+
+        while (running) {
+            //Overflow first, those actions are older than anything in the queue
+            if (overflowJournal.getPendingCount() > 0 && bulkWriter.tryReserve(0)) {
+                if (!submitFromJournal(overflowJournal, overflowAcknowledger))
+                    bulkWriter.release();
+            }
+
+            final int batchSize = bulkWriter.getBatchSize();
+            long idleNanos = IDLE_WAIT_NANOS;
+            if (coalescer != null) {
+                //Do not sleep past the moment held back changes are due
+                final long heldMillis = coalescer.getMillisUntilNext(System.currentTimeMillis());
+                if (heldMillis >= 0)
+                    idleNanos = Math.min(idleNanos, TimeUnit.MILLISECONDS.toNanos(Math.max(1, heldMillis)));
+            }
+            final boolean spillPending = spillJournal.getPendingCount() > 0;
+            if (!spillPending && !queue.awaitBatch(batchSize, lingerNanos, idleNanos) && coalescer == null)
+                continue;
+
+            if (offsets.length < batchSize) {
+                offsets = new int[batchSize];
+                spillTickets = new long[batchSize];
+            }
+            writer.reset();
+            int count = 0;
+            //Spilled actions came in before the ones queued now
+            int spilled = 0;
+            ActionJournal.Record spilledRecord;
+            while (spillPending && count < batchSize && (spilledRecord = spillJournal.poll()) != null) {
+                spillTickets[spilled++] = spilledRecord.position;
+                try {
+                    record.readFrom(new DataInputStream(new ByteArrayInputStream(spilledRecord.payload)));
+                } catch (IOException e) {
+                    lost(e);
+                    continue;
+                }
+                offsets[count++] = writer.position();
+                encode(record, writer);
+            }
+            for (int polled = 0; count < batchSize && polled < batchSize && queue.poll(record); polled++) {
+                if (coalescer != null && coalescer.absorb(record))
+                    continue;
+                offsets[count++] = writer.position();
+                encode(record, writer);
+            }
+            if (coalescer != null) {
+                final long now = System.currentTimeMillis();
+                while (count < batchSize && coalescer.poll(now, record)) {
+                    offsets[count++] = writer.position();
+                    encode(record, writer);
+                }
+            }
+            if (count == 0) {
+                acknowledge(spillJournal, spillTickets, spilled);
+                continue;
+            }
+
+            //One array for the whole batch, the documents of the batch are views into it
+            final byte[] data = writer.toByteArray();
+
+            if (!bulkWriter.tryReserve(RESERVE_WAIT_MILLIS)) {
+                //Writer is saturated, keep the heap flat by moving the batch to disk
+                for (int i = 0; i < count; i++)
+                    overflowJournal.append(data, offsets[i], documentLength(data, offsets, count, i));
+                acknowledge(spillJournal, spillTickets, spilled);
+                continue;
+            }
+
+            final List<DBObject> batch = new ArrayList<>(count);
+            final long[] tickets = new long[count];
+            for (int i = 0; i < count; i++) {
+                tickets[i] = journal.append(data, offsets[i], documentLength(data, offsets, count, i));
+                batch.add(RawDBCodecs.wrap(data, offsets[i], collection));
+            }
+            acknowledge(spillJournal, spillTickets, spilled);
+            bulkWriter.recordBatchBytes(data.length, count);
+            bulkWriter.submit(batch, tickets, journalAcknowledger);
+        }
+
+        //Anything still queued or held back goes to disk, it will be stored on the next start
+        while (queue.poll(record)) {
+            if (coalescer != null && coalescer.absorb(record))
+                continue;
+            writer.reset();
+            encode(record, writer);
+            overflowJournal.append(writer.toByteArray());
+        }
+        while (coalescer != null && coalescer.pollAll(record)) {
+            writer.reset();
+            encode(record, writer);
+            overflowJournal.append(writer.toByteArray());
+        }
+        overflowJournal.force();
+        journal.force();
+    }
+
+    /**
+     * Releases spilled records once their encoded documents are journaled elsewhere
+     */
+    private static void acknowledge(ActionJournal source, long[] tickets, int count) {
+        for (int i = 0; i < count; i++)
+            source.acknowledge(tickets[i]);
+    }
+
+    private static int documentLength(byte[] data, int[] offsets, int count, int index) {
+        return ((index + 1 < count) ? offsets[index + 1] : data.length) - offsets[index];
+    }
+
+    public IngestQueue<ActionRecord> getQueue() {
+        return queue;
+    }
+
+    public BulkWriter getBulkWriter() {
+        return bulkWriter;
+    }
+
+    public ActionJournal getJournal() {
+        return journal;
+    }
+
+    public ActionJournal getOverflowJournal() {
+        return overflowJournal;
+    }
+
+    public ActionJournal getSpillJournal() {
+        return spillJournal;
+    }
+
+    /**
+     * Number of actions that could neither be queued nor spilled to disk
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+    /**
+     * @return the coalescer or null if coalescing is turned off
+     */
+    public BlockChangeCoalescer getCoalescer() {
+        return coalescer;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.storage.StorageSchema;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds block changes back for a short window, so repeated changes of the same block by the same user end up as
+ * one action (A to B to C becomes A to C) or none at all (A to B to A).
+ * Changes are only joined if each one starts where the previous one ended, so anything that happened to the block
+ * in between keeps the chain apart and rollbacks stay correct.
+ * Only used by the queue processor thread.
+ */
+public class BlockChangeCoalescer {
+    private static class Key {
+        private final long userMost, userLeast;
+        private final int world;
+        private final long blockKey;
+
+        private Key(ActionRecord record) {
+            userMost = record.userMost;
+            userLeast = record.userLeast;
+            world = record.world;
+            blockKey = StorageSchema.packBlockKey(record.x, record.y, record.z);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return blockKey == key.blockKey && world == key.world && userLeast == key.userLeast && userMost == key.userMost;
+        }
+
+        @Override
+        public int hashCode() {
+            final long hash = blockKey * 31 + world + userLeast * 17 + userMost;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    private static class Entry {
+        private final ActionRecord record = new ActionRecord();
+        private long expiresAt;
+    }
+
+    private final long windowMillis;
+    private final int maxEntries;
+
+    private final LinkedHashMap<Key, Entry> pending = new LinkedHashMap<>();
+    private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+    private final ArrayDeque<Entry> freeEntries = new ArrayDeque<>();
+
+    private volatile int held = 0;
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    public BlockChangeCoalescer(long windowMillis, int maxEntries) {
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    private Entry newEntry(ActionRecord record) {
+        final Entry entry = freeEntries.isEmpty() ? new Entry() : freeEntries.poll();
+        entry.record.copyFrom(record);
+        entry.expiresAt = record.time + windowMillis;
+        return entry;
+    }
+
+    /**
+     * @return true if the record was taken in, false if it is not a block change and has to be written as it is
+     */
+    public boolean absorb(ActionRecord record) {
+        if (record.type != ActionRecord.TYPE_BLOCK)
+            return false;
+
+        final Key key = new Key(record);
+        final Entry entry = pending.get(key);
+        if (entry == null) {
+            pending.put(key, newEntry(record));
+        } else if (entry.record.materialTo == record.materialFrom) {
+            entry.record.materialTo = record.materialTo;
+            entry.record.time = record.time;
+            if (entry.record.materialFrom == entry.record.materialTo) {
+                //Saves the held back change and this one, earlier links were counted as merged
+                pending.remove(key);
+                cancelledCount.addAndGet(2);
+                freeEntries.add(entry);
+            } else {
+                mergedCount.incrementAndGet();
+            }
+        } else {
+            //Something else changed the block in between, the chain ends here
+            pending.remove(key);
+            ready.add(entry);
+            pending.put(key, newEntry(record));
+        }
+
+        if (pending.size() > maxEntries) {
+            final Iterator<Entry> oldest = pending.values().iterator();
+            ready.add(oldest.next());
+            oldest.remove();
+        }
+        held = pending.size() + ready.size();
+        return true;
+    }
+
+    /**
+     * Takes the next change that is done waiting
+     * @return false if there is none
+     */
+    public boolean poll(long nowMillis, ActionRecord target) {
+        Entry entry = ready.poll();
+        if (entry == null) {
+            final Iterator<Entry> oldest = pending.values().iterator();
+            if (!oldest.hasNext())
+                return false;
+            entry = oldest.next();
+            if (entry.expiresAt > nowMillis)
+                return false;
+            oldest.remove();
+        }
+        target.copyFrom(entry.record);
+        freeEntries.add(entry);
+        held = pending.size() + ready.size();
+        return true;
+    }
+
+    /**
+     * Takes the next change, waiting or not, for shutdown
+     */
+    public boolean pollAll(ActionRecord target) {
+        return poll(Long.MAX_VALUE, target);
+    }
+
+    /**
+     * @return milliseconds until the next change is done waiting, 0 if one is ready, -1 if nothing is held back
+     */
+    public long getMillisUntilNext(long nowMillis) {
+        if (!ready.isEmpty())
+            return 0;
+        final Iterator<Entry> oldest = pending.values().iterator();
+        if (!oldest.hasNext())
+            return -1;
+        return Math.max(0, oldest.next().expiresAt - nowMillis);
+    }
+
+    public int size() {
+        return held;
+    }
+
+    /**
+     * @return number of documents saved by joining changes
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    /**
+     * @return number of documents saved by dropping changes that were undone
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.mongodb.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs unordered bulk inserts on a small worker pool, keeping several of them in flight.
+ * The batch size follows observed round-trip latency and is capped by the average document size.
+ * Each document goes to the collection the router picks for it, a batch spanning several is split up.
+ */
+public class BulkWriter {
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int DUPLICATE_KEY_LEGACY = 11001;
+
+    private static final int MIN_BATCH_SIZE = 16;
+    private static final int MAX_DOCUMENT_ATTEMPTS = 8;
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+
+    public interface Acknowledger {
+        /**
+         * Called once the document belonging to the ticket is stored or was given up on
+         */
+        void acknowledge(long ticket);
+
+        /**
+         * Called instead of {@link #acknowledge(long)} for a document whose batch failed too often for now,
+         * it has to be handed back to be stored later
+         */
+        void defer(long ticket, DBObject document);
+    }
+
+    public interface CollectionRouter {
+        DBCollection route(DBObject document);
+    }
+
+    public static class Settings {
+        public int threads = 3;
+        public int maxInFlight = 4;
+        public int maxBatchSize = 2000;
+        public int maxBatchBytes = 8 * 1024 * 1024;
+        public long targetLatencyMillis = 50;
+        /** First wait before a failed batch is tried again, doubled for every further attempt */
+        public long retryBaseMillis = 100;
+        public long retryMaxMillis = 10000;
+    }
+
+    private final CollectionRouter router;
+    private final Logger logger;
+    private final Settings settings;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Semaphore inFlight;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger batchSize = new AtomicInteger(100);
+    private volatile int averageDocumentBytes = 256;
+    private volatile long lastLatencyMillis = 0;
+
+    private final AtomicLong insertedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+
+    public BulkWriter(CollectionRouter router, Logger logger, Settings settings) {
+        this.router = router;
+        this.logger = logger;
+        this.settings = settings;
+        this.inFlight = new Semaphore(settings.maxInFlight);
+        this.executor = new ScheduledThreadPoolExecutor(settings.threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FoxelLog writer #" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Number of documents the next batch should contain, based on latency and document size
+     */
+    public int getBatchSize() {
+        final int byByteBudget = Math.max(MIN_BATCH_SIZE, settings.maxBatchBytes / Math.max(1, averageDocumentBytes));
+        return Math.min(batchSize.get(), byByteBudget);
+    }
+
+    /**
+     * Called by the single consumer thread with the encoded size of a batch it is about to submit
+     */
+    public void recordBatchBytes(int bytes, int documents) {
+        if (documents > 0)
+            averageDocumentBytes = (averageDocumentBytes * 7 + bytes / documents) / 8;
+    }
+
+    /**
+     * Reserves room for one more batch in flight, waiting up to timeoutMillis for it.
+     * Every successful reservation must be followed by {@link #submit(List, long[], Acknowledger)}.
+     */
+    public boolean tryReserve(long timeoutMillis) throws InterruptedException {
+        return !closed && inFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives back a reservation that ended up not being used
+     */
+    public void release() {
+        inFlight.release();
+    }
+
+    /**
+     * Hands a batch to the worker pool, using a reservation from {@link #tryReserve(long)}
+     * @param tickets one ticket per document, handed to the acknowledger once the document is stored
+     */
+    public void submit(List<DBObject> documents, long[] tickets, Acknowledger acknowledger) {
+        //Usually all of them go to the same collection, only batches crossing a partition boundary are split
+        final Map<DBCollection, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            final DBCollection collection = router.route(documents.get(i));
+            List<Integer> group = groups.get(collection);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(collection, group);
+            }
+            group.add(i);
+        }
+
+        if (groups.isEmpty()) {
+            inFlight.release();
+            return;
+        }
+        final Reservation reservation = new Reservation(groups.size());
+        for (Map.Entry<DBCollection, List<Integer>> group : groups.entrySet()) {
+            final List<Integer> indices = group.getValue();
+            final List<DBObject> groupDocuments;
+            final long[] groupTickets;
+            if (groups.size() == 1) {
+                groupDocuments = documents;
+                groupTickets = tickets;
+            } else {
+                groupDocuments = new ArrayList<>(indices.size());
+                groupTickets = new long[indices.size()];
+                for (int i = 0; i < indices.size(); i++) {
+                    groupDocuments.add(documents.get(indices.get(i)));
+                    groupTickets[i] = tickets[indices.get(i)];
+                }
+            }
+            try {
+                executor.execute(new BatchTask(group.getKey(), reservation, groupDocuments, groupTickets, acknowledger, 0));
+            } catch (RejectedExecutionException e) {
+                reservation.release();
+            }
+        }
+    }
+
+    private void adaptBatchSize(int documents, long latencyMillis) {
+        lastLatencyMillis = latencyMillis;
+        final int current = batchSize.get();
+        if (documents < current / 2)
+            return; //Partial batches say nothing about whether bigger ones would be fine
+
+        final int next;
+        if (latencyMillis > settings.targetLatencyMillis * 2)
+            next = Math.max(MIN_BATCH_SIZE, current / 2);
+        else if (latencyMillis < settings.targetLatencyMillis)
+            next = Math.min(settings.maxBatchSize, current + Math.max(MIN_BATCH_SIZE, current / 4));
+        else
+            return;
+        batchSize.compareAndSet(current, next);
+    }
+
+    private long backoffMillis(int attempt) {
+        final long cap = Math.min(settings.retryMaxMillis, settings.retryBaseMillis << Math.min(attempt, 16));
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    /**
+     * Runs one unordered bulk insert, throwing whatever the driver throws
+     */
+    protected void insert(DBCollection collection, List<DBObject> documents) {
+        final BulkWriteOperation bulkWriteOperation = collection.initializeUnorderedBulkOperation();
+        for (DBObject document : documents)
+            bulkWriteOperation.insert(document);
+        bulkWriteOperation.execute();
+    }
+
+    /**
+     * One reservation shared by the parts of a split batch, given back when the last of them is done
+     */
+    private class Reservation {
+        private final AtomicInteger parts;
+
+        private Reservation(int parts) {
+            this.parts = new AtomicInteger(parts);
+        }
+
+        private void release() {
+            if (parts.decrementAndGet() == 0)
+                inFlight.release();
+        }
+    }
+
+    private class BatchTask implements Runnable {
+        private final DBCollection collection;
+        private final Reservation reservation;
+        private final List<DBObject> documents;
+        private final long[] tickets;
+        private final Acknowledger acknowledger;
+        private final int attempt;
+
+        private BatchTask(DBCollection collection, Reservation reservation, List<DBObject> documents, long[] tickets, Acknowledger acknowledger, int attempt) {
+            this.collection = collection;
+            this.reservation = reservation;
+            this.documents = documents;
+            this.tickets = tickets;
+            this.acknowledger = acknowledger;
+            this.attempt = attempt;
+        }
+
+        private void acknowledge(int index) {
+            try {
+                acknowledger.acknowledge(tickets[index]);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not acknowledge stored action", e);
+            }
+        }
+
+        private void defer(int index) {
+            try {
+                acknowledger.defer(tickets[index], documents.get(index));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not hand back deferred action", e);
+            }
+        }
+
+        private void retry(List<DBObject> retryDocuments, long[] retryTickets) {
+            if (closed) {
+                //Left unacknowledged, so they are picked up again from the journal on the next start
+                reservation.release();
+                return;
+            }
+            retriedCount.addAndGet(retryDocuments.size());
+            try {
+                executor.schedule(new BatchTask(collection, reservation, retryDocuments, retryTickets, acknowledger, attempt + 1), backoffMillis(attempt), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                reservation.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                insert(collection, documents);
+            } catch (BulkWriteException e) {
+                adaptBatchSize(documents.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+                final boolean[] retry = new boolean[documents.size()];
+                int retryCount = 0;
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() == DUPLICATE_KEY || error.getCode() == DUPLICATE_KEY_LEGACY)
+                        continue; //Already stored by an earlier attempt
+                    if (attempt + 1 >= MAX_DOCUMENT_ATTEMPTS) {
+                        logger.warning("Dropping action after " + MAX_DOCUMENT_ATTEMPTS + " attempts: " + error.getMessage());
+                        failedCount.incrementAndGet();
+                        continue;
+                    }
+                    retry[error.getIndex()] = true;
+                    retryCount++;
+                }
+                insertedCount.addAndGet(documents.size() - e.getWriteErrors().size());
+
+                final List<DBObject> retryDocuments = new ArrayList<>(retryCount);
+                final long[] retryTickets = new long[retryCount];
+                for (int i = 0; i < retry.length; i++) {
+                    if (retry[i]) {
+                        retryTickets[retryDocuments.size()] = tickets[i];
+                        retryDocuments.add(documents.get(i));
+                    } else {
+                        acknowledge(i);
+                    }
+                }
+
+                if (retryDocuments.isEmpty())
+                    reservation.release();
+                else
+                    retry(retryDocuments, retryTickets);
+                return;
+            } catch (MongoException e) {
+                //Connection trouble or similar, nothing of this batch is known to be stored
+                lastLatencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                batchSize.set(Math.max(MIN_BATCH_SIZE, batchSize.get() / 2));
+                if (attempt + 1 >= MAX_BATCH_ATTEMPTS) {
+                    //Handed back to be tried again later, the slot is free for other batches meanwhile
+                    logger.log(Level.WARNING, "Deferring bulk insert of " + documents.size() + " actions after " + MAX_BATCH_ATTEMPTS + " attempts", e);
+                    deferredCount.addAndGet(documents.size());
+                    for (int i = 0; i < tickets.length; i++)
+                        defer(i);
+                    reservation.release();
+                    return;
+                }
+                logger.log(Level.WARNING, "Bulk insert of " + documents.size() + " actions failed, retrying", e);
+                retry(documents, tickets);
+                return;
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Dropping " + documents.size() + " actions", e);
+                failedCount.addAndGet(documents.size());
+                for (int i = 0; i < tickets.length; i++)
+                    acknowledge(i);
+                reservation.release();
+                return;
+            }
+
+            adaptBatchSize(documents.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            insertedCount.addAndGet(documents.size());
+            for (int i = 0; i < tickets.length; i++)
+                acknowledge(i);
+            reservation.release();
+        }
+    }
+
+    /**
+     * Stops accepting batches and waits for the ones in flight to finish
+     */
+    public void close(long timeoutMillis) {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!inFlight.tryAcquire(settings.maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS))
+                logger.warning("Gave up waiting for " + (settings.maxInFlight - inFlight.availablePermits()) + " action batches");
+        } catch (InterruptedException e) { }
+        executor.shutdownNow();
+    }
+
+    public int getInFlightBatches() {
+        return settings.maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    public long getInsertedCount() {
+        return insertedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of actions whose batch failed too often and that were handed back to be stored later
+     */
+    public long getDeferredCount() {
+        return deferredCount.get();
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated ring buffer for many producers (event handlers) and one consumer (the writer thread).
+ * Slots are claimed through per-slot sequence numbers and elements are copied in and out of preallocated slot
+ * objects, so neither side allocates.
+ */
+public class IngestQueue<E extends IngestQueue.Slot<E>> {
+    public interface Slot<E> {
+        void copyFrom(E source);
+    }
+
+    public interface SlotFactory<E> {
+        E newSlot();
+    }
+
+    public interface SpillHandler<E> {
+        void spill(E element);
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final OverflowPolicy overflowPolicy;
+    private final long blockNanos;
+    private final SpillHandler<E> spillHandler;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private volatile Thread waiter = null;
+    private volatile int wakeThreshold = 1;
+
+    public IngestQueue(int capacity, SlotFactory<E> slotFactory, OverflowPolicy overflowPolicy, long blockMillis, SpillHandler<E> spillHandler) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("Queue capacity must be at least 2");
+        if (overflowPolicy == OverflowPolicy.SPILL && spillHandler == null)
+            throw new IllegalArgumentException("Spill policy requires a spill handler");
+
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new Object[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            slots[i] = slotFactory.newSlot();
+            sequences.set(i, i);
+        }
+
+        this.overflowPolicy = overflowPolicy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        this.spillHandler = spillHandler;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E slot(int index) {
+        return (E) slots[index];
+    }
+
+    private boolean tryEnqueue(E element) {
+        long pos = tail.get();
+        while (true) {
+            final int index = (int) pos & mask;
+            final long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slot(index).copyFrom(element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @param target receives a copy of the dequeued element, may be null to just discard it
+     */
+    private boolean tryDequeue(E target) {
+        long pos = head.get();
+        while (true) {
+            final int index = (int) pos & mask;
+            final long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    if (target != null)
+                        target.copyFrom(slot(index));
+                    sequences.set(index, pos + capacity);
+                    return true;
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    private void signalConsumer(boolean force) {
+        final Thread thread = waiter;
+        if (thread != null && (force || size() >= wakeThreshold))
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues a copy of an element, applying the overflow policy if the buffer is full.
+     * The element itself can be reused as soon as this returns.
+     * @return false if the element itself could not be queued or spilled
+     */
+    public boolean offer(E element) {
+        if (tryEnqueue(element)) {
+            signalConsumer(false);
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case SPILL:
+                spillHandler.spill(element);
+                spilledCount.incrementAndGet();
+                return true;
+            case BLOCK:
+                blockedCount.incrementAndGet();
+                final long deadline = System.nanoTime() + blockNanos;
+                do {
+                    signalConsumer(true);
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (tryEnqueue(element)) {
+                        signalConsumer(false);
+                        return true;
+                    }
+                } while (System.nanoTime() - deadline < 0);
+                //Still full, make room like DROP_OLDEST does
+            case DROP_OLDEST:
+                while (!tryEnqueue(element)) {
+                    if (tryDequeue(null))
+                        droppedCount.incrementAndGet();
+                }
+                signalConsumer(false);
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the oldest element into target and removes it from the queue
+     * @return false if the queue was empty
+     */
+    public boolean poll(E target) {
+        return tryDequeue(target);
+    }
+
+    /**
+     * Parks the consumer until either batchSize elements are queued or lingerNanos have passed since the
+     * first element showed up. Gives up after idleNanos if nothing arrives at all.
+     * @return true if there is anything to drain
+     */
+    public boolean awaitBatch(int batchSize, long lingerNanos, long idleNanos) {
+        if (size() >= batchSize)
+            return true;
+
+        final Thread current = Thread.currentThread();
+        try {
+            if (isEmpty()) {
+                wakeThreshold = 1;
+                waiter = current;
+                if (isEmpty())
+                    LockSupport.parkNanos(this, idleNanos);
+                if (isEmpty())
+                    return false;
+            }
+
+            final long deadline = System.nanoTime() + lingerNanos;
+            long remaining = lingerNanos;
+            while (remaining > 0 && size() < batchSize) {
+                wakeThreshold = batchSize;
+                waiter = current;
+                if (size() >= batchSize)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } finally {
+            waiter = null;
+        }
+        return !isEmpty();
+    }
+
+    /**
+     * Wakes up a consumer parked in {@link #awaitBatch(int, long, long)}
+     */
+    public void wakeConsumer() {
+        signalConsumer(true);
+    }
+
+    public int size() {
+        final long size = tail.get() - head.get();
+        if (size < 0)
+            return 0;
+        return (int) Math.min(size, capacity);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+}
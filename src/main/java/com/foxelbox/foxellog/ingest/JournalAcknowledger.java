@@ -0,0 +1,59 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.mongodb.DBObject;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes stored documents from the journal they were read from.
+ * Deferred documents are appended to the overflow journal, which the pipeline keeps reading while it runs, and only
+ * then removed from their journal, so they are neither lost nor left waiting for the next start.
+ */
+public class JournalAcknowledger implements BulkWriter.Acknowledger {
+    private final ActionJournal source;
+    private final ActionJournal overflow;
+    private final Logger logger;
+
+    public JournalAcknowledger(ActionJournal source, ActionJournal overflow, Logger logger) {
+        this.source = source;
+        this.overflow = overflow;
+        this.logger = logger;
+    }
+
+    @Override
+    public void acknowledge(long ticket) {
+        source.acknowledge(ticket);
+    }
+
+    @Override
+    public void defer(long ticket, DBObject document) {
+        final RawDBObject raw = (RawDBObject) document;
+        try {
+            overflow.append(raw.getData(), raw.getDataOffset(), raw.getBSONSize());
+        } catch (IOException e) {
+            //Still in the source journal, so it is replayed on the next start
+            logger.log(Level.WARNING, "Could not move deferred action to the overflow journal", e);
+            return;
+        }
+        source.acknowledge(ticket);
+    }
+}
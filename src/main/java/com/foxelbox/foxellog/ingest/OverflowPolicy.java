@@ -0,0 +1,40 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+public enum OverflowPolicy {
+    /** Park the producer for a short while, then drop the oldest queued action */
+    BLOCK,
+    /** Drop the oldest queued action and count it */
+    DROP_OLDEST,
+    /** Hand the action to the spill handler */
+    SPILL;
+
+    public static OverflowPolicy getByName(String name) {
+        switch (name.toLowerCase()) {
+            case "block":
+                return BLOCK;
+            case "drop":
+            case "drop-oldest":
+            case "drop_oldest":
+                return DROP_OLDEST;
+            case "spill":
+                return SPILL;
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + name);
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers players, so actions can refer to them by a small int instead of a UUID.
+ * The numbers and the last known name of every player are stored in the database, lookups are cached both ways.
+ */
+public class PlayerIndex {
+    public static class Entry {
+        public final int index;
+        public final UUID uuid;
+        private volatile String name;
+
+        private Entry(int index, UUID uuid, String name) {
+            this.index = index;
+            this.uuid = uuid;
+            this.name = name;
+        }
+
+        /**
+         * @return the name the player had when last seen, may be null
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final DBCollection collection;
+    private final ConcurrentHashMap<UUID, Entry> entriesByUUID = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Entry> entriesByIndex = new ConcurrentHashMap<>();
+
+    public PlayerIndex(DBCollection collection) {
+        this.collection = collection;
+        collection.createIndex(new BasicDBObject(StorageSchema.PLAYER_UUID, 1), new BasicDBObject("unique", true));
+        collection.createIndex(new BasicDBObject(StorageSchema.PLAYER_NAME_LOWER, 1));
+    }
+
+    private Entry cache(DBObject document) {
+        if (document == null)
+            return null;
+        final Entry entry = new Entry(((Number) document.get(StorageSchema.ID)).intValue(), (UUID) document.get(StorageSchema.PLAYER_UUID), (String) document.get(StorageSchema.PLAYER_NAME));
+        final Entry existing = entriesByUUID.putIfAbsent(entry.uuid, entry);
+        if (existing != null)
+            return existing;
+        entriesByIndex.put(entry.index, entry);
+        return entry;
+    }
+
+    /**
+     * Looks up a player, adding it to the dictionary if it is new and updating the name snapshot if it changed.
+     * Only goes to the database for players not seen since the start.
+     */
+    public int getIndex(UUID uuid, String name) {
+        Entry entry = entriesByUUID.get(uuid);
+        if (entry == null)
+            entry = addPlayer(uuid, name);
+        if (name != null && !name.equals(entry.name)) {
+            entry.name = name;
+            collection.update(new BasicDBObject(StorageSchema.ID, entry.index), new BasicDBObject("$set",
+                    new BasicDBObject(StorageSchema.PLAYER_NAME, name).append(StorageSchema.PLAYER_NAME_LOWER, name.toLowerCase())));
+        }
+        return entry.index;
+    }
+
+    public int getIndex(long uuidMost, long uuidLeast, String name) {
+        return getIndex(new UUID(uuidMost, uuidLeast), name);
+    }
+
+    /**
+     * Like {@link #getIndex(UUID, String)}, but leaves the stored name of a known player alone.
+     * For actions read back, whose name is the one the player had back then.
+     */
+    public int getIndexKeepingName(long uuidMost, long uuidLeast, String name) {
+        final UUID uuid = new UUID(uuidMost, uuidLeast);
+        final Entry entry = entriesByUUID.get(uuid);
+        return (entry != null) ? entry.index : addPlayer(uuid, name).index;
+    }
+
+    private synchronized Entry addPlayer(UUID uuid, String name) {
+        Entry entry = getEntry(uuid);
+        while (entry == null) {
+            final DBCursor last = collection.find().sort(new BasicDBObject(StorageSchema.ID, -1)).limit(1);
+            final int next = last.hasNext() ? ((Number) last.next().get(StorageSchema.ID)).intValue() + 1 : 0;
+            last.close();
+
+            final BasicDBObject document = new BasicDBObject(StorageSchema.ID, next).append(StorageSchema.PLAYER_UUID, uuid);
+            if (name != null)
+                document.append(StorageSchema.PLAYER_NAME, name).append(StorageSchema.PLAYER_NAME_LOWER, name.toLowerCase());
+            try {
+                collection.insert(document);
+                entry = cache(document);
+            } catch (DuplicateKeyException e) {
+                //Someone else sharing the database was faster, either with this player or with the number
+                entry = getEntry(uuid);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return the player's entry or null if it never was added
+     */
+    public Entry getEntry(UUID uuid) {
+        final Entry entry = entriesByUUID.get(uuid);
+        if (entry != null)
+            return entry;
+        return cache(collection.findOne(new BasicDBObject(StorageSchema.PLAYER_UUID, uuid)));
+    }
+
+    /**
+     * @return the entry with that number or null if it does not exist
+     */
+    public Entry getEntry(int index) {
+        final Entry entry = entriesByIndex.get(index);
+        if (entry != null)
+            return entry;
+        return cache(collection.findOne(new BasicDBObject(StorageSchema.ID, index)));
+    }
+
+    /**
+     * Finds a player by its last known name, ignoring case
+     * @return the entry or null if no player had that name
+     */
+    public Entry getEntryByName(String name) {
+        final String lowerName = name.toLowerCase();
+        for (Entry entry : entriesByUUID.values()) {
+            final String entryName = entry.name;
+            if (entryName != null && entryName.toLowerCase().equals(lowerName))
+                return entry;
+        }
+        return cache(collection.findOne(new BasicDBObject(StorageSchema.PLAYER_NAME_LOWER, lowerName)));
+    }
+
+    public String getName(int index) {
+        final Entry entry = getEntry(index);
+        return entry == null ? null : entry.name;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import org.bukkit.World;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers worlds, so actions can refer to them by a small int.
+ * The numbers are stored in the database and shared by everything using it.
+ */
+public class WorldIndex {
+    private final DBCollection collection;
+    private final ConcurrentHashMap<String, Integer> indexByName = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[0];
+
+    public WorldIndex(DBCollection collection) {
+        this.collection = collection;
+        collection.createIndex(new BasicDBObject(StorageSchema.WORLD_NAME, 1), new BasicDBObject("unique", true));
+        load();
+    }
+
+    /**
+     * A fixed set of worlds numbered in the given order, without a database behind it
+     */
+    WorldIndex(String... names) {
+        this.collection = null;
+        for (int i = 0; i < names.length; i++)
+            put(i, names[i]);
+    }
+
+    private synchronized void load() {
+        for (DBObject entry : collection.find())
+            put(((Number) entry.get(StorageSchema.ID)).intValue(), (String) entry.get(StorageSchema.WORLD_NAME));
+    }
+
+    private void put(int index, String name) {
+        final String[] newNames = Arrays.copyOf(names, Math.max(names.length, index + 1));
+        newNames[index] = name;
+        names = newNames;
+        indexByName.put(name, index);
+    }
+
+    public int getIndex(World world) {
+        return getIndex(world.getName());
+    }
+
+    public int getIndex(String name) {
+        final Integer index = indexByName.get(name);
+        if (index != null)
+            return index;
+        return addWorld(name);
+    }
+
+    /**
+     * Like {@link #getIndex(String)}, but never adds the world
+     * @return the world's number or -1 if it is unknown
+     */
+    public int lookup(String name) {
+        final Integer index = indexByName.get(name);
+        return (index != null) ? index : -1;
+    }
+
+    private synchronized int addWorld(String name) {
+        Integer index = indexByName.get(name);
+        if (index != null)
+            return index;
+        if (collection == null)
+            throw new IllegalStateException("Can not add world " + name + " to a fixed set of worlds");
+        while (true) {
+            final int next = names.length;
+            try {
+                collection.insert(new BasicDBObject(StorageSchema.ID, next).append(StorageSchema.WORLD_NAME, name));
+                put(next, name);
+                return next;
+            } catch (DuplicateKeyException e) {
+                //Someone else sharing the database was faster, pick up what they added
+                load();
+                index = indexByName.get(name);
+                if (index != null)
+                    return index;
+            }
+        }
+    }
+
+    /**
+     * @return the world's name or null if the number is unknown
+     */
+    public String getName(int index) {
+        final String[] names = this.names;
+        return (index >= 0 && index < names.length) ? names[index] : null;
+    }
+}
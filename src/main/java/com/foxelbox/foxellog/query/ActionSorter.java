@@ -0,0 +1,292 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import org.bson.types.ObjectId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts block actions by world, position and time with a bounded number of them in memory.
+ * When the buffer is full it is sorted and written to a run file, reading merges all runs, in several passes if
+ * there are too many to have open at once.
+ */
+public class ActionSorter implements Closeable {
+    private static final String RUN_PREFIX = "run";
+    private static final String RUN_SUFFIX = ".tmp";
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    /** Runs read at once, more are merged into bigger runs first */
+    private static final int MAX_MERGE_RUNS = 64;
+
+    public static class Entry implements Comparable<Entry> {
+        public int world;
+        /** Packed by {@link com.foxelbox.foxellog.util.BlockPos} */
+        public long position;
+        public long time;
+        public int materialFrom;
+        public int materialTo;
+        /** Index of the collection the action is stored in */
+        public int collection;
+        public ObjectId id;
+
+        @Override
+        public int compareTo(Entry other) {
+            if (world != other.world)
+                return world < other.world ? -1 : 1;
+            if (position != other.position)
+                return position < other.position ? -1 : 1;
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeInt(world);
+            output.writeLong(position);
+            output.writeLong(time);
+            output.writeShort(materialFrom);
+            output.writeShort(materialTo);
+            output.writeShort(collection);
+            output.write(id.toByteArray());
+        }
+
+        private void read(DataInputStream input, byte[] idBuffer) throws IOException {
+            world = input.readInt();
+            position = input.readLong();
+            time = input.readLong();
+            materialFrom = input.readUnsignedShort();
+            materialTo = input.readUnsignedShort();
+            collection = input.readUnsignedShort();
+            input.readFully(idBuffer);
+            id = new ObjectId(idBuffer);
+        }
+    }
+
+    private final File folder;
+    private final int maxEntries;
+    /** The first bufferSize entries are in use, the others are kept to be filled again after a spill */
+    private final List<Entry> buffer = new ArrayList<>();
+    private int bufferSize = 0;
+    private final List<File> runs = new ArrayList<>();
+    private final List<DataInputStream> openRuns = new ArrayList<>();
+
+    /**
+     * @param maxEntries actions kept in memory before a run is written
+     */
+    public ActionSorter(File folder, int maxEntries) {
+        this.folder = folder;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Deletes runs left behind by a sort that never finished
+     */
+    public static void clean(File folder) {
+        final File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().startsWith(RUN_PREFIX) && file.getName().endsWith(RUN_SUFFIX) && !file.delete())
+                file.deleteOnExit();
+    }
+
+    /**
+     * Copies the entry, so the caller can reuse it
+     */
+    public void add(Entry entry) throws IOException {
+        if (bufferSize == buffer.size())
+            buffer.add(new Entry());
+        copy(entry, buffer.get(bufferSize++));
+        if (bufferSize >= maxEntries)
+            spill();
+    }
+
+    /**
+     * @return number of run files written so far
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    private File createRun() throws IOException {
+        if (!folder.exists() && !folder.mkdirs())
+            throw new IOException("Could not create " + folder);
+        final File run = File.createTempFile(RUN_PREFIX, RUN_SUFFIX, folder);
+        runs.add(run);
+        return run;
+    }
+
+    private void spill() throws IOException {
+        final List<Entry> entries = buffer.subList(0, bufferSize);
+        Collections.sort(entries);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(createRun()), IO_BUFFER_SIZE))) {
+            output.writeInt(bufferSize);
+            for (Entry entry : entries)
+                entry.write(output);
+        }
+        bufferSize = 0;
+    }
+
+    /**
+     * Merges the oldest runs into one
+     */
+    private void mergeRuns(int count) throws IOException {
+        final List<File> merged = new ArrayList<>(runs.subList(0, count));
+        runs.subList(0, count).clear();
+        final Reader reader = merge(merged);
+        int total = 0;
+        for (File run : merged)
+            total += readCount(run);
+        final Entry entry = new Entry();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(createRun()), IO_BUFFER_SIZE))) {
+            output.writeInt(total);
+            while (reader.next(entry))
+                entry.write(output);
+        }
+        closeRuns();
+        for (File run : merged)
+            if (!run.delete())
+                run.deleteOnExit();
+    }
+
+    private static int readCount(File run) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(run))) {
+            return input.readInt();
+        }
+    }
+
+    /**
+     * Reads all actions back in order, the entry is reused between calls
+     */
+    public interface Reader {
+        /**
+         * @return false once all actions were read
+         */
+        boolean next(Entry entry) throws IOException;
+    }
+
+    private class RunReader {
+        private final DataInputStream input;
+        private final byte[] idBuffer = new byte[12];
+        private int remaining;
+        private final Entry current = new Entry();
+
+        private RunReader(File run) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+            openRuns.add(input);
+            remaining = input.readInt();
+        }
+
+        private boolean advance() throws IOException {
+            if (remaining == 0)
+                return false;
+            remaining--;
+            current.read(input, idBuffer);
+            return true;
+        }
+    }
+
+    private static void copy(Entry from, Entry to) {
+        to.world = from.world;
+        to.position = from.position;
+        to.time = from.time;
+        to.materialFrom = from.materialFrom;
+        to.materialTo = from.materialTo;
+        to.collection = from.collection;
+        to.id = from.id;
+    }
+
+    /**
+     * Ends adding, sorts what is in memory and merges it with the runs
+     */
+    public Reader read() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer.subList(0, bufferSize));
+            return new Reader() {
+                private int next = 0;
+
+                @Override
+                public boolean next(Entry entry) {
+                    if (next >= bufferSize)
+                        return false;
+                    copy(buffer.get(next++), entry);
+                    return true;
+                }
+            };
+        }
+
+        if (bufferSize > 0)
+            spill();
+        while (runs.size() > MAX_MERGE_RUNS)
+            mergeRuns(MAX_MERGE_RUNS);
+        return merge(runs);
+    }
+
+    private Reader merge(List<File> files) throws IOException {
+        final PriorityQueue<RunReader> heads = new PriorityQueue<>(files.size(), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader a, RunReader b) {
+                return a.current.compareTo(b.current);
+            }
+        });
+        for (File run : files) {
+            final RunReader reader = new RunReader(run);
+            if (reader.advance())
+                heads.add(reader);
+        }
+        return new Reader() {
+            @Override
+            public boolean next(Entry entry) throws IOException {
+                final RunReader head = heads.poll();
+                if (head == null)
+                    return false;
+                copy(head.current, entry);
+                if (head.advance())
+                    heads.add(head);
+                return true;
+            }
+        };
+    }
+
+    private void closeRuns() {
+        for (DataInputStream input : openRuns) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        openRuns.clear();
+    }
+
+    /**
+     * Deletes the runs
+     */
+    @Override
+    public void close() {
+        closeRuns();
+        for (File run : runs)
+            if (!run.delete())
+                run.deleteOnExit();
+        runs.clear();
+        buffer.clear();
+        bufferSize = 0;
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.util.LongShortMap;
+import com.mongodb.DBCollection;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * What a rollback or redo does to the world, per world keyed by packed {@link com.foxelbox.foxellog.util.BlockPos}
+ * with material ids as values: the material a block has to show and the material to set.
+ * Each block's actions are added as a chain in the order they are undone or redone, a block stops taking actions at
+ * the first one that does not start from what the one before left.
+ * The actions behind the changes are kept per collection, with the position of each.
+ * Positions are planned on a query worker and applied on the main thread, both in chunk order.
+ */
+public class ChangeSet {
+    public static class WorldChanges {
+        private final int world;
+        private LongShortMap expected = new LongShortMap();
+        private LongShortMap target = new LongShortMap();
+        /** Positions whose chain broke, any value */
+        private final LongShortMap broken = new LongShortMap();
+        private final Map<DBCollection, ActionIds> ids = new HashMap<>();
+        private long[] planned = new long[0];
+        private int plannedCount = 0;
+        private long[] applied = new long[0];
+        private int appliedCount = 0;
+
+        private WorldChanges(int world) {
+            this.world = world;
+        }
+
+        public int getWorld() {
+            return world;
+        }
+
+        public int getExpected(long pos) {
+            return expected.get(pos, (short) 0);
+        }
+
+        public int getTarget(long pos) {
+            return target.get(pos, (short) 0);
+        }
+
+        /**
+         * @return all positions, sorted so those of a chunk come one after another
+         */
+        public long[] getPositions() {
+            final long[] positions = target.keys();
+            Arrays.sort(positions);
+            return positions;
+        }
+
+        /**
+         * Positions have to be added in the order of {@link #getPositions()}
+         */
+        void addPlanned(long pos) {
+            if (plannedCount == planned.length)
+                planned = Arrays.copyOf(planned, Math.max(16, plannedCount * 2));
+            planned[plannedCount++] = pos;
+        }
+
+        public int getPlannedCount() {
+            return plannedCount;
+        }
+
+        public long getPlanned(int index) {
+            return planned[index];
+        }
+
+        /**
+         * Positions have to be added in the order of {@link #getPositions()}
+         */
+        void addApplied(long pos) {
+            if (appliedCount == applied.length)
+                applied = Arrays.copyOf(applied, Math.max(16, appliedCount * 2));
+            applied[appliedCount++] = pos;
+        }
+
+        public int getAppliedCount() {
+            return appliedCount;
+        }
+    }
+
+    private static class ActionIds {
+        private final List<Object> ids = new ArrayList<>();
+        private long[] positions = new long[16];
+    }
+
+    private final Map<Integer, WorldChanges> worlds = new HashMap<>();
+
+    private WorldChanges getWorldChanges(int world) {
+        WorldChanges changes = worlds.get(world);
+        if (changes == null) {
+            changes = new WorldChanges(world);
+            worlds.put(world, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Adds the next action of a block's chain, collections have to be added in the order of the actions.
+     * The block has to show what the first action starts from and gets what the last one leaves.
+     * @param from material the action starts from, in the direction of the rollback or redo
+     * @param to material the action leaves, in the direction of the rollback or redo
+     * @return false if the action does not continue the chain, it and all later actions on the block are left out
+     */
+    public boolean add(int world, long pos, int from, int to, DBCollection collection, Object id) {
+        final WorldChanges changes = getWorldChanges(world);
+        if (changes.broken.containsKey(pos))
+            return false;
+        if (!changes.expected.putIfAbsent(pos, (short) from) && changes.target.get(pos, (short) 0) != (short) from) {
+            changes.broken.put(pos, (short) 1);
+            return false;
+        }
+        changes.target.put(pos, (short) to);
+
+        ActionIds actionIds = changes.ids.get(collection);
+        if (actionIds == null) {
+            actionIds = new ActionIds();
+            changes.ids.put(collection, actionIds);
+        }
+        if (actionIds.positions.length == actionIds.ids.size())
+            actionIds.positions = Arrays.copyOf(actionIds.positions, actionIds.positions.length * 2);
+        actionIds.positions[actionIds.ids.size()] = pos;
+        actionIds.ids.add(id);
+        return true;
+    }
+
+    /**
+     * Swaps the material to show and the material to set, so planning finds the blocks that already got the change
+     */
+    public void invert() {
+        for (WorldChanges changes : worlds.values()) {
+            final LongShortMap expected = changes.expected;
+            changes.expected = changes.target;
+            changes.target = expected;
+        }
+    }
+
+    public Collection<WorldChanges> getWorlds() {
+        return worlds.values();
+    }
+
+    public int getPlannedCount() {
+        int count = 0;
+        for (WorldChanges changes : worlds.values())
+            count += changes.plannedCount;
+        return count;
+    }
+
+    public int getAppliedCount() {
+        int count = 0;
+        for (WorldChanges changes : worlds.values())
+            count += changes.appliedCount;
+        return count;
+    }
+
+    /**
+     * Picks the ids whose positions are in a sorted array, splitting the ids into ranges
+     */
+    private static class CollectTask extends RecursiveTask<List<Object>> {
+        private static final int MIN_IDS = 8192;
+
+        private final ActionIds actionIds;
+        private final long[] positions;
+        private final int count;
+        private final int from, to;
+
+        private CollectTask(ActionIds actionIds, long[] positions, int count, int from, int to) {
+            this.actionIds = actionIds;
+            this.positions = positions;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Object> compute() {
+            if (to - from > MIN_IDS) {
+                final int middle = (from + to) >>> 1;
+                final CollectTask left = new CollectTask(actionIds, positions, count, from, middle);
+                left.fork();
+                final List<Object> right = new CollectTask(actionIds, positions, count, middle, to).compute();
+                final List<Object> result = left.join();
+                result.addAll(right);
+                return result;
+            }
+            final List<Object> ids = new ArrayList<>();
+            for (int i = from; i < to; i++)
+                if (Arrays.binarySearch(positions, 0, count, actionIds.positions[i]) >= 0)
+                    ids.add(actionIds.ids.get(i));
+            return ids;
+        }
+    }
+
+    private Map<DBCollection, List<Object>> collectIds(ForkJoinPool pool, boolean applied) {
+        final Map<DBCollection, List<Object>> result = new HashMap<>();
+        for (WorldChanges changes : worlds.values()) {
+            final long[] positions = applied ? changes.applied : changes.planned;
+            final int count = applied ? changes.appliedCount : changes.plannedCount;
+            for (Map.Entry<DBCollection, ActionIds> entry : changes.ids.entrySet()) {
+                final List<Object> ids = pool.invoke(new CollectTask(entry.getValue(), positions, count, 0, entry.getValue().ids.size()));
+                final List<Object> collectionIds = result.get(entry.getKey());
+                if (collectionIds == null)
+                    result.put(entry.getKey(), ids);
+                else
+                    collectionIds.addAll(ids);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return ids of the actions on planned positions, per collection
+     */
+    public Map<DBCollection, List<Object>> getPlannedIds(ForkJoinPool pool) {
+        return collectIds(pool, false);
+    }
+
+    /**
+     * @return ids of the actions on applied positions, per collection
+     */
+    public Map<DBCollection, List<Object>> getAppliedIds(ForkJoinPool pool) {
+        return collectIds(pool, true);
+    }
+}
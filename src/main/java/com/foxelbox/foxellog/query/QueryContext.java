@@ -0,0 +1,137 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.mongodb.DBCursor;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline and cancellation of one running query.
+ * The query checks it between rows, cursors opened through it carry the remaining time to the server and are
+ * closed when the query is cancelled.
+ * Cancelling only interrupts the worker outside of its commit phase, writes in there stop at the next check.
+ */
+public class QueryContext {
+    private volatile long deadlineNanos;
+    private volatile boolean cancelled = false;
+    private volatile DBCursor cursor;
+    private volatile Future<?> future;
+    private volatile QueryExecutor.Query<?> query;
+    private int queuePosition;
+    /** Guarded by this */
+    private boolean committing = false;
+
+    public QueryContext(long timeoutMillis) {
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Gives the rest of the query its own time limit, counted from now
+     */
+    public void restartDeadline(long timeoutMillis) {
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void setQuery(QueryExecutor.Query<?> query) {
+        this.query = query;
+    }
+
+    void setQueuePosition(int queuePosition) {
+        this.queuePosition = queuePosition;
+    }
+
+    /**
+     * @return place in the queue when it was queued (1 is next), 0 if it started right away
+     */
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public long getRemainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Tells the sender how far the query got, call on the main thread
+     */
+    public void reportProgress(String message) {
+        final QueryExecutor.Query<?> query = this.query;
+        if (query != null)
+            query.progress(message);
+    }
+
+    /**
+     * @throws QueryInterface.QueryException if the query was cancelled
+     */
+    public void checkCancelled() throws QueryInterface.QueryException {
+        if (cancelled || Thread.currentThread().isInterrupted())
+            throw new QueryInterface.QueryException("Query cancelled");
+    }
+
+    /**
+     * @throws QueryInterface.QueryException if the query was cancelled or ran out of time
+     */
+    public void check() throws QueryInterface.QueryException {
+        checkCancelled();
+        if (System.nanoTime() - deadlineNanos > 0)
+            throw new QueryInterface.QueryException("Query timed out");
+    }
+
+    public DBCursor track(DBCursor cursor) throws QueryInterface.QueryException {
+        check();
+        this.cursor = cursor.maxTime(Math.max(1, getRemainingMillis()), TimeUnit.MILLISECONDS);
+        return cursor;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Starts writing the outcome of the query, a cancel no longer interrupts the worker until {@link #endCommit()}
+     * @throws QueryInterface.QueryException if the query was cancelled before
+     */
+    public synchronized void beginCommit() throws QueryInterface.QueryException {
+        checkCancelled();
+        committing = true;
+    }
+
+    public synchronized void endCommit() {
+        committing = false;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        final DBCursor cursor = this.cursor;
+        if (cursor != null)
+            cursor.close();
+        final Future<?> future = this.future;
+        if (future == null)
+            return;
+        synchronized (this) {
+            //An interrupt in the middle of the state updates would leave them half written
+            if (!committing)
+                future.cancel(true);
+        }
+    }
+}
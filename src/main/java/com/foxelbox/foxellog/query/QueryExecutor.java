@@ -0,0 +1,307 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoExecutionTimeoutException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs queries on a small pool of worker threads so the main thread never waits for the database.
+ * Queued queries are run cheapest first (see {@link QueryParams#getPriority()}), each sender can only have a few
+ * queries at a time and the queue is bounded.
+ * Results are handed back on the main thread.
+ */
+public class QueryExecutor {
+    /**
+     * A query: {@link #run(QueryContext)} is called on a worker thread, the other methods on the main thread
+     */
+    public static abstract class Query<T> {
+        protected abstract T run(QueryContext context) throws Exception;
+
+        protected abstract void deliver(T result);
+
+        protected abstract void fail(Throwable cause);
+
+        protected void progress(String message) { }
+    }
+
+    private class QueryTask<T> extends FutureTask<T> implements Comparable<QueryTask<?>> {
+        private final UUID owner;
+        private final Query<T> query;
+        private final QueryContext context;
+        private final long priority;
+        private final long sequence;
+        private volatile boolean started = false;
+
+        private QueryTask(UUID owner, final Query<T> query, final QueryContext context, long priority) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    context.check();
+                    return query.run(context);
+                }
+            });
+            this.owner = owner;
+            this.query = query;
+            this.context = context;
+            this.priority = priority;
+            this.sequence = nextSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(QueryTask<?> other) {
+            if (priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            } finally {
+                //A cancelled query only stops at its next check, it counts against its owner until then
+                removeRunning(owner, context);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (!started)
+                removeRunning(owner, context);
+            if (!plugin.isEnabled())
+                return;
+            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        query.deliver(get());
+                    } catch (CancellationException e) {
+                        query.fail(new QueryInterface.QueryException("Query cancelled"));
+                    } catch (ExecutionException e) {
+                        query.fail(context.isCancelled() ? new QueryInterface.QueryException("Query cancelled") : e.getCause());
+                    } catch (InterruptedException e) {
+                        query.fail(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private final FoxelLog plugin;
+    private final ThreadPoolExecutor pool;
+    private final long timeoutMillis;
+    private final int queueSize;
+    private final int perSenderLimit;
+    private final long maxDocuments;
+
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<UUID, List<QueryContext>> running = new HashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public QueryExecutor(FoxelLog plugin) {
+        this.plugin = plugin;
+        final int threads = Integer.parseInt(plugin.configuration.getValue("query-threads", "2"));
+        this.queueSize = Integer.parseInt(plugin.configuration.getValue("query-queue-size", "8"));
+        this.perSenderLimit = Integer.parseInt(plugin.configuration.getValue("query-per-sender-limit", "1"));
+        this.timeoutMillis = Long.parseLong(plugin.configuration.getValue("query-timeout-ms", "30000"));
+        this.maxDocuments = Long.parseLong(plugin.configuration.getValue("query-max-documents", "100000"));
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FoxelLog query #" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private synchronized void removeRunning(UUID owner, QueryContext context) {
+        final List<QueryContext> contexts = running.get(owner);
+        if (contexts != null && contexts.remove(context) && contexts.isEmpty())
+            running.remove(owner);
+    }
+
+    /**
+     * Queues a query
+     * @param priority lower runs sooner
+     * @return the context of the query, including its place in the queue
+     * @throws QueryInterface.QueryException if the owner has too many queries or there is no room for it
+     */
+    public synchronized <T> QueryContext submit(UUID owner, Query<T> query, long priority) throws QueryInterface.QueryException {
+        List<QueryContext> contexts = running.get(owner);
+        if (contexts != null && contexts.size() >= perSenderLimit) {
+            rejectedCount.incrementAndGet();
+            throw new QueryInterface.QueryException("You already have " + (perSenderLimit == 1 ? "a query" : perSenderLimit + " queries") + " running, use /fl cancel to stop");
+        }
+        if (pool.getQueue().size() >= queueSize) {
+            rejectedCount.incrementAndGet();
+            throw new QueryInterface.QueryException("Too many queries queued, try again later");
+        }
+
+        final QueryContext context = new QueryContext(timeoutMillis);
+        final QueryTask<T> task = new QueryTask<>(owner, query, context, priority);
+        context.setFuture(task);
+        context.setQuery(query);
+        if (contexts == null) {
+            contexts = new ArrayList<>(perSenderLimit);
+            running.put(owner, contexts);
+        }
+        contexts.add(context);
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            removeRunning(owner, context);
+            rejectedCount.incrementAndGet();
+            throw new QueryInterface.QueryException("Query executor is shut down");
+        }
+
+        int position = 0;
+        for (Runnable queued : pool.getQueue()) {
+            if (queued != task && ((QueryTask<?>) queued).compareTo(task) < 0)
+                position++;
+        }
+        context.setQueuePosition(pool.getQueue().contains(task) ? position + 1 : 0);
+        return context;
+    }
+
+    public long getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    /**
+     * Counts the matches in each collection on the server, without fetching them.
+     * Each count gets the remaining time of the query, one that runs out means the query is too expensive.
+     * @param limit stop counting once this many are found in total, 0 for no limit
+     * @return the count of each collection, in the same order
+     */
+    public long[] count(List<DBCollection> collections, DBObject query, QueryContext context, long limit) throws QueryInterface.QueryException {
+        final long[] counts = new long[collections.size()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            context.check();
+            if (limit > 0 && total >= limit)
+                break;
+            final DBCollection collection = collections.get(i);
+            final BasicDBObject command = new BasicDBObject("count", collection.getName()).append("query", query)
+                    .append("maxTimeMS", Math.max(1, context.getRemainingMillis()));
+            if (limit > 0)
+                command.append("limit", limit - total);
+            final CommandResult result = collection.getDB().command(command);
+            try {
+                result.throwOnError();
+            } catch (MongoExecutionTimeoutException e) {
+                rejectedCount.incrementAndGet();
+                throw new QueryInterface.QueryException("This query takes too long to even count, please narrow it down", e);
+            }
+            counts[i] = ((Number) result.get("n")).longValue();
+            total += counts[i];
+        }
+        return counts;
+    }
+
+    /**
+     * Refuses queries that would go over more documents than configured, counting at most one document more
+     */
+    public void checkEstimate(List<DBCollection> collections, DBObject query, QueryContext context) throws QueryInterface.QueryException {
+        if (maxDocuments <= 0)
+            return;
+        long count = 0;
+        for (long collectionCount : count(collections, query, context, maxDocuments + 1))
+            count += collectionCount;
+        checkEstimate(count);
+    }
+
+    /**
+     * Refuses queries that go over more documents than configured
+     * @param count documents the query goes over, counted up to at least one more than the limit
+     */
+    public void checkEstimate(long count) throws QueryInterface.QueryException {
+        if (maxDocuments > 0 && count > maxDocuments) {
+            rejectedCount.incrementAndGet();
+            throw new QueryInterface.QueryException("This would go over more than " + maxDocuments + " actions, please narrow it down");
+        }
+    }
+
+    /**
+     * Cancels all queries of the owner, they count against the owner's limit until their workers stopped
+     * @return false if the owner had no query running
+     */
+    public boolean cancel(UUID owner) {
+        final List<QueryContext> contexts;
+        synchronized (this) {
+            final List<QueryContext> ownerContexts = running.get(owner);
+            if (ownerContexts == null)
+                return false;
+            contexts = new ArrayList<>(ownerContexts);
+        }
+        for (QueryContext context : contexts)
+            context.cancel();
+        pool.purge();
+        return true;
+    }
+
+    public synchronized int getRunningCount() {
+        int count = 0;
+        for (List<QueryContext> contexts : running.values())
+            count += contexts.size();
+        return count;
+    }
+
+    public int getQueuedCount() {
+        return pool.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void shutdown() {
+        final List<QueryContext> contexts = new ArrayList<>();
+        synchronized (this) {
+            for (List<QueryContext> ownerContexts : running.values())
+                contexts.addAll(ownerContexts);
+            running.clear();
+        }
+        for (QueryContext context : contexts)
+            context.cancel();
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return a message for the player, without stack traces for the expected failures
+     */
+    public static String describeFailure(Throwable cause) {
+        if (cause instanceof QueryInterface.QueryException)
+            return cause.getMessage();
+        if (cause instanceof MongoExecutionTimeoutException)
+            return "Query timed out";
+        return "Query failed: " + cause;
+    }
+}
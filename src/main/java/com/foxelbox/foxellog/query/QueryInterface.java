@@ -1,31 +1,244 @@
 package com.foxelbox.foxellog.query;
 
 import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionRecord;
 import com.foxelbox.foxellog.actions.ActionState;
+import com.foxelbox.foxellog.actions.ActionView;
 import com.foxelbox.foxellog.actions.BaseAction;
-import com.foxelbox.foxellog.actions.PlayerBlockAction;
-import com.foxelbox.foxellog.actions.PlayerInventoryAction;
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.foxelbox.foxellog.ingest.PlayerIndex;
+import com.foxelbox.foxellog.storage.ArchiveStore;
+import com.foxelbox.foxellog.storage.SchemaMigrator;
+import com.foxelbox.foxellog.storage.StateTransitions;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.foxelbox.foxellog.util.BlockPos;
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
 import org.bukkit.Location;
 import org.bukkit.Material;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class QueryInterface {
     private final FoxelLog plugin;
+    private final QueryPlanner planner;
+    private final int maxAreaChunks;
+    private final int pageSize;
+    private final long maxRollbackActions;
+    private final int sortMemoryActions;
+    private final int sortWindowActions;
+    private final long sortTimeoutMillis;
+    private final File sortFolder;
+
+    /** Everything a rollback or redo sorted on disk reads */
+    private static final DBObject SORT_FIELDS = new BasicDBObject(StorageSchema.FIELD_VERSION, 1).append(StorageSchema.FIELD_DATE, 1).append(StorageSchema.FIELD_TYPE, 1)
+            .append(StorageSchema.FIELD_WORLD, 1).append(StorageSchema.FIELD_X, 1).append(StorageSchema.FIELD_Y, 1).append(StorageSchema.FIELD_Z, 1)
+            .append(StorageSchema.FIELD_MATERIAL_FROM, 1).append(StorageSchema.FIELD_MATERIAL_TO, 1);
+
+    /** Everything a lookup line shows, leaving out what is only there for indexing */
+    private static final DBObject LOOKUP_FIELDS = new BasicDBObject(StorageSchema.FIELD_VERSION, 0).append(StorageSchema.FIELD_BLOCK_KEY, 0).append(StorageSchema.FIELD_CHUNK_KEY, 0);
 
     public QueryInterface(FoxelLog plugin) {
         this.plugin = plugin;
+        this.planner = new QueryPlanner(plugin);
+        this.maxAreaChunks = Integer.parseInt(plugin.configuration.getValue("query-max-area-chunks", "1024"));
+        this.pageSize = Integer.parseInt(plugin.configuration.getValue("query-page-size", "10"));
+        //Rollbacks and redos are limited by rollback-max-actions instead of query-max-documents. Up to
+        //rollback-memory-actions of them are planned in memory, bigger ones are sorted on disk (0 plans all in memory).
+        this.maxRollbackActions = Long.parseLong(plugin.configuration.getValue("rollback-max-actions", "5000000"));
+        this.sortMemoryActions = Integer.parseInt(plugin.configuration.getValue("rollback-memory-actions", "500000"));
+        this.sortWindowActions = Integer.parseInt(plugin.configuration.getValue("rollback-window-actions", "100000"));
+        //Reading that many actions takes longer than a lookup may
+        this.sortTimeoutMillis = Long.parseLong(plugin.configuration.getValue("rollback-sort-timeout-ms", "600000"));
+        this.sortFolder = new File(new File(plugin.getDataFolder(), "spool"), "sort");
+        ActionSorter.clean(sortFolder);
+    }
+
+    public QueryPlanner getPlanner() {
+        return planner;
     }
 
     private BasicDBObject makeRange(int pos, int range) {
         return new BasicDBObject("$gte", pos - range).append("$lte", pos + range);
     }
 
-    public class QueryException extends Exception {
+    /**
+     * Only reads the world dictionary, a world it does not know gets -1, which no action has
+     */
+    private void addLocation(QueryParams queryParams) {
+        if (queryParams.area >= 0 || queryParams.worldSet)
+            queryParams.query.put(StorageSchema.FIELD_WORLD, plugin.getWorldIndex().lookup(queryParams.setLocation.getWorld().getName()));
+        if (queryParams.area >= 0) {
+            queryParams.query.put(StorageSchema.FIELD_X, makeRange(queryParams.setLocation.getBlockX(), queryParams.area));
+            queryParams.query.put(StorageSchema.FIELD_Y, makeRange(queryParams.setLocation.getBlockY(), queryParams.area));
+            queryParams.query.put(StorageSchema.FIELD_Z, makeRange(queryParams.setLocation.getBlockZ(), queryParams.area));
+            addChunkKeys(queryParams);
+        }
+    }
+
+    /**
+     * Narrows an area down to the chunks it touches, so the chunk key index finds it with a few seeks.
+     * The exact coordinate ranges stay in the filter for the blocks at the edges.
+     */
+    private void addChunkKeys(QueryParams queryParams) {
+        final int x = queryParams.setLocation.getBlockX(), z = queryParams.setLocation.getBlockZ();
+        final int minChunkX = (x - queryParams.area) >> 4, maxChunkX = (x + queryParams.area) >> 4;
+        final int minChunkZ = (z - queryParams.area) >> 4, maxChunkZ = (z + queryParams.area) >> 4;
+        if ((long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1) > maxAreaChunks) {
+            queryParams.query.remove(StorageSchema.FIELD_CHUNK_KEY);
+            return;
+        }
+        final List<Long> chunkKeys = new ArrayList<>();
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++)
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++)
+                chunkKeys.add(StorageSchema.packChunkKey(chunkX << 4, chunkZ << 4));
+        queryParams.query.put(StorageSchema.FIELD_CHUNK_KEY, new BasicDBObject("$in", chunkKeys));
+    }
+
+    private void addTimeSpan(QueryParams queryParams) {
+        final BasicDBObject range = new BasicDBObject();
+        if (queryParams.since != Long.MIN_VALUE)
+            range.append("$gte", new Date(queryParams.since));
+        if (queryParams.before != Long.MAX_VALUE)
+            range.append("$lt", new Date(queryParams.before));
+        if (range.isEmpty())
+            queryParams.query.remove(StorageSchema.FIELD_DATE);
+        else
+            queryParams.query.put(StorageSchema.FIELD_DATE, range);
+    }
+
+    /**
+     * Refuses queries while old layout actions wait for migration, they would silently be missing from the results
+     */
+    private void checkLayout() throws QueryException {
+        final SchemaMigrator migrator = plugin.getSchemaMigrator();
+        if (!migrator.isPending())
+            return;
+        if (migrator.isRunning())
+            throw new QueryException("Actions stored in the old layout are being migrated (" + migrator.getMigratedCount() + " so far), try again once that finished");
+        throw new QueryException("Actions stored in the old layout need to be migrated first, run /fl migrate");
+    }
+
+    /**
+     * Turns the player names into dictionary numbers, here on the worker as the lookups may go to the database.
+     * Only reads the dictionary, players it does not know have no actions to match.
+     */
+    private void addPlayers(QueryParams queryParams, QueryContext context) {
+        if (queryParams.players == null)
+            return;
+        final PlayerIndex playerIndex = plugin.getPlayerIndex();
+        final Set<Integer> playersToMatch = new HashSet<>();
+        if (queryParams.self != null) {
+            final PlayerIndex.Entry self = playerIndex.getEntry(queryParams.self);
+            if (self != null)
+                playersToMatch.add(self.index);
+        }
+        for (String name : queryParams.players) {
+            final PlayerIndex.Entry player = playerIndex.getEntryByName(name);
+            if (player != null)
+                playersToMatch.add(player.index);
+            else
+                reportFromWorker(context, "Unknown player " + name);
+        }
+
+        final int size = playersToMatch.size();
+        if (size == 0)
+            queryParams.query.put(StorageSchema.FIELD_USER, -1);
+        else if (size == 1)
+            queryParams.query.put(StorageSchema.FIELD_USER, playersToMatch.iterator().next());
+        else
+            queryParams.query.put(StorageSchema.FIELD_USER, new BasicDBObject("$in", playersToMatch.toArray(new Integer[size])));
+    }
+
+    /**
+     * Hands a progress message to the main thread, {@link QueryContext#reportProgress(String)} must not run on the worker
+     */
+    private void reportFromWorker(final QueryContext context, final String message) {
+        if (!plugin.isEnabled())
+            return;
+        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                context.reportProgress(message);
+            }
+        });
+    }
+
+    /**
+     * @return whether the query is limited to a world the dictionary does not know, no stored action can match it
+     */
+    private static boolean isUnknownWorld(QueryParams queryParams) {
+        final Object world = queryParams.query.get(StorageSchema.FIELD_WORLD);
+        return world instanceof Number && ((Number) world).intValue() < 0;
+    }
+
+    /**
+     * @return the partitions covering the query's time span, in the order of the sort
+     */
+    private List<DBCollection> getCollections(QueryParams queryParams, DBObject sort) {
+        final Object direction = sort.get(StorageSchema.FIELD_DATE);
+        final boolean newestFirst = !(direction instanceof Number) || ((Number) direction).intValue() < 0;
+        return plugin.getPartitionRouter().getCollections(queryParams.since, queryParams.before, newestFirst);
+    }
+
+    /**
+     * The lookup in the archive equivalent to the query's filter
+     */
+    private ArchiveStore.Filter makeArchiveFilter(QueryParams queryParams) {
+        final ArchiveStore.Filter filter = new ArchiveStore.Filter();
+        filter.since = queryParams.since;
+        filter.before = queryParams.before;
+        filter.state = getMatchedState(queryParams.performMode).getDbVal();
+        final Object world = queryParams.query.get(StorageSchema.FIELD_WORLD);
+        if (world instanceof Number)
+            filter.world = ((Number) world).intValue();
+        if (queryParams.area >= 0) {
+            final Location location = queryParams.setLocation;
+            filter.hasArea = true;
+            filter.fromX = location.getBlockX() - queryParams.area;
+            filter.toX = location.getBlockX() + queryParams.area;
+            filter.fromY = location.getBlockY() - queryParams.area;
+            filter.toY = location.getBlockY() + queryParams.area;
+            filter.fromZ = location.getBlockZ() - queryParams.area;
+            filter.toZ = location.getBlockZ() + queryParams.area;
+        }
+        final Object user = queryParams.query.get(StorageSchema.FIELD_USER);
+        if (user != null) {
+            final Collection<?> players = (user instanceof DBObject) ? Arrays.asList((Object[]) ((DBObject) user).get("$in")) : Collections.singleton(user);
+            filter.users = new HashSet<>();
+            for (Object player : players) {
+                final PlayerIndex.Entry entry = plugin.getPlayerIndex().getEntry(((Number) player).intValue());
+                if (entry != null)
+                    filter.users.add(entry.uuid);
+            }
+        }
+        return filter;
+    }
+
+    private static ActionState getMatchedState(QueryParams.PerformMode performMode) {
+        return (performMode == QueryParams.PerformMode.REDO) ? ActionState.GONE : ActionState.IN_PLACE;
+    }
+
+    private static DBObject getSort(QueryParams queryParams) {
+        switch (queryParams.performMode) {
+            case ROLLBACK:
+                return new BasicDBObject(StorageSchema.FIELD_DATE, -1);
+            case REDO:
+                return new BasicDBObject(StorageSchema.FIELD_DATE, 1);
+        }
+        return queryParams.sort;
+    }
+
+    public static class QueryException extends Exception {
         public QueryException() {
         }
 
@@ -61,15 +274,48 @@ public class QueryInterface {
     public static class QueryResults {
         public final int count;
         public final Collection<BaseAction> results;
+        public final int page;
+        public final int pageCount;
+        /** Counting stopped at query-max-documents, there are more than count */
+        public final boolean countLimited;
 
         QueryResults(int count, Collection<BaseAction> results) {
+            this(count, results, 1, 1, false);
+        }
+
+        QueryResults(int count, Collection<BaseAction> results, int page, int pageCount, boolean countLimited) {
             this.count = count;
             this.results = results;
+            this.page = page;
+            this.pageCount = pageCount;
+            this.countLimited = countLimited;
         }
     }
 
-    public AggregationResults doAggregatedQuery(QueryParams queryParams) throws QueryException {
-        DBCollection collection = plugin.getMongoDB().getCollection(BaseAction.getCollection());
+    /**
+     * Runs the pipeline on every partition, groups that show up in several partitions come back once per partition
+     */
+    private List<DBObject> aggregate(List<DBCollection> collections, List<DBObject> aggregationPipeline, QueryContext context) throws QueryException {
+        final List<DBObject> results = new ArrayList<>();
+        for (DBCollection collection : collections) {
+            context.check();
+            //Rollback plans group every matching action, let the server sort and group on disk past its memory limit
+            final AggregationOptions options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).allowDiskUse(true)
+                    .maxTime(Math.max(1, context.getRemainingMillis()), TimeUnit.MILLISECONDS).build();
+            final Cursor cursor = collection.aggregate(aggregationPipeline, options);
+            try {
+                while (cursor.hasNext())
+                    results.add(cursor.next());
+            } finally {
+                cursor.close();
+            }
+        }
+        return results;
+    }
+
+    public AggregationResults doAggregatedQuery(QueryParams queryParams, QueryContext context) throws QueryException {
+        checkLayout();
+        final List<DBCollection> collections = getCollections(queryParams, queryParams.sort);
 
         if (queryParams.aggregationMode == null)
             throw new QueryException("This method is for aggregation queries only");
@@ -77,26 +323,21 @@ public class QueryInterface {
         if (queryParams.performMode != QueryParams.PerformMode.GET)
             throw new QueryException("You can only use the display/default mode while aggregation/sum is turned on!");
 
-        if (queryParams.area >= 0) {
-            queryParams.query.put("location",
-                    new BasicDBObject("world", queryParams.setLocation.getWorld().getName())
-                            .append("x", makeRange(queryParams.setLocation.getBlockX(), queryParams.area))
-                            .append("y", makeRange(queryParams.setLocation.getBlockY(), queryParams.area))
-                            .append("z", makeRange(queryParams.setLocation.getBlockZ(), queryParams.area))
-            );
-        } else if (queryParams.worldSet) {
-            queryParams.query.put("location", new BasicDBObject("world", queryParams.setLocation.getWorld().getName()));
-        }
+        addLocation(queryParams);
+        addTimeSpan(queryParams);
+        addPlayers(queryParams, context);
+
+        queryParams.query.put(StorageSchema.FIELD_TYPE, ActionRecord.TYPE_BLOCK);
 
-        queryParams.query.put("type", "player_block_change");
+        plugin.getQueryExecutor().checkEstimate(collections, queryParams.query, context);
 
         ArrayList<DBObject> aggregationPipeline = new ArrayList<>();
 
         aggregationPipeline.add(new BasicDBObject("$match", queryParams.query));
 
         BasicDBObject project = new BasicDBObject("_id", 0);
-        project.put("blockFrom", 1);
-        project.put("blockTo", 1);
+        project.put(StorageSchema.FIELD_MATERIAL_FROM, 1);
+        project.put(StorageSchema.FIELD_MATERIAL_TO, 1);
         aggregationPipeline.add(new BasicDBObject("$project", project));
         BasicDBObject groups = new BasicDBObject();
         aggregationPipeline.add(new BasicDBObject("$group", groups));
@@ -107,49 +348,56 @@ public class QueryInterface {
         switch (queryParams.aggregationMode) {
             case PLAYERS:
                 label = "Player";
-                project.put("user_uuid", 1);
+                project.put(StorageSchema.FIELD_USER, 1);
 
-                groups.append("_id", "$user_uuid");
+                groups.append("_id", "$" + StorageSchema.FIELD_USER);
 
-                groups.append("placed", new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.asList(new BasicDBObject("$eq", Arrays.asList("$blockTo", null)), 0, 1))));
-                groups.append("destroyed", new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.asList(new BasicDBObject("$eq", Arrays.asList("$blockFrom", null)), 0, 1))));
+                groups.append("placed", new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.asList(new BasicDBObject("$eq", Arrays.asList("$" + StorageSchema.FIELD_MATERIAL_TO, Material.AIR.getId())), 0, 1))));
+                groups.append("destroyed", new BasicDBObject("$sum", new BasicDBObject("$cond", Arrays.asList(new BasicDBObject("$eq", Arrays.asList("$" + StorageSchema.FIELD_MATERIAL_FROM, Material.AIR.getId())), 0, 1))));
 
-                results = new ArrayList<>();
-                for (DBObject res : collection.aggregate(aggregationPipeline).results()) {
-                    results.add(new AggregationResult(plugin.getServer().getOfflinePlayer((UUID) res.get("_id")).getName(), (int) res.get("placed"), (int) res.get("destroyed")));
+                Map<Integer, AggregationResult> playerResults = new LinkedHashMap<>();
+                for (DBObject res : aggregate(collections, aggregationPipeline, context)) {
+                    final int player = ((Number) res.get("_id")).intValue();
+                    AggregationResult result = playerResults.get(player);
+                    if (result == null) {
+                        result = new AggregationResult(plugin.getPlayerIndex().getName(player));
+                        playerResults.put(player, result);
+                    }
+                    result.placed += (int) res.get("placed");
+                    result.destroyed += (int) res.get("destroyed");
                 }
+                results = playerResults.values();
                 break;
             case BLOCKS:
                 label = "Block";
 
                 Map<String, AggregationResult> resultMap = new HashMap<>();
 
-                queryParams.query.put("blockFrom", new BasicDBObject("$ne", null));
-                groups.append("_id", "$blockFrom");
+                queryParams.query.put(StorageSchema.FIELD_MATERIAL_FROM, new BasicDBObject("$ne", Material.AIR.getId()));
+                groups.append("_id", "$" + StorageSchema.FIELD_MATERIAL_FROM);
                 groups.append("value", new BasicDBObject("$sum", 1));
-                for (DBObject res : collection.aggregate(aggregationPipeline).results()) {
-                    System.out.println(res.toMap());
-                    String key = (String) res.get("_id");
+                for (DBObject res : aggregate(collections, aggregationPipeline, context)) {
+                    String key = Material.getMaterial(((Number) res.get("_id")).intValue()).name();
                     AggregationResult result = resultMap.get(key);
                     if (result == null) {
                         result = new AggregationResult(key);
                         resultMap.put(key, result);
                     }
-                    result.destroyed = (int) res.get("value");
+                    result.destroyed += (int) res.get("value");
                 }
 
-                queryParams.query.remove("blockFrom");
-                queryParams.query.put("blockTo", new BasicDBObject("$ne", null));
-                groups.put("_id", "$blockTo");
+                queryParams.query.remove(StorageSchema.FIELD_MATERIAL_FROM);
+                queryParams.query.put(StorageSchema.FIELD_MATERIAL_TO, new BasicDBObject("$ne", Material.AIR.getId()));
+                groups.put("_id", "$" + StorageSchema.FIELD_MATERIAL_TO);
                 groups.put("value", new BasicDBObject("$sum", 1));
-                for (DBObject res : collection.aggregate(aggregationPipeline).results()) {
-                    String key = (String) res.get("_id");
+                for (DBObject res : aggregate(collections, aggregationPipeline, context)) {
+                    String key = Material.getMaterial(((Number) res.get("_id")).intValue()).name();
                     AggregationResult result = resultMap.get(key);
                     if (result == null) {
                         result = new AggregationResult(key);
                         resultMap.put(key, result);
                     }
-                    result.placed = (int) res.get("value");
+                    result.placed += (int) res.get("value");
                 }
 
                 results = resultMap.values();
@@ -160,113 +408,321 @@ public class QueryInterface {
 
     }
 
-    public QueryResults doNormalQuery(QueryParams queryParams) throws QueryException {
-        DBCollection collection = plugin.getMongoDB().getCollection(BaseAction.getCollection());
-
-        if (queryParams.aggregationMode != null)
-            throw new QueryException("This method is for non-aggregation queries only");
+    private static int toMaterialId(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        final Material material = (value instanceof String) ? Material.getMaterial((String) value) : null;
+        return (material == null) ? Material.AIR.getId() : material.getId();
+    }
 
-        if (queryParams.area >= 0) {
-            queryParams.query.put("location",
-                    new BasicDBObject("world", queryParams.setLocation.getWorld().getName())
-                            .append("x", makeRange(queryParams.setLocation.getBlockX(), queryParams.area))
-                            .append("y", makeRange(queryParams.setLocation.getBlockY(), queryParams.area))
-                            .append("z", makeRange(queryParams.setLocation.getBlockZ(), queryParams.area))
-            );
-        } else if (queryParams.worldSet) {
-            queryParams.query.put("location", new BasicDBObject("world", queryParams.setLocation.getWorld().getName()));
+    /**
+     * Groups the actions on every block on the server, in the order they are undone or redone, and follows their chain
+     * here: only the materials and ids of the actions come back, nothing else of them.
+     * Blocks that show up in several partitions are merged, the partitions come in the same order as the actions.
+     * @param query the actions to plan, only block changes are picked from them
+     */
+    public ChangeSet planChanges(DBObject query, List<DBCollection> collections, boolean rollback, QueryContext context) throws QueryException {
+        final BasicDBObject match = new BasicDBObject(query.toMap());
+        match.put(StorageSchema.FIELD_TYPE, ActionRecord.TYPE_BLOCK);
+        //Rollback walks back from the newest action, redo forward from the oldest
+        final DBObject sort = new BasicDBObject(StorageSchema.FIELD_DATE, rollback ? -1 : 1);
+
+        final BasicDBObject group = new BasicDBObject(StorageSchema.ID, new BasicDBObject(StorageSchema.FIELD_WORLD, "$" + StorageSchema.FIELD_WORLD).append(StorageSchema.FIELD_BLOCK_KEY, "$" + StorageSchema.FIELD_BLOCK_KEY));
+        group.put("actions", new BasicDBObject("$push", new BasicDBObject(StorageSchema.FIELD_MATERIAL_FROM, "$" + StorageSchema.FIELD_MATERIAL_FROM)
+                .append(StorageSchema.FIELD_MATERIAL_TO, "$" + StorageSchema.FIELD_MATERIAL_TO).append(StorageSchema.ID, "$" + StorageSchema.ID)));
+
+        final List<DBObject> aggregationPipeline = new ArrayList<>();
+        aggregationPipeline.add(new BasicDBObject("$match", match));
+        aggregationPipeline.add(new BasicDBObject("$sort", sort));
+        aggregationPipeline.add(new BasicDBObject("$group", group));
+
+        final ChangeSet changes = new ChangeSet();
+        for (DBCollection collection : collections) {
+            for (DBObject res : aggregate(Collections.singletonList(collection), aggregationPipeline, context)) {
+                final DBObject position = (DBObject) res.get(StorageSchema.ID);
+                final int world = ((Number) position.get(StorageSchema.FIELD_WORLD)).intValue();
+                final long pos = BlockPos.fromBlockKey(((Number) position.get(StorageSchema.FIELD_BLOCK_KEY)).longValue());
+                for (Object element : (List<?>) res.get("actions")) {
+                    final DBObject action = (DBObject) element;
+                    final int materialFrom = toMaterialId(action.get(StorageSchema.FIELD_MATERIAL_FROM));
+                    final int materialTo = toMaterialId(action.get(StorageSchema.FIELD_MATERIAL_TO));
+                    if (!changes.add(world, pos, rollback ? materialTo : materialFrom, rollback ? materialFrom : materialTo, collection, action.get(StorageSchema.ID)))
+                        break;
+                }
+            }
         }
+        return changes;
+    }
 
-        switch (queryParams.performMode) {
-            case GET:
-                queryParams.query.put("state", ActionState.IN_PLACE.getDbVal());
-                DBCursor getCursor = collection.find(queryParams.query).sort(queryParams.sort);
-
-                List<BaseAction> getActions = new ArrayList<>();
+    /**
+     * Compares the changes with snapshots of their chunks on this thread, marks those that still fit as attempted,
+     * has their blocks set over the next ticks, then stores the new states
+     * @return number of blocks set
+     */
+    private int applyToWorld(QueryContext context, final ChangeSet changes, final boolean rollback) throws QueryException {
+        plugin.getWorldApplier().plan(changes, context);
+        //Setting the blocks stops at the cancelled flag, the state updates around it are not interrupted
+        context.beginCommit();
+        final WorldApplier.Job job;
+        try {
+            final StateTransitions.Transition transition = plugin.getStateTransitions().begin(changes.getPlannedIds(plugin.getWorldApplier().getPlanningPool()), rollback ? ActionState.IN_PLACE : ActionState.GONE,
+                    rollback ? ActionState.ATTEMPTED_ROLLBACK : ActionState.ATTEMPTED_REDO);
+            try {
+                job = plugin.getWorldApplier().submit(changes, context, rollback ? "Rolling back" : "Redoing");
+                job.await();
+                //Also after a cancel, what made it into the world keeps its new state
+                transition.commit(changes.getAppliedIds(plugin.getWorldApplier().getPlanningPool()), rollback ? ActionState.GONE : ActionState.IN_PLACE);
+            } finally {
+                transition.finish();
+            }
+        } finally {
+            context.endCommit();
+        }
+        if (job.getFailure() != null)
+            throw new QueryException("Setting blocks failed after " + changes.getAppliedCount() + " blocks: " + job.getFailure(), job.getFailure());
+        if (job.isCancelled())
+            throw new QueryException("Query cancelled after " + changes.getAppliedCount() + " blocks");
+        return changes.getAppliedCount();
+    }
 
-                for(DBObject dbObject : getCursor)
-                    getActions.add(BaseAction.craftActionByTypeAndDBObject(dbObject));
+    /**
+     * Follows the chain of actions on one block in the order {@link #planChanges} walks them in and adds it to the
+     * window, up to the first action that does not start from what the one before left
+     * @param actions the block's actions, oldest first
+     * @return number of actions in the chain
+     */
+    private static int addChain(ChangeSet window, List<ActionSorter.Entry> actions, int count, boolean rollback, List<DBCollection> collections) {
+        for (int i = 0; i < count; i++) {
+            //Rollback walks back from the newest action, redo forward from the oldest
+            final ActionSorter.Entry action = actions.get(rollback ? count - 1 - i : i);
+            if (!window.add(action.world, action.position, rollback ? action.materialTo : action.materialFrom, rollback ? action.materialFrom : action.materialTo,
+                    collections.get(action.collection), action.id))
+                return i;
+        }
+        return count;
+    }
 
-                return new QueryResults(getActions.size(), getActions);
-            case ROLLBACK:
-                queryParams.query.put("state", ActionState.IN_PLACE.getDbVal());
-                DBCursor cursor = collection.find(queryParams.query).sort(new BasicDBObject("date", -1));
-
-                List<PlayerBlockAction> blockActions = new ArrayList<>();
-                List<PlayerInventoryAction> inventoryActions = new ArrayList<>();
-
-                for(DBObject dbObject : cursor) {
-                    BaseAction action = BaseAction.craftActionByTypeAndDBObject(dbObject);
-                    if(action instanceof PlayerBlockAction)
-                        blockActions.add((PlayerBlockAction)action);
-                    else if(action instanceof PlayerInventoryAction)
-                        inventoryActions.add((PlayerInventoryAction)action);
+    /**
+     * Rollback or redo with a bounded number of actions in memory: the actions are streamed into a sort that spills
+     * to disk, then read back block by block in chunk order and applied a window of chunks at a time.
+     * Reading the actions gets its own time limit, setting the blocks only stops when cancelled.
+     * @return number of blocks set
+     */
+    private int applySorted(QueryParams queryParams, List<DBCollection> collections, boolean rollback, QueryContext context) throws QueryException {
+        final BasicDBObject match = new BasicDBObject(queryParams.query);
+        match.put(StorageSchema.FIELD_TYPE, ActionRecord.TYPE_BLOCK);
+
+        context.restartDeadline(sortTimeoutMillis);
+        try (ActionSorter sorter = new ActionSorter(sortFolder, sortMemoryActions)) {
+            final ActionView view = new ActionView(plugin.getWorldIndex(), plugin.getPlayerIndex());
+            final ActionSorter.Entry scratch = new ActionSorter.Entry();
+            for (int i = 0; i < collections.size(); i++) {
+                DBCursor cursor = context.track(planner.find(collections.get(i), match, SORT_FIELDS, null).setDecoderFactory(RawDBCodecs.DECODER_FACTORY));
+                for (DBObject dbObject : cursor) {
+                    context.check();
+                    view.reset((RawDBObject) dbObject);
+                    if (!(view.getId() instanceof ObjectId))
+                        continue;
+                    scratch.world = view.getWorld();
+                    scratch.position = BlockPos.pack(view.getX(), view.getY(), view.getZ());
+                    scratch.time = view.getTime();
+                    scratch.materialFrom = view.getMaterialFrom();
+                    scratch.materialTo = view.getMaterialTo();
+                    scratch.collection = i;
+                    scratch.id = (ObjectId) view.getId();
+                    sorter.add(scratch);
                 }
-
-                Map<Location, Material> setMaterials = new HashMap<>();
-
-                for(PlayerBlockAction action : blockActions) {
-                    Material currentMaterial;
-                    Location currentLocation = action.getLocation();
-                    if (!setMaterials.containsKey(currentLocation))
-                        setMaterials.put(currentLocation, currentLocation.getBlock().getType());
-                    currentMaterial = setMaterials.get(currentLocation);
-
-                    if (currentMaterial.equals(action.getBlockTo())) {
-                        action.state = ActionState.GONE;
-                        collection.update(new BasicDBObject("_id", action.getDbID()), action.toDBObject());
-                        setMaterials.put(currentLocation, action.getBlockFrom());
+            }
+
+            final ActionSorter.Reader reader = sorter.read();
+            //Entries of the current block, filled again for the next ones
+            final List<ActionSorter.Entry> actions = new ArrayList<>();
+            ChangeSet window = new ChangeSet();
+            int windowActions = 0, count = 0;
+            ActionSorter.Entry entry = new ActionSorter.Entry();
+            boolean more = reader.next(entry);
+            while (more) {
+                context.checkCancelled();
+                final int world = entry.world;
+                final long position = entry.position;
+                int actionCount = 0;
+                do {
+                    final ActionSorter.Entry spare;
+                    if (actionCount < actions.size()) {
+                        spare = actions.set(actionCount, entry);
+                    } else {
+                        spare = new ActionSorter.Entry();
+                        actions.add(entry);
                     }
+                    actionCount++;
+                    entry = spare;
+                    more = reader.next(entry);
+                } while (more && entry.world == world && entry.position == position);
+                windowActions += addChain(window, actions, actionCount, rollback, collections);
+
+                //Windows end between chunks, so no chunk is planned twice
+                if (windowActions >= sortWindowActions && (!more || entry.world != world || BlockPos.getChunkKey(entry.position) != BlockPos.getChunkKey(position))) {
+                    count += applyToWorld(context, window, rollback);
+                    window = new ChangeSet();
+                    windowActions = 0;
                 }
+            }
+            if (windowActions > 0)
+                count += applyToWorld(context, window, rollback);
+            return count;
+        } catch (IOException e) {
+            throw new QueryException("Could not sort the actions on disk", e);
+        }
+    }
 
-                int count = 0;
+    /**
+     * Counts the container transactions among the matches of a collection and the items in them
+     * @return the number of transactions and the number of items
+     */
+    private long[] countContainerItems(DBCollection collection, DBObject query, QueryContext context) throws QueryException {
+        final Object type = query.get(StorageSchema.FIELD_TYPE);
+        if (type instanceof Number && ((Number) type).intValue() != ActionRecord.TYPE_CONTAINER)
+            return new long[2];
+        final List<DBObject> aggregationPipeline = new ArrayList<>();
+        aggregationPipeline.add(new BasicDBObject("$match", new BasicDBObject("$and", Arrays.asList(query, new BasicDBObject(StorageSchema.FIELD_TYPE, ActionRecord.TYPE_CONTAINER)))));
+        aggregationPipeline.add(new BasicDBObject("$group", new BasicDBObject(StorageSchema.ID, null).append("documents", new BasicDBObject("$sum", 1))
+                .append("items", new BasicDBObject("$sum", new BasicDBObject("$size", "$" + StorageSchema.FIELD_ITEM)))));
+        for (DBObject res : aggregate(Collections.singletonList(collection), aggregationPipeline, context))
+            return new long[] { ((Number) res.get("documents")).longValue(), ((Number) res.get("items")).longValue() };
+        return new long[2];
+    }
 
-                for(Map.Entry<Location, Material> setMaterial : setMaterials.entrySet()) {
-                    setMaterial.getKey().getBlock().setType(setMaterial.getValue());
-                    count++;
+    /**
+     * Counts the matches on the server and only fetches the requested page, walking the partitions newest first.
+     * Pages are counted in lines: a container transaction shows one line per item, so in partitions that have some
+     * the page is found by walking the matches instead of skipping on the server.
+     */
+    private QueryResults doLookup(QueryParams queryParams, List<DBCollection> collections, DBObject sort, QueryContext context) throws QueryException {
+        final long maxDocuments = plugin.getQueryExecutor().getMaxDocuments();
+        final long[] counts = plugin.getQueryExecutor().count(collections, queryParams.query, context, (maxDocuments > 0) ? maxDocuments + 1 : 0);
+        long documents = 0;
+        for (long count : counts)
+            documents += count;
+        final boolean countLimited = maxDocuments > 0 && documents > maxDocuments;
+
+        final long[] lines = new long[counts.length];
+        final boolean[] hasContainers = new boolean[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                final long[] containers = countContainerItems(collections.get(i), queryParams.query, context);
+                hasContainers[i] = containers[0] > 0;
+                lines[i] = Math.max(0, counts[i] - containers[0] + containers[1]);
+            }
+            total += lines[i];
+        }
+        if (countLimited)
+            total -= documents - maxDocuments;
+
+        long skip = (long) (queryParams.page - 1) * pageSize;
+        int needed = pageSize;
+        final List<BaseAction> actions = new ArrayList<>();
+        final ActionView view = new ActionView(plugin.getWorldIndex(), plugin.getPlayerIndex());
+        for (int i = 0; i < counts.length && needed > 0; i++) {
+            if (skip >= lines[i]) {
+                skip -= lines[i];
+                continue;
+            }
+            final DBCursor cursor = planner.find(collections.get(i), queryParams.query, LOOKUP_FIELDS, sort).setDecoderFactory(RawDBCodecs.DECODER_FACTORY);
+            if (!hasContainers[i]) {
+                cursor.skip((int) skip).limit(needed).batchSize(needed);
+                skip = 0;
+            }
+            for (DBObject dbObject : context.track(cursor)) {
+                context.check();
+                //Actions before the page only need their type to be counted
+                if (skip > 0 && view.reset((RawDBObject) dbObject).getType() != ActionRecord.TYPE_CONTAINER) {
+                    skip--;
+                    continue;
                 }
-
-                return new QueryResults(count, null);
-            case REDO:
-                queryParams.query.put("state", ActionState.GONE.getDbVal());
-                DBCursor cursor2 = collection.find(queryParams.query).sort(new BasicDBObject("date", 1));
-
-                List<PlayerBlockAction> blockActions2 = new ArrayList<>();
-                List<PlayerInventoryAction> inventoryActions2 = new ArrayList<>();
-
-                for(DBObject dbObject : cursor2) {
-                    BaseAction action = BaseAction.craftActionByTypeAndDBObject(dbObject);
-                    if(action instanceof PlayerBlockAction)
-                        blockActions2.add((PlayerBlockAction)action);
-                    else if(action instanceof PlayerInventoryAction)
-                        inventoryActions2.add((PlayerInventoryAction)action);
+                for (BaseAction line : BaseAction.craftActionByTypeAndDBObject(dbObject).getLines()) {
+                    if (skip > 0) {
+                        skip--;
+                    } else if (needed > 0) {
+                        actions.add(line);
+                        needed--;
+                    }
                 }
+                if (needed == 0)
+                    break;
+            }
+            skip = 0;
+        }
 
-                Map<Location, Material> setMaterials2 = new HashMap<>();
+        if (!countLimited && !isUnknownWorld(queryParams) && plugin.getArchiveStore().hasSegments(queryParams.since, queryParams.before)) {
+            //Archived actions are older than anything still in the database
+            final ArchiveStore.Page archived = plugin.getArchiveStore().search(makeArchiveFilter(queryParams), context, skip, needed);
+            actions.addAll(archived.actions);
+            total += archived.total;
+        }
 
-                for(PlayerBlockAction action : blockActions2) {
-                    Material currentMaterial;
-                    Location currentLocation = action.getLocation();
-                    if (!setMaterials2.containsKey(currentLocation))
-                        setMaterials2.put(currentLocation, currentLocation.getBlock().getType());
-                    currentMaterial = setMaterials2.get(currentLocation);
+        final int pageCount = (int) Math.max(1, (total + pageSize - 1) / pageSize);
+        if (queryParams.page > pageCount)
+            throw new QueryException("There " + ((pageCount == 1) ? "is only 1 page" : "are only " + pageCount + " pages"));
+        return new QueryResults((int) Math.min(Integer.MAX_VALUE, total), actions, queryParams.page, pageCount, countLimited);
+    }
 
-                    if (currentMaterial.equals(action.getBlockFrom())) {
-                        action.state = ActionState.IN_PLACE;
-                        collection.update(new BasicDBObject("_id", action.getDbID()), action.toDBObject());
-                        setMaterials2.put(currentLocation, action.getBlockTo());
-                    }
-                }
+    public QueryResults doNormalQuery(QueryParams queryParams, QueryContext context) throws QueryException {
+        checkLayout();
+        if (queryParams.aggregationMode != null)
+            throw new QueryException("This method is for non-aggregation queries only");
 
-                int count2 = 0;
+        addLocation(queryParams);
+        addTimeSpan(queryParams);
+        addPlayers(queryParams, context);
 
-                for(Map.Entry<Location, Material> setMaterial : setMaterials2.entrySet()) {
-                    setMaterial.getKey().getBlock().setType(setMaterial.getValue());
-                    count2++;
-                }
+        queryParams.query.put(StorageSchema.FIELD_STATE, getMatchedState(queryParams.performMode).getDbVal());
+        final DBObject sort = getSort(queryParams);
+        final List<DBCollection> collections = getCollections(queryParams, sort);
 
-                return new QueryResults(count2, null);
+        switch (queryParams.performMode) {
+            case GET:
+                return doLookup(queryParams, collections, sort, context);
+            case ROLLBACK:
+            case REDO:
+                final boolean rollback = queryParams.performMode == QueryParams.PerformMode.ROLLBACK;
+                if (plugin.getStateTransitions().isReconciling())
+                    throw new QueryException("Still checking an interrupted rollback or redo against the world, try again shortly");
+                //One count decides whether the rollback is allowed and whether it is planned in memory
+                if (maxRollbackActions > 0 || sortMemoryActions > 0) {
+                    long count = 0;
+                    for (long collectionCount : plugin.getQueryExecutor().count(collections, queryParams.query, context, Math.max(maxRollbackActions, sortMemoryActions) + 1))
+                        count += collectionCount;
+                    if (maxRollbackActions > 0 && count > maxRollbackActions)
+                        throw new QueryException("This would " + (rollback ? "roll back" : "redo") + " more than " + maxRollbackActions + " actions, please narrow it down");
+                    if (sortMemoryActions > 0 && count > sortMemoryActions)
+                        return new QueryResults(applySorted(queryParams, collections, rollback, context), null);
+                }
+                return new QueryResults(applyToWorld(context, planChanges(queryParams.query, collections, rollback, context), rollback), null);
         }
         return null;
     }
+
+    /**
+     * Shows how the server would answer the query instead of running it
+     */
+    public List<String> explainQuery(QueryParams queryParams, QueryContext context) throws QueryException {
+        checkLayout();
+        addLocation(queryParams);
+        addTimeSpan(queryParams);
+        addPlayers(queryParams, context);
+
+        if (queryParams.aggregationMode != null)
+            queryParams.query.put(StorageSchema.FIELD_TYPE, ActionRecord.TYPE_BLOCK);
+        else
+            queryParams.query.put(StorageSchema.FIELD_STATE, getMatchedState(queryParams.performMode).getDbVal());
+
+        final DBObject sort = getSort(queryParams);
+        final List<String> lines = new ArrayList<>();
+        for (DBCollection collection : getCollections(queryParams, sort)) {
+            lines.add("Partition " + collection.getName() + ":");
+            lines.addAll(planner.explain(collection, queryParams.query, sort, context));
+        }
+        return lines;
+    }
 }
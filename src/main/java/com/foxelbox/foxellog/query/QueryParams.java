@@ -16,10 +16,13 @@
  */
 package com.foxelbox.foxellog.query;
 
+import com.foxelbox.foxellog.storage.StorageSchema;
 import com.mongodb.BasicDBObject;
 import org.bukkit.Location;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.UUID;
 
 public class QueryParams implements Serializable {
     public enum PerformMode {
@@ -34,12 +37,63 @@ public class QueryParams implements Serializable {
     }
 
     public BasicDBObject query = new BasicDBObject();
-    public BasicDBObject sort = new BasicDBObject("date", -1);
+    public BasicDBObject sort = new BasicDBObject(StorageSchema.FIELD_DATE, -1);
 
     public AggregationMode aggregationMode = null;
     public PerformMode performMode = PerformMode.GET;
+    public boolean explain = false;
+    /** Page of a lookup to show, starting at 1 */
+    public int page = 1;
+
+    /** Names to match the user against, null for everyone. Resolved on the query worker. */
+    public ArrayList<String> players = null;
+    /** Player who asked for their own actions, matched along with {@link #players} */
+    public UUID self = null;
 
     public boolean worldSet = false;
     public Location setLocation = null;
     public int area = -1;
+
+    /** Time span of the query in milliseconds, since inclusive and before exclusive */
+    public long since = Long.MIN_VALUE;
+    public long before = Long.MAX_VALUE;
+
+    /**
+     * Deep copy, queries add their own conditions to the filter while they run on a worker
+     */
+    public QueryParams copy() {
+        final QueryParams copy = new QueryParams();
+        copy.query = (BasicDBObject) query.copy();
+        copy.sort = (BasicDBObject) sort.copy();
+        copy.aggregationMode = aggregationMode;
+        copy.performMode = performMode;
+        copy.explain = explain;
+        copy.page = page;
+        copy.players = (players == null) ? null : new ArrayList<>(players);
+        copy.self = self;
+        copy.worldSet = worldSet;
+        copy.setLocation = (setLocation == null) ? null : setLocation.clone();
+        copy.area = area;
+        copy.since = since;
+        copy.before = before;
+        return copy;
+    }
+
+    /**
+     * Rough cost for scheduling, lower runs sooner: lookups before sums before rollbacks and redos,
+     * then by the volume of the area (everything if there is none)
+     */
+    public long getPriority() {
+        final long kind;
+        if (performMode != PerformMode.GET)
+            kind = 2;
+        else if (aggregationMode != null)
+            kind = 1;
+        else
+            kind = 0;
+        final long maxVolume = (1L << 48) - 1;
+        final long side = 2L * area + 1;
+        final long volume = (area >= 0 && side < (1L << 16)) ? side * side * side : maxVolume;
+        return (kind << 48) | Math.min(volume, maxVolume);
+    }
 }
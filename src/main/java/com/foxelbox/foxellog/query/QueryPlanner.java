@@ -0,0 +1,132 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.storage.IndexManager;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the index for a filter and hints it to the server, so a query never falls back to a collection scan
+ * because the server guessed wrong. Filters that no declared index covers are logged once per shape.
+ */
+public class QueryPlanner {
+    //Past this many blocks across, a player filter narrows things down better than the area
+    private static final int AREA_SELECTIVE_WIDTH = 128;
+
+    private final FoxelLog plugin;
+    private final Set<String> warnedShapes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public QueryPlanner(FoxelLog plugin) {
+        this.plugin = plugin;
+    }
+
+    private static int getRangeWidth(DBObject query, String field) {
+        final Object range = query.get(field);
+        if (!(range instanceof DBObject))
+            return 0;
+        final Object from = ((DBObject) range).get("$gte");
+        final Object to = ((DBObject) range).get("$lte");
+        if (!(from instanceof Number) || !(to instanceof Number))
+            return Integer.MAX_VALUE;
+        return ((Number) to).intValue() - ((Number) from).intValue();
+    }
+
+    /**
+     * @return name of the declared index that fits the filter best
+     */
+    public String chooseIndex(DBObject query) {
+        if (query.containsField(StorageSchema.FIELD_BLOCK_KEY))
+            return IndexManager.INDEX_BLOCK;
+        final boolean area = query.containsField(StorageSchema.FIELD_WORLD) && query.containsField(StorageSchema.FIELD_CHUNK_KEY);
+        final boolean user = query.containsField(StorageSchema.FIELD_USER);
+        if (area && !(user && getRangeWidth(query, StorageSchema.FIELD_X) > AREA_SELECTIVE_WIDTH))
+            return IndexManager.INDEX_AREA;
+        if (user)
+            return IndexManager.INDEX_USER;
+        if (query.containsField(StorageSchema.FIELD_ITEM))
+            return IndexManager.INDEX_ITEMS;
+        return IndexManager.INDEX_DATE;
+    }
+
+    private void warnUnindexed(DBObject query, String index) {
+        final Set<String> fields = new TreeSet<>(query.keySet());
+        fields.remove(StorageSchema.FIELD_STATE);
+        fields.remove(StorageSchema.FIELD_TYPE);
+        fields.remove(StorageSchema.FIELD_DATE);
+        if (fields.isEmpty())
+            return;
+        final String shape = fields.toString();
+        if (warnedShapes.add(shape))
+            plugin.getLogger().warning("No index covers queries on " + shape + ", they are answered through " + index);
+    }
+
+    /**
+     * Opens a cursor for the filter with the chosen index hinted, if that index is built already
+     */
+    public DBCursor find(DBCollection collection, DBObject query, DBObject sort) {
+        return find(collection, query, null, sort);
+    }
+
+    /**
+     * @param fields projection, null for whole documents
+     */
+    public DBCursor find(DBCollection collection, DBObject query, DBObject fields, DBObject sort) {
+        final DBCursor cursor = collection.find(query, fields).sort(sort);
+        final String index = chooseIndex(query);
+        if (index.equals(IndexManager.INDEX_DATE))
+            warnUnindexed(query, index);
+        if (plugin.getIndexManager().isReady(collection, index))
+            cursor.hint(index);
+        return cursor;
+    }
+
+    private static Object getPath(DBObject object, String... path) {
+        Object value = object;
+        for (String key : path) {
+            if (!(value instanceof DBObject))
+                return null;
+            value = ((DBObject) value).get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Runs the filter with explain and sums up how the server answered it
+     */
+    public List<String> explain(DBCollection collection, DBObject query, DBObject sort, QueryContext context) throws QueryInterface.QueryException {
+        final String index = chooseIndex(query);
+        final DBObject explained = context.track(find(collection, query, sort)).explain();
+        final List<String> lines = new ArrayList<>();
+        lines.add("Filter: " + query);
+        lines.add("Index: " + index + (plugin.getIndexManager().isReady(collection, index) ? "" : " (not built yet)"));
+        if (explained.containsField("cursor")) {
+            lines.add("Cursor: " + explained.get("cursor") + (Boolean.TRUE.equals(explained.get("scanAndOrder")) ? ", sorted in memory" : ""));
+            lines.add("Returned: " + explained.get("n") + ", keys scanned: " + explained.get("nscanned") + ", documents scanned: " + explained.get("nscannedObjects") + ", " + explained.get("millis") + "ms");
+        } else {
+            lines.add("Plan: " + getPath(explained, "queryPlanner", "winningPlan"));
+            lines.add("Returned: " + getPath(explained, "executionStats", "nReturned") + ", keys scanned: " + getPath(explained, "executionStats", "totalKeysExamined") + ", documents scanned: " + getPath(explained, "executionStats", "totalDocsExamined") + ", " + getPath(explained, "executionStats", "executionTimeMillis") + "ms");
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.util.BlockPos;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Does the main thread part of rollbacks and redos, a bit every tick: taking snapshots of the chunks they touch and
+ * setting the blocks.
+ * Changes are handled chunk by chunk, and all running jobs together only take up the configured part of a tick.
+ */
+public class WorldApplier {
+    private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+    /** Chunk snapshots do not go above this */
+    private static final int SNAPSHOT_HEIGHT = 256;
+
+    private final FoxelLog plugin;
+    private final long budgetNanos;
+    private final int snapshotBatchChunks;
+    private final ForkJoinPool planningPool;
+    /** Only touched on the main thread */
+    private final List<Work> jobs = new ArrayList<>();
+    private BukkitTask task;
+
+    public WorldApplier(FoxelLog plugin) {
+        this.plugin = plugin;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(plugin.configuration.getValue("apply-tick-budget-ms", "10")));
+        this.snapshotBatchChunks = Math.max(1, Integer.parseInt(plugin.configuration.getValue("apply-snapshot-chunks", "64")));
+        final int planningThreads = Integer.parseInt(plugin.configuration.getValue("planning-threads", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() - 1))));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.planningPool = new ForkJoinPool(Math.max(1, planningThreads), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("FoxelLog planner #" + threadNumber.incrementAndGet());
+                return thread;
+            }
+        }, null, false);
+    }
+
+    /**
+     * @return the world or null if it is not loaded
+     */
+    private World getWorld(int world) {
+        final String worldName = plugin.getWorldIndex().getName(world);
+        return (worldName == null) ? null : plugin.getServer().getWorld(worldName);
+    }
+
+    /**
+     * Main thread work of one query
+     */
+    public abstract class Work {
+        protected final QueryContext context;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled = false;
+        private volatile RuntimeException failure;
+
+        private Work(QueryContext context) {
+            this.context = context;
+        }
+
+        /**
+         * @return true once there is nothing left to do
+         */
+        protected abstract boolean run(long deadlineNanos);
+
+        protected void reportProgress() { }
+
+        protected boolean shouldStop(long deadlineNanos) {
+            return cancelled || System.nanoTime() - deadlineNanos > 0;
+        }
+
+        private void stop() {
+            cancelled = true;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Waits for the work to end. It does not time out, but stops when the query is cancelled.
+         */
+        public void await() {
+            try {
+                while (!done.await(50, TimeUnit.MILLISECONDS))
+                    context.checkCancelled();
+            } catch (InterruptedException e) {
+                stop();
+            } catch (QueryInterface.QueryException e) {
+                stop();
+            }
+        }
+
+        /**
+         * @return whether the work was stopped before it was done
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return what the work failed with on the main thread, null if it did not
+         */
+        public RuntimeException getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Sets the planned blocks still showing the expected material and notes them as applied
+     */
+    public class Job extends Work {
+        private final List<ChangeSet.WorldChanges> worlds;
+        private final String label;
+        private final int total;
+        private int done = 0;
+        private long nextProgressMillis;
+
+        private int worldIndex = 0;
+        private int next = 0;
+        private World world;
+        private long chunkKey;
+
+        private Job(ChangeSet changes, QueryContext context, String label) {
+            super(context);
+            this.worlds = new ArrayList<>(changes.getWorlds());
+            this.label = label;
+            this.total = changes.getPlannedCount();
+            this.nextProgressMillis = System.currentTimeMillis() + PROGRESS_INTERVAL_MILLIS;
+        }
+
+        @Override
+        protected boolean run(long deadlineNanos) {
+            for (; worldIndex < worlds.size(); worldIndex++, next = 0) {
+                final ChangeSet.WorldChanges changes = worlds.get(worldIndex);
+                if (next == 0) {
+                    world = getWorld(changes.getWorld());
+                    chunkKey = Long.MIN_VALUE;
+                }
+                while (next < changes.getPlannedCount()) {
+                    if (shouldStop(deadlineNanos))
+                        return isCancelled();
+                    final long pos = changes.getPlanned(next++);
+                    done++;
+                    if (world == null)
+                        continue;
+                    final int x = BlockPos.getX(pos), z = BlockPos.getZ(pos);
+                    if (BlockPos.getChunkKey(pos) != chunkKey) {
+                        chunkKey = BlockPos.getChunkKey(pos);
+                        world.loadChunk(x >> 4, z >> 4);
+                    }
+                    final Block block = world.getBlockAt(x, BlockPos.getY(pos), z);
+                    //The snapshot may be a few ticks old, anything else means something newer happened to the block
+                    if (block.getTypeId() != changes.getExpected(pos))
+                        continue;
+                    //By id, materials this server does not know are set as they were logged
+                    block.setTypeId(changes.getTarget(pos));
+                    changes.addApplied(pos);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void reportProgress() {
+            final long now = System.currentTimeMillis();
+            if (now < nextProgressMillis)
+                return;
+            nextProgressMillis = now + PROGRESS_INTERVAL_MILLIS;
+            context.reportProgress(label + ": " + done + "/" + total + " blocks");
+        }
+    }
+
+    /**
+     * Takes a snapshot of every chunk in a range of sorted positions, in order. None if the world is not loaded.
+     */
+    private class SnapshotJob extends Work {
+        private final int worldNumber;
+        private final long[] positions;
+        private final int to;
+        private int next;
+        private World world;
+        private final List<ChunkSnapshot> snapshots = new ArrayList<>();
+        /** Index of the first position of every chunk, followed by the end of the range */
+        private final int[] chunkStarts;
+
+        private SnapshotJob(int worldNumber, long[] positions, int from, int to, int chunks, QueryContext context) {
+            super(context);
+            this.worldNumber = worldNumber;
+            this.positions = positions;
+            this.next = from;
+            this.to = to;
+            this.chunkStarts = new int[chunks + 1];
+            this.chunkStarts[chunks] = to;
+        }
+
+        @Override
+        protected boolean run(long deadlineNanos) {
+            if (world == null) {
+                world = getWorld(worldNumber);
+                if (world == null)
+                    return true;
+            }
+            while (next < to) {
+                if (shouldStop(deadlineNanos))
+                    return isCancelled();
+                final long chunkKey = BlockPos.getChunkKey(positions[next]);
+                chunkStarts[snapshots.size()] = next;
+                snapshots.add(world.getChunkAt(BlockPos.getChunkX(positions[next]), BlockPos.getChunkZ(positions[next])).getChunkSnapshot(false, false, false));
+                do {
+                    next++;
+                } while (next < to && BlockPos.getChunkKey(positions[next]) == chunkKey);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Compares the positions of a range of snapshotted chunks with the snapshots, splitting the range by chunk
+     * @return the positions still showing the expected material, in order
+     */
+    private static class CompareTask extends RecursiveTask<long[]> {
+        private static final int MIN_POSITIONS = 1024;
+
+        private final ChangeSet.WorldChanges changes;
+        private final SnapshotJob snapshots;
+        private final int fromChunk, toChunk;
+
+        private CompareTask(ChangeSet.WorldChanges changes, SnapshotJob snapshots, int fromChunk, int toChunk) {
+            this.changes = changes;
+            this.snapshots = snapshots;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected long[] compute() {
+            final int[] chunkStarts = snapshots.chunkStarts;
+            if (toChunk - fromChunk > 1 && chunkStarts[toChunk] - chunkStarts[fromChunk] > MIN_POSITIONS) {
+                final int middle = (fromChunk + toChunk) >>> 1;
+                final CompareTask left = new CompareTask(changes, snapshots, fromChunk, middle);
+                left.fork();
+                final long[] right = new CompareTask(changes, snapshots, middle, toChunk).compute();
+                final long[] result = left.join();
+                final long[] merged = Arrays.copyOf(result, result.length + right.length);
+                System.arraycopy(right, 0, merged, result.length, right.length);
+                return merged;
+            }
+
+            final long[] positions = snapshots.positions;
+            final long[] planned = new long[chunkStarts[toChunk] - chunkStarts[fromChunk]];
+            int count = 0;
+            for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+                final ChunkSnapshot snapshot = snapshots.snapshots.get(chunk);
+                for (int i = chunkStarts[chunk]; i < chunkStarts[chunk + 1]; i++) {
+                    final long pos = positions[i];
+                    final int y = BlockPos.getY(pos);
+                    if (y < 0 || y >= SNAPSHOT_HEIGHT)
+                        continue;
+                    if (snapshot.getBlockTypeId(BlockPos.getX(pos) & 15, y, BlockPos.getZ(pos) & 15) == changes.getExpected(pos))
+                        planned[count++] = pos;
+                }
+            }
+            return Arrays.copyOf(planned, count);
+        }
+    }
+
+    private void schedule(final Work work) {
+        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                jobs.add(work);
+                if (task == null) {
+                    task = plugin.getServer().getScheduler().runTaskTimer(plugin, new Runnable() {
+                        @Override
+                        public void run() {
+                            tick();
+                        }
+                    }, 1, 1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Plans the changes whose blocks show the expected material, comparing against chunk snapshots on the planning
+     * pool. The snapshots are taken a batch of chunks at a time so only a few are held at once, the next batch is
+     * taken while the last one is compared.
+     * @throws QueryInterface.QueryException if the query was cancelled
+     */
+    public void plan(ChangeSet changeSet, QueryContext context) throws QueryInterface.QueryException {
+        for (ChangeSet.WorldChanges changes : changeSet.getWorlds()) {
+            final long[] positions = changes.getPositions();
+            SnapshotJob pending = takeSnapshots(changes.getWorld(), positions, 0, context);
+            try {
+                while (pending != null) {
+                    final SnapshotJob job = pending;
+                    pending = null;
+                    job.await();
+                    if (job.getFailure() != null)
+                        throw new QueryInterface.QueryException("Could not take chunk snapshots: " + job.getFailure(), job.getFailure());
+                    if (job.isCancelled())
+                        throw new QueryInterface.QueryException("Query cancelled");
+                    if (job.world == null)
+                        break;
+                    pending = takeSnapshots(changes.getWorld(), positions, job.to, context);
+                    for (long pos : planningPool.invoke(new CompareTask(changes, job, 0, job.snapshots.size())))
+                        changes.addPlanned(pos);
+                }
+            } finally {
+                //Nobody waits for it anymore
+                if (pending != null)
+                    ((Work) pending).cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Queues snapshots of the next batch of chunks
+     * @return the job or null if there are no positions left
+     */
+    private SnapshotJob takeSnapshots(int world, long[] positions, int from, QueryContext context) {
+        if (from >= positions.length)
+            return null;
+        int to = from, chunks = 0;
+        while (to < positions.length && (chunks < snapshotBatchChunks || BlockPos.getChunkKey(positions[to - 1]) == BlockPos.getChunkKey(positions[to]))) {
+            if (to == from || BlockPos.getChunkKey(positions[to - 1]) != BlockPos.getChunkKey(positions[to]))
+                chunks++;
+            to++;
+        }
+        final SnapshotJob job = new SnapshotJob(world, positions, from, to, chunks, context);
+        schedule(job);
+        return job;
+    }
+
+    public ForkJoinPool getPlanningPool() {
+        return planningPool;
+    }
+
+    /**
+     * Queues the planned changes, can be called from any thread
+     */
+    public Job submit(ChangeSet changes, QueryContext context, String label) {
+        final Job job = new Job(changes, context, label);
+        schedule(job);
+        return job;
+    }
+
+    private void tick() {
+        final long deadlineNanos = System.nanoTime() + budgetNanos;
+        //Oldest job first, the others get what is left of the budget
+        for (int i = 0; i < jobs.size(); i++) {
+            final Work job = jobs.get(i);
+            boolean finished;
+            try {
+                finished = job.run(deadlineNanos);
+            } catch (RuntimeException e) {
+                //Running it again next tick would fail the same way
+                job.failure = e;
+                job.cancelled = true;
+                finished = true;
+            }
+            if (finished) {
+                jobs.remove(i--);
+                job.done.countDown();
+            } else {
+                job.reportProgress();
+            }
+        }
+        if (jobs.isEmpty()) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Stops every job, call on the main thread
+     */
+    public void stop() {
+        planningPool.shutdownNow();
+        for (Work job : jobs) {
+            job.cancelled = true;
+            job.done.countDown();
+        }
+        jobs.clear();
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}
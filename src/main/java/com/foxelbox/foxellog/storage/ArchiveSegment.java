@@ -0,0 +1,460 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A file of archived actions in date order, stored column by column.
+ * Dates and coordinates are delta encoded, users, worlds and materials go through a dictionary of the segment, so a
+ * segment can be read without the database. An uncompressed header with the time span and the bounds of the
+ * coordinates lets lookups skip segments without inflating them.
+ */
+public class ArchiveSegment {
+    private static final int MAGIC = 0x464C5347;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int COLUMN_TIME = 0;
+    private static final int COLUMN_TYPE = 1;
+    private static final int COLUMN_WORLD = 2;
+    private static final int COLUMN_X = 3;
+    private static final int COLUMN_Y = 4;
+    private static final int COLUMN_Z = 5;
+    private static final int COLUMN_USER = 6;
+    private static final int COLUMN_MATERIAL_FROM = 7;
+    private static final int COLUMN_MATERIAL_TO = 8;
+    private static final int COLUMN_AMOUNT = 9;
+    private static final int COLUMN_STATE = 10;
+    private static final int COLUMN_ITEMS = 11;
+    private static final int COLUMN_MESSAGE = 12;
+    private static final int COLUMN_COUNT = 13;
+
+    /**
+     * Growable byte buffer with variable length integers
+     */
+    private static class Column {
+        private byte[] data;
+        private int length;
+        private int position;
+
+        private Column(int capacity) {
+            data = new byte[capacity];
+        }
+
+        private Column(byte[] data) {
+            this.data = data;
+            this.length = data.length;
+        }
+
+        private void clear() {
+            length = 0;
+            position = 0;
+        }
+
+        private void writeByte(int value) {
+            if (length == data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            data[length++] = (byte) value;
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            for (byte b : bytes)
+                writeByte(b);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private long readSignedVarLong() {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        private int readSignedVarInt() {
+            return (int) readSignedVarLong();
+        }
+
+        private byte[] readBytes() {
+            final int size = readVarInt();
+            final byte[] bytes = Arrays.copyOfRange(data, position, position + size);
+            position += size;
+            return bytes;
+        }
+    }
+
+    public static class Header {
+        public final File file;
+        public final int count;
+        public final long minTime, maxTime;
+        public final int minX, maxX, minZ, maxZ;
+
+        private Header(File file, DataInput input) throws IOException {
+            this.file = file;
+            if (input.readInt() != MAGIC)
+                throw new IOException(file + " is not an archive segment");
+            if (input.readInt() != FORMAT_VERSION)
+                throw new IOException(file + " has an unknown format version");
+            count = input.readInt();
+            minTime = input.readLong();
+            maxTime = input.readLong();
+            minX = input.readInt();
+            maxX = input.readInt();
+            minZ = input.readInt();
+            maxZ = input.readInt();
+        }
+
+        public boolean overlaps(long since, long before) {
+            return maxTime >= since && minTime < before;
+        }
+
+        public boolean overlaps(int fromX, int toX, int fromZ, int toZ) {
+            return maxX >= fromX && minX <= toX && maxZ >= fromZ && minZ <= toZ;
+        }
+    }
+
+    public static Header readHeader(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return new Header(file, input);
+        }
+    }
+
+    /**
+     * Collects records (oldest first) and writes them out as one segment
+     */
+    public static class Writer {
+        private final WorldIndex worldIndex;
+        private final Column[] columns = new Column[COLUMN_COUNT];
+
+        private final Map<Integer, Integer> worlds = new LinkedHashMap<>();
+        private final Map<UUID, Integer> users = new LinkedHashMap<>();
+        private final List<String> userNames = new ArrayList<>();
+        private final Map<Integer, Integer> materials = new LinkedHashMap<>();
+
+        private int count;
+        private long minTime, maxTime, lastTime;
+        private int minX, maxX, minZ, maxZ;
+        private int lastX, lastY, lastZ;
+
+        public Writer(WorldIndex worldIndex) {
+            this.worldIndex = worldIndex;
+            for (int i = 0; i < COLUMN_COUNT; i++)
+                columns[i] = new Column(4096);
+            clear();
+        }
+
+        public void clear() {
+            for (Column column : columns)
+                column.clear();
+            worlds.clear();
+            users.clear();
+            userNames.clear();
+            materials.clear();
+            count = 0;
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+            lastTime = 0;
+            minX = minZ = Integer.MAX_VALUE;
+            maxX = maxZ = Integer.MIN_VALUE;
+            lastX = lastY = lastZ = 0;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        private static int lookup(Map<Integer, Integer> dictionary, int value) {
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(value, index);
+            }
+            return index;
+        }
+
+        public void add(ActionRecord record) {
+            columns[COLUMN_TIME].writeSignedVarLong(record.time - lastTime);
+            lastTime = record.time;
+            minTime = Math.min(minTime, record.time);
+            maxTime = Math.max(maxTime, record.time);
+
+            columns[COLUMN_TYPE].writeVarLong(record.type);
+            columns[COLUMN_WORLD].writeVarLong(lookup(worlds, record.world));
+
+            columns[COLUMN_X].writeSignedVarLong(record.x - lastX);
+            columns[COLUMN_Y].writeSignedVarLong(record.y - lastY);
+            columns[COLUMN_Z].writeSignedVarLong(record.z - lastZ);
+            lastX = record.x;
+            lastY = record.y;
+            lastZ = record.z;
+            minX = Math.min(minX, record.x);
+            maxX = Math.max(maxX, record.x);
+            minZ = Math.min(minZ, record.z);
+            maxZ = Math.max(maxZ, record.z);
+
+            final UUID uuid = new UUID(record.userMost, record.userLeast);
+            Integer user = users.get(uuid);
+            if (user == null) {
+                user = users.size();
+                users.put(uuid, user);
+                userNames.add(record.userName);
+            }
+            columns[COLUMN_USER].writeVarLong(user);
+
+            columns[COLUMN_MATERIAL_FROM].writeVarLong(lookup(materials, record.materialFrom));
+            columns[COLUMN_MATERIAL_TO].writeVarLong(lookup(materials, record.materialTo));
+            columns[COLUMN_AMOUNT].writeSignedVarLong(record.amount);
+            columns[COLUMN_STATE].writeVarLong(record.state);
+
+            final Column items = columns[COLUMN_ITEMS];
+            items.writeVarLong(record.itemCount);
+            for (int i = 0; i < record.itemCount; i++) {
+                items.writeVarLong(record.items[i]);
+                items.writeSignedVarLong(record.amounts[i]);
+            }
+
+            //0 for no message, otherwise length + 1
+            final Column message = columns[COLUMN_MESSAGE];
+            if (record.message == null) {
+                message.writeVarLong(0);
+            } else {
+                final byte[] bytes = record.message.getBytes(StandardCharsets.UTF_8);
+                message.writeVarLong(bytes.length + 1);
+                for (byte b : bytes)
+                    message.writeByte(b);
+            }
+
+            count++;
+        }
+
+        /**
+         * Writes the segment to a temporary file first, so a crash never leaves half a segment behind
+         */
+        public Header write(File file) throws IOException {
+            final File tempFile = new File(file.getPath() + ".tmp");
+            try (FileOutputStream fileOutput = new FileOutputStream(tempFile)) {
+                final DataOutputStream headerOutput = new DataOutputStream(new BufferedOutputStream(fileOutput));
+                headerOutput.writeInt(MAGIC);
+                headerOutput.writeInt(FORMAT_VERSION);
+                headerOutput.writeInt(count);
+                headerOutput.writeLong(minTime);
+                headerOutput.writeLong(maxTime);
+                headerOutput.writeInt(minX);
+                headerOutput.writeInt(maxX);
+                headerOutput.writeInt(minZ);
+                headerOutput.writeInt(maxZ);
+                headerOutput.flush();
+
+                final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try {
+                    final DeflaterOutputStream bodyOutput = new DeflaterOutputStream(fileOutput, deflater, 64 * 1024);
+                    final Column dictionaries = new Column(1024);
+                    dictionaries.writeVarLong(worlds.size());
+                    for (int world : worlds.keySet())
+                        dictionaries.writeBytes(String.valueOf(worldIndex.getName(world)).getBytes(StandardCharsets.UTF_8));
+                    dictionaries.writeVarLong(users.size());
+                    int user = 0;
+                    for (UUID uuid : users.keySet()) {
+                        dictionaries.writeVarLong(uuid.getMostSignificantBits());
+                        dictionaries.writeVarLong(uuid.getLeastSignificantBits());
+                        final String name = userNames.get(user++);
+                        dictionaries.writeBytes((name == null) ? new byte[0] : name.getBytes(StandardCharsets.UTF_8));
+                    }
+                    dictionaries.writeVarLong(materials.size());
+                    for (int material : materials.keySet())
+                        dictionaries.writeVarLong(material);
+                    writeColumn(bodyOutput, dictionaries);
+
+                    for (Column column : columns)
+                        writeColumn(bodyOutput, column);
+                    bodyOutput.finish();
+                } finally {
+                    deflater.end();
+                }
+                fileOutput.getFD().sync();
+            }
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file))
+                    throw new IOException("Could not move " + tempFile + " to " + file);
+            }
+            return readHeader(file);
+        }
+
+        private static void writeColumn(OutputStream output, Column column) throws IOException {
+            final Column length = new Column(8);
+            length.writeVarLong(column.length);
+            output.write(length.data, 0, length.length);
+            output.write(column.data, 0, column.length);
+        }
+    }
+
+    /**
+     * Reads the records of a segment back, oldest first
+     */
+    public static class Reader {
+        private final Column[] columns = new Column[COLUMN_COUNT];
+        private final int count;
+        private int index;
+
+        private final int[] worlds;
+        private final long[] userMost, userLeast;
+        private final String[] userNames;
+        private final int[] materials;
+
+        private long lastTime;
+        private int lastX, lastY, lastZ;
+
+        public Reader(Header header, WorldIndex worldIndex) throws IOException {
+            this.count = header.count;
+            try (FileInputStream fileInput = new FileInputStream(header.file)) {
+                //Skip the header, it is known already
+                new DataInputStream(fileInput).readFully(new byte[4 + 4 + 4 + 8 + 8 + 4 * 4]);
+                final DataInputStream bodyInput = new DataInputStream(new BufferedInputStream(new InflaterInputStream(fileInput), 64 * 1024));
+
+                final Column dictionaries = readColumn(bodyInput);
+                worlds = new int[dictionaries.readVarInt()];
+                for (int i = 0; i < worlds.length; i++)
+                    worlds[i] = worldIndex.lookup(new String(dictionaries.readBytes(), StandardCharsets.UTF_8));
+                final int userCount = dictionaries.readVarInt();
+                userMost = new long[userCount];
+                userLeast = new long[userCount];
+                userNames = new String[userCount];
+                for (int i = 0; i < userCount; i++) {
+                    userMost[i] = dictionaries.readVarLong();
+                    userLeast[i] = dictionaries.readVarLong();
+                    final byte[] name = dictionaries.readBytes();
+                    userNames[i] = (name.length == 0) ? null : new String(name, StandardCharsets.UTF_8);
+                }
+                materials = new int[dictionaries.readVarInt()];
+                for (int i = 0; i < materials.length; i++)
+                    materials[i] = dictionaries.readVarInt();
+
+                for (int i = 0; i < COLUMN_COUNT; i++)
+                    columns[i] = readColumn(bodyInput);
+            }
+        }
+
+        private static Column readColumn(DataInputStream input) throws IOException {
+            long length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = input.readByte();
+                length |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            final byte[] data = new byte[(int) length];
+            input.readFully(data);
+            return new Column(data);
+        }
+
+        /**
+         * Starts over at the first record, the segment stays in memory
+         */
+        public void rewind() {
+            for (Column column : columns)
+                column.position = 0;
+            index = 0;
+            lastTime = 0;
+            lastX = lastY = lastZ = 0;
+        }
+
+        /**
+         * @return false once all records were read
+         */
+        public boolean next(ActionRecord record) {
+            if (index >= count)
+                return false;
+            record.clear();
+
+            lastTime += columns[COLUMN_TIME].readSignedVarLong();
+            record.time = lastTime;
+            record.type = columns[COLUMN_TYPE].readVarInt();
+            record.world = worlds[columns[COLUMN_WORLD].readVarInt()];
+
+            lastX += columns[COLUMN_X].readSignedVarInt();
+            lastY += columns[COLUMN_Y].readSignedVarInt();
+            lastZ += columns[COLUMN_Z].readSignedVarInt();
+            record.x = lastX;
+            record.y = lastY;
+            record.z = lastZ;
+
+            final int user = columns[COLUMN_USER].readVarInt();
+            record.userMost = userMost[user];
+            record.userLeast = userLeast[user];
+            record.userName = userNames[user];
+
+            record.materialFrom = materials[columns[COLUMN_MATERIAL_FROM].readVarInt()];
+            record.materialTo = materials[columns[COLUMN_MATERIAL_TO].readVarInt()];
+            record.amount = columns[COLUMN_AMOUNT].readSignedVarInt();
+            record.state = columns[COLUMN_STATE].readVarInt();
+
+            final Column items = columns[COLUMN_ITEMS];
+            final int itemCount = items.readVarInt();
+            record.ensureItemCapacity(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                record.items[i] = items.readVarInt();
+                record.amounts[i] = items.readSignedVarInt();
+            }
+            record.itemCount = itemCount;
+
+            final Column message = columns[COLUMN_MESSAGE];
+            final int messageLength = message.readVarInt();
+            if (messageLength > 0) {
+                record.message = new String(message.data, message.position, messageLength - 1, StandardCharsets.UTF_8);
+                message.position += messageLength - 1;
+            }
+
+            index++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionCodec;
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.actions.BaseAction;
+import com.foxelbox.foxellog.query.QueryContext;
+import com.foxelbox.foxellog.query.QueryInterface;
+
+import com.mongodb.DBCollection;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The archive segments in the plugin folder and lookups over them
+ */
+public class ArchiveStore {
+    static final String SEGMENT_SUFFIX = ".fls";
+    /** Marks a partition whose segments are written but which may not be dropped yet */
+    static final String MARKER_SUFFIX = ".archiving";
+
+    /**
+     * What a lookup in the archive matches, everything is matched by default
+     */
+    public static class Filter {
+        public long since = Long.MIN_VALUE;
+        public long before = Long.MAX_VALUE;
+        public int world = -1;
+        public boolean hasArea = false;
+        public int fromX, toX, fromY, toY, fromZ, toZ;
+        /** UUIDs of the users to match, null for all */
+        public Set<UUID> users = null;
+        public int state = -1;
+
+        private boolean matches(ActionRecord record) {
+            if (record.time < since || record.time >= before)
+                return false;
+            if (world >= 0 && record.world != world)
+                return false;
+            if (hasArea && (record.x < fromX || record.x > toX || record.y < fromY || record.y > toY || record.z < fromZ || record.z > toZ))
+                return false;
+            if (state >= 0 && record.state != state)
+                return false;
+            return users == null || users.contains(new UUID(record.userMost, record.userLeast));
+        }
+    }
+
+    private final FoxelLog plugin;
+    private final File folder;
+    private final List<ArchiveSegment.Header> segments = new CopyOnWriteArrayList<>();
+
+    public ArchiveStore(FoxelLog plugin) {
+        this.plugin = plugin;
+        this.folder = new File(plugin.getDataFolder(), "archive");
+        folder.mkdirs();
+
+        recover();
+        final File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    //Left behind by a crash while writing
+                    file.delete();
+                } else if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(ArchiveSegment.readHeader(file));
+                    } catch (IOException e) {
+                        plugin.getLogger().warning("Ignoring archive segment " + file.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes what a crash interrupted between writing the segments of a partition and dropping it.
+     * If the partition is still there its segments are deleted, it is archived again later.
+     */
+    private void recover() {
+        final File[] markers = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(MARKER_SUFFIX);
+            }
+        });
+        if (markers == null)
+            return;
+        for (File marker : markers) {
+            final String partition = marker.getName().substring(0, marker.getName().length() - MARKER_SUFFIX.length());
+            if (plugin.getMongoDB().collectionExists(partition)) {
+                final File[] segmentFiles = folder.listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.startsWith(partition + "-") && name.endsWith(SEGMENT_SUFFIX);
+                    }
+                });
+                if (segmentFiles != null)
+                    for (File file : segmentFiles)
+                        file.delete();
+                plugin.getLogger().info("Partition " + partition + " was not dropped after archiving it, it is archived again");
+            }
+            marker.delete();
+        }
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    File getMarker(DBCollection partition) {
+        return new File(folder, partition.getName() + MARKER_SUFFIX);
+    }
+
+    void add(ArchiveSegment.Header header) {
+        for (ArchiveSegment.Header segment : segments)
+            if (segment.file.equals(header.file))
+                segments.remove(segment);
+        segments.add(header);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getArchivedCount() {
+        long count = 0;
+        for (ArchiveSegment.Header segment : segments)
+            count += segment.count;
+        return count;
+    }
+
+    public boolean hasSegments(long since, long before) {
+        for (ArchiveSegment.Header segment : segments)
+            if (segment.overlaps(since, before))
+                return true;
+        return false;
+    }
+
+    public static class Page {
+        /** Number of lines the matches in the whole archive show */
+        public final long total;
+        public final List<BaseAction> actions;
+
+        private Page(long total, List<BaseAction> actions) {
+            this.total = total;
+            this.actions = actions;
+        }
+    }
+
+    /**
+     * Counts the matches of every segment that can contain some, newest first, and only turns the ones on the
+     * requested page into actions. Pages are counted in lines, see {@link BaseAction#getLines()}.
+     * @param skip lines to skip, counted from the newest
+     * @param limit most lines to return
+     */
+    public Page search(Filter filter, QueryContext context, long skip, int limit) throws QueryInterface.QueryException {
+        final List<ArchiveSegment.Header> candidates = new ArrayList<>();
+        for (ArchiveSegment.Header segment : segments) {
+            if (!segment.overlaps(filter.since, filter.before))
+                continue;
+            if (filter.hasArea && !segment.overlaps(filter.fromX, filter.toX, filter.fromZ, filter.toZ))
+                continue;
+            candidates.add(segment);
+        }
+        Collections.sort(candidates, new Comparator<ArchiveSegment.Header>() {
+            @Override
+            public int compare(ArchiveSegment.Header o1, ArchiveSegment.Header o2) {
+                return Long.compare(o2.maxTime, o1.maxTime);
+            }
+        });
+
+        final List<BaseAction> results = new ArrayList<>();
+        final ActionRecord record = new ActionRecord();
+        long total = 0;
+        for (ArchiveSegment.Header segment : candidates) {
+            context.check();
+            try {
+                final ArchiveSegment.Reader reader = new ArchiveSegment.Reader(segment, plugin.getWorldIndex());
+                final long lines = countLines(reader, filter, record);
+                //Segments are stored oldest first, so the page is at the end of this one
+                final long pageFrom = lines - (skip + limit - total);
+                final long pageTo = lines - (skip - total);
+                if (pageTo > 0 && pageFrom < lines) {
+                    final List<BaseAction> segmentResults = new ArrayList<>();
+                    reader.rewind();
+                    long line = 0;
+                    while (line < pageTo && reader.next(record)) {
+                        if (!filter.matches(record))
+                            continue;
+                        final int lineCount = record.getLineCount();
+                        if (line + lineCount > pageFrom) {
+                            //Added back to front like the rest of the segment, so the lines keep their order
+                            final List<? extends BaseAction> actionLines = ActionCodec.forRecordType(record.type).createAction(record).getLines();
+                            for (int i = lineCount - 1; i >= 0; i--) {
+                                final long slot = line + lineCount - 1 - i;
+                                if (slot >= pageFrom && slot < pageTo)
+                                    segmentResults.add(actionLines.get(i));
+                            }
+                        }
+                        line += lineCount;
+                    }
+                    Collections.reverse(segmentResults);
+                    results.addAll(segmentResults);
+                }
+                total += lines;
+            } catch (IOException e) {
+                throw new QueryInterface.QueryException("Could not read archive segment " + segment.file.getName(), e);
+            }
+        }
+        return new Page(total, results);
+    }
+
+    private static long countLines(ArchiveSegment.Reader reader, Filter filter, ActionRecord record) {
+        long lines = 0;
+        while (reader.next(record))
+            if (filter.matches(record))
+                lines += record.getLineCount();
+        return lines;
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionCodec;
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.mongodb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves actions older than archive-after-days out of MongoDB into {@link ArchiveSegment} files.
+ * Partitions are dropped as a whole once they are archived, the unpartitioned collection is deleted from
+ * in batches after each segment is safely on disk.
+ */
+public class Archiver {
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final FoxelLog plugin;
+    private final ArchiveStore store;
+    private final long archiveAfterMillis;
+    private final int segmentSize;
+    private final long pauseMillis;
+
+    private Thread archiveThread;
+    private volatile boolean running = false;
+
+    private final AtomicLong archivedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    public Archiver(FoxelLog plugin, ArchiveStore store) {
+        this.plugin = plugin;
+        this.store = store;
+        this.archiveAfterMillis = TimeUnit.DAYS.toMillis(Long.parseLong(plugin.configuration.getValue("archive-after-days", "0")));
+        this.segmentSize = Integer.parseInt(plugin.configuration.getValue("archive-segment-size", "65536"));
+        this.pauseMillis = Long.parseLong(plugin.configuration.getValue("archive-pause-ms", "100"));
+    }
+
+    public boolean isEnabled() {
+        return archiveAfterMillis > 0;
+    }
+
+    /**
+     * Archives once an hour, if archiving is turned on
+     */
+    public void schedule() {
+        if (!isEnabled())
+            return;
+        final long hourTicks = 20 * 60 * 60;
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        }, 20 * 60 * 5, hourTicks);
+    }
+
+    /**
+     * @return false if archiving is turned off or already running
+     */
+    public synchronized boolean start() {
+        if (running || !isEnabled())
+            return false;
+        running = true;
+        archiveThread = new Thread("FoxelLog archiver") {
+            @Override
+            public void run() {
+                try {
+                    archive(System.currentTimeMillis() - archiveAfterMillis);
+                } catch (MongoException | IOException e) {
+                    plugin.getLogger().warning("Archiving failed after " + archivedCount.get() + " actions: " + e.getMessage());
+                } catch (InterruptedException e) {
+                } finally {
+                    running = false;
+                }
+            }
+        };
+        archiveThread.setDaemon(true);
+        archiveThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        try {
+            if (archiveThread != null)
+                archiveThread.join();
+        } catch (InterruptedException e) { }
+        archiveThread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getArchivedCount() {
+        return archivedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    private void archive(long horizon) throws IOException, InterruptedException {
+        final PartitionRouter router = plugin.getPartitionRouter();
+        final List<ArchiveSegment.Header> written = new ArrayList<>();
+        for (DBCollection partition : router.getPartitionsBefore(horizon)) {
+            if (!running)
+                return;
+            written.clear();
+            //Present from the first segment until the drop, a restart in between throws the segments away
+            final File marker = store.getMarker(partition);
+            if (!marker.createNewFile() && !marker.exists())
+                throw new IOException("Could not create " + marker);
+            if (archiveCollection(partition, horizon, false, written)) {
+                plugin.getLogger().info("Archived partition " + partition.getName() + ", dropping it");
+                router.drop(partition);
+                //Only searchable now, lookups would find the actions twice before
+                for (ArchiveSegment.Header header : written)
+                    store.add(header);
+                marker.delete(); //If that fails, the next start sees the partition is gone and keeps the segments
+            }
+        }
+        if (!running)
+            return;
+        final DBCollection baseCollection = router.getBaseCollection();
+        if (plugin.getSchemaMigrator().hasLegacyDocuments()) {
+            //Old layout actions have no date field of the compact layout, they are the oldest ones in insertion order
+            final BasicDBObject legacyQuery = new BasicDBObject(StorageSchema.FIELD_DATE, new BasicDBObject("$exists", false))
+                    .append("date", new BasicDBObject("$lt", new Date(horizon)));
+            if (!archiveCollection(baseCollection, legacyQuery, new BasicDBObject(StorageSchema.ID, 1), null, true, null))
+                return;
+        }
+        archiveCollection(baseCollection, horizon, true, null);
+    }
+
+    /**
+     * Writes everything older than the horizon to segments, oldest first
+     * @param written segments are collected here instead of being searchable right away, if not null
+     * @return true if everything was archived
+     */
+    private boolean archiveCollection(DBCollection collection, long horizon, boolean deleteArchived, List<ArchiveSegment.Header> written) throws IOException, InterruptedException {
+        final BasicDBObject query = new BasicDBObject(StorageSchema.FIELD_DATE, new BasicDBObject("$lt", new Date(horizon)));
+        return archiveCollection(collection, query, new BasicDBObject(StorageSchema.FIELD_DATE, 1), IndexManager.INDEX_DATE, deleteArchived, written);
+    }
+
+    /**
+     * @param hint index to use if it is built, may be null
+     */
+    private boolean archiveCollection(DBCollection collection, DBObject query, DBObject sort, String hint, boolean deleteArchived, List<ArchiveSegment.Header> written) throws IOException, InterruptedException {
+        final ArchiveSegment.Writer writer = new ArchiveSegment.Writer(plugin.getWorldIndex());
+        final BsonReader reader = new BsonReader();
+        final ActionRecord record = new ActionRecord();
+        final List<Object> ids = new ArrayList<>(segmentSize);
+
+        final DBCursor cursor = collection.find(query)
+                .sort(sort)
+                .batchSize(1000)
+                .setDecoderFactory(RawDBCodecs.DECODER_FACTORY);
+        if (hint != null && plugin.getIndexManager().isReady(collection, hint))
+            cursor.hint(hint);
+        try {
+            for (DBObject document : cursor) {
+                if (!running)
+                    return false;
+                final RawDBObject raw = (RawDBObject) document;
+                final ActionCodec codec = ActionCodec.decode(raw.getData(), raw.getDataOffset(), reader, record, plugin.getWorldIndex(), plugin.getPlayerIndex(), true);
+                if (codec == null) {
+                    skippedCount.incrementAndGet();
+                    continue;
+                }
+                writer.add(record);
+                ids.add(record.id);
+                if (writer.size() >= segmentSize) {
+                    writeSegment(collection, writer, ids, deleteArchived, written);
+                    if (pauseMillis > 0)
+                        Thread.sleep(pauseMillis);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (writer.size() > 0)
+            writeSegment(collection, writer, ids, deleteArchived, written);
+        return true;
+    }
+
+    private void writeSegment(DBCollection collection, ArchiveSegment.Writer writer, List<Object> ids, boolean deleteArchived, List<ArchiveSegment.Header> written) throws IOException {
+        //Named after the first action, so archiving the same actions again after a crash replaces the segment
+        final File file = new File(store.getFolder(), collection.getName() + "-" + ids.get(0) + ArchiveStore.SEGMENT_SUFFIX);
+        final ArchiveSegment.Header header = writer.write(file);
+        if (written != null)
+            written.add(header);
+        else
+            store.add(header);
+        archivedCount.addAndGet(writer.size());
+
+        if (deleteArchived) {
+            for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+                final List<Object> batch = ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH_SIZE));
+                collection.remove(new BasicDBObject(StorageSchema.ID, new BasicDBObject("$in", batch)));
+            }
+        }
+        writer.clear();
+        ids.clear();
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the indexes of the action collections in line with the set declared here.
+ * Missing indexes are built in the background after startup, managed indexes that are no longer declared are
+ * dropped once the declared version changes.
+ */
+public class IndexManager {
+    public static final int VERSION = 2;
+
+    private static final String MANAGED_PREFIX = "fl_";
+    static final String META_COLLECTION = "meta";
+    private static final String META_ID = "indexes";
+
+    public static final String INDEX_AREA = "fl_chunk";
+    public static final String INDEX_USER = "fl_user";
+    public static final String INDEX_DATE = "fl_date";
+    public static final String INDEX_BLOCK = "fl_block";
+    public static final String INDEX_ITEMS = "fl_items";
+
+    public static class IndexDefinition {
+        public final String name;
+        public final BasicDBObject keys;
+        public final boolean sparse;
+
+        IndexDefinition(String name, BasicDBObject keys, boolean sparse) {
+            this.name = name;
+            this.keys = keys;
+            this.sparse = sparse;
+        }
+    }
+
+    private static final List<IndexDefinition> definitions = Arrays.asList(
+            new IndexDefinition(INDEX_AREA, new BasicDBObject(StorageSchema.FIELD_WORLD, 1).append(StorageSchema.FIELD_CHUNK_KEY, 1).append(StorageSchema.FIELD_DATE, -1), false),
+            new IndexDefinition(INDEX_USER, new BasicDBObject(StorageSchema.FIELD_USER, 1).append(StorageSchema.FIELD_DATE, -1), false),
+            new IndexDefinition(INDEX_DATE, new BasicDBObject(StorageSchema.FIELD_DATE, -1), false),
+            new IndexDefinition(INDEX_BLOCK, new BasicDBObject(StorageSchema.FIELD_BLOCK_KEY, 1).append(StorageSchema.FIELD_WORLD, 1).append(StorageSchema.FIELD_DATE, -1), false),
+            new IndexDefinition(INDEX_ITEMS, new BasicDBObject(StorageSchema.FIELD_ITEM, 1), true)
+    );
+
+    private final FoxelLog plugin;
+    private final Set<String> readyIndexes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Thread buildThread;
+
+    public IndexManager(FoxelLog plugin) {
+        this.plugin = plugin;
+    }
+
+    public static List<IndexDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    private static Set<String> getExistingIndexes(DBCollection collection) {
+        final Set<String> names = new HashSet<>();
+        for (DBObject index : collection.getIndexInfo())
+            names.add((String) index.get("name"));
+        return names;
+    }
+
+    private static String getKey(DBCollection collection, String index) {
+        return collection.getName() + "/" + index;
+    }
+
+    private void createIndex(DBCollection collection, IndexDefinition definition) {
+        final BasicDBObject options = new BasicDBObject("name", definition.name).append("background", true);
+        if (definition.sparse)
+            options.append("sparse", true);
+        collection.createIndex(definition.keys, options);
+        readyIndexes.add(getKey(collection, definition.name));
+    }
+
+    /**
+     * Creates the declared indexes right away, for collections that are new and still empty
+     */
+    public void ensureIndexes(DBCollection collection) {
+        for (IndexDefinition definition : definitions)
+            createIndex(collection, definition);
+    }
+
+    /**
+     * Notes the indexes that exist already and builds the missing ones on a background thread
+     */
+    public void start(List<DBCollection> collections) {
+        final Map<DBCollection, Set<String>> existing = new LinkedHashMap<>();
+        boolean complete = true;
+        for (DBCollection collection : collections) {
+            final Set<String> names = getExistingIndexes(collection);
+            existing.put(collection, names);
+            for (IndexDefinition definition : definitions) {
+                if (names.contains(definition.name))
+                    readyIndexes.add(getKey(collection, definition.name));
+                else
+                    complete = false;
+            }
+        }
+
+        final DBCollection meta = plugin.getMongoDB().getCollection(META_COLLECTION);
+        final DBObject stored = meta.findOne(new BasicDBObject(StorageSchema.ID, META_ID));
+        final int storedVersion = (stored == null) ? 0 : ((Number) stored.get("version")).intValue();
+        if (complete && storedVersion == VERSION)
+            return;
+
+        buildThread = new Thread("FoxelLog index builder") {
+            @Override
+            public void run() {
+                try {
+                    for (Map.Entry<DBCollection, Set<String>> collection : existing.entrySet()) {
+                        for (IndexDefinition definition : definitions) {
+                            if (collection.getValue().contains(definition.name))
+                                continue;
+                            plugin.getLogger().info("Building index " + definition.name + " on " + collection.getKey().getName() + " in the background");
+                            createIndex(collection.getKey(), definition);
+                            plugin.getLogger().info("Index " + definition.name + " on " + collection.getKey().getName() + " is ready");
+                        }
+                        if (storedVersion == VERSION)
+                            continue;
+                        for (String name : collection.getValue()) {
+                            if (name.startsWith(MANAGED_PREFIX) && getDefinition(name) == null) {
+                                plugin.getLogger().info("Dropping index " + name + " on " + collection.getKey().getName() + ", it is not used anymore");
+                                collection.getKey().dropIndex(name);
+                            }
+                        }
+                    }
+                    if (storedVersion != VERSION)
+                        meta.save(new BasicDBObject(StorageSchema.ID, META_ID).append("version", VERSION));
+                } catch (MongoException e) {
+                    plugin.getLogger().warning("Could not build indexes: " + e.getMessage());
+                }
+            }
+        };
+        buildThread.setDaemon(true);
+        buildThread.start();
+    }
+
+    public static IndexDefinition getDefinition(String name) {
+        for (IndexDefinition definition : definitions)
+            if (definition.name.equals(name))
+                return definition;
+        return null;
+    }
+
+    /**
+     * @return true if the index exists on the collection and is done building, only those can be used as hints
+     */
+    public boolean isReady(DBCollection collection, String name) {
+        return readyIndexes.contains(getKey(collection, name));
+    }
+}
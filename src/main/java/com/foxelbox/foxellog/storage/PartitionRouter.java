@@ -0,0 +1,222 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.BaseAction;
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads actions over one collection per day or week, named after the day the partition starts ("actions_20140616").
+ * Actions older than the moment partitioning was first turned on stay in the base collection, which is treated as
+ * one more partition covering everything before that.
+ * Retention drops whole partitions instead of removing single actions.
+ */
+public class PartitionRouter {
+    public enum Period {
+        DAY(TimeUnit.DAYS.toMillis(1)),
+        WEEK(TimeUnit.DAYS.toMillis(7));
+
+        private final long millis;
+
+        Period(long millis) {
+            this.millis = millis;
+        }
+
+        public static Period getByName(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    private static final String META_ID = "partitions";
+    //1969-12-29 was a Monday, weeks start there
+    private static final long EPOCH_OFFSET_MILLIS = -TimeUnit.DAYS.toMillis(3);
+
+    private final FoxelLog plugin;
+    private final DB db;
+    private final DBCollection baseCollection;
+    private final String prefix;
+    private final Period period;
+    private final long partitionedSince;
+    private final ConcurrentSkipListMap<Long, DBCollection> partitions = new ConcurrentSkipListMap<>();
+
+    public PartitionRouter(FoxelLog plugin) {
+        this.plugin = plugin;
+        this.db = plugin.getMongoDB();
+        this.baseCollection = prepare(db.getCollection(BaseAction.getCollection()));
+        this.prefix = BaseAction.getCollection() + "_";
+
+        final Period configuredPeriod = Period.getByName(plugin.configuration.getValue("partition-period", "week"));
+        final DBCollection meta = db.getCollection(IndexManager.META_COLLECTION);
+        final DBObject stored = meta.findOne(new BasicDBObject(StorageSchema.ID, META_ID));
+        if (stored == null) {
+            period = configuredPeriod;
+            partitionedSince = System.currentTimeMillis();
+            meta.save(new BasicDBObject(StorageSchema.ID, META_ID).append("period", period.name()).append("since", partitionedSince));
+        } else {
+            //Boundaries of existing partitions can not move, so the period chosen first sticks
+            period = Period.getByName((String) stored.get("period"));
+            partitionedSince = ((Number) stored.get("since")).longValue();
+            if (period != configuredPeriod)
+                plugin.getLogger().warning("Actions are partitioned by " + period.name().toLowerCase() + ", ignoring partition-period");
+        }
+
+        final SimpleDateFormat nameFormat = newNameFormat();
+        for (String name : db.getCollectionNames()) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                partitions.put(nameFormat.parse(name.substring(prefix.length())).getTime(), prepare(db.getCollection(name)));
+            } catch (ParseException e) {
+                plugin.getLogger().warning("Ignoring collection " + name + ", it looks like a partition but is not named like one");
+            }
+        }
+    }
+
+    private static SimpleDateFormat newNameFormat() {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    private static DBCollection prepare(DBCollection collection) {
+        collection.setDBEncoderFactory(RawDBCodecs.ENCODER_FACTORY);
+        return collection;
+    }
+
+    private long getPartitionStart(long time) {
+        final long offsetTime = time - EPOCH_OFFSET_MILLIS;
+        return offsetTime - ((offsetTime % period.millis) + period.millis) % period.millis + EPOCH_OFFSET_MILLIS;
+    }
+
+    /**
+     * @return the collection actions from that time are stored in, new partitions are created with their indexes
+     */
+    public DBCollection getCollection(long time) {
+        if (time < partitionedSince)
+            return baseCollection;
+        final long start = getPartitionStart(time);
+        DBCollection collection = partitions.get(start);
+        if (collection == null) {
+            synchronized (this) {
+                collection = partitions.get(start);
+                if (collection == null) {
+                    collection = prepare(db.getCollection(prefix + newNameFormat().format(new Date(start))));
+                    plugin.getIndexManager().ensureIndexes(collection);
+                    partitions.put(start, collection);
+                }
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * @param from inclusive, in milliseconds
+     * @param to exclusive, in milliseconds
+     * @return the collections that can hold actions of that time span, in order of time
+     */
+    public List<DBCollection> getCollections(long from, long to, boolean newestFirst) {
+        final List<DBCollection> collections = new ArrayList<>();
+        if (from < partitionedSince)
+            collections.add(baseCollection);
+        if (to > from) {
+            final long fromStart = (from < partitionedSince) ? Long.MIN_VALUE : getPartitionStart(from);
+            collections.addAll(partitions.subMap(fromStart, true, to, false).values());
+        }
+        if (newestFirst)
+            Collections.reverse(collections);
+        return collections;
+    }
+
+    public List<DBCollection> getAllCollections() {
+        return getCollections(Long.MIN_VALUE, Long.MAX_VALUE, false);
+    }
+
+    public DBCollection getBaseCollection() {
+        return baseCollection;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @return the partitions that only hold actions older than the given time, oldest first
+     */
+    public List<DBCollection> getPartitionsBefore(long time) {
+        return new ArrayList<>(partitions.headMap(getPartitionStart(time), false).values());
+    }
+
+    public void drop(DBCollection partition) {
+        for (Map.Entry<Long, DBCollection> entry : partitions.entrySet())
+            if (entry.getValue().getName().equals(partition.getName()))
+                partitions.remove(entry.getKey());
+        partition.drop();
+    }
+
+    /**
+     * Drops every partition that only holds actions older than the given time
+     * @return number of partitions dropped
+     */
+    public int dropBefore(long time) {
+        int dropped = 0;
+        for (DBCollection partition : getPartitionsBefore(time)) {
+            plugin.getLogger().info("Dropping partition " + partition.getName() + ", it is past retention");
+            drop(partition);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Checks for expired partitions once an hour, if a retention is configured
+     */
+    public void startRetention() {
+        final long retentionDays = Long.parseLong(plugin.configuration.getValue("retention-days", "0"));
+        if (retentionDays <= 0)
+            return;
+        //The archiver drops partitions once they are archived, retention must not get to them first
+        final long archiveAfterDays = Long.parseLong(plugin.configuration.getValue("archive-after-days", "0"));
+        if (archiveAfterDays > 0 && retentionDays <= archiveAfterDays) {
+            plugin.getLogger().warning("retention-days (" + retentionDays + ") has to be larger than archive-after-days (" + archiveAfterDays + "), retention is turned off");
+            return;
+        }
+        final long retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        final long hourTicks = 20 * 60 * 60;
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                dropBefore(System.currentTimeMillis() - retentionMillis);
+            }
+        }, 20 * 60, hourTicks);
+    }
+}
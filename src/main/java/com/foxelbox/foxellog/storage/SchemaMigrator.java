@@ -0,0 +1,192 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionCodec;
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.actions.BaseAction;
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.mongodb.*;
+import org.bson.types.ObjectId;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites documents stored before {@link StorageSchema} into the compact layout, one batch at a time,
+ * while the server keeps running.
+ * Queries only understand the compact layout, so they are refused until a migration went through once.
+ */
+public class SchemaMigrator {
+    private final FoxelLog plugin;
+    private final DBCollection collection;
+
+    private Thread migrationThread;
+    private volatile boolean running = false;
+    private volatile boolean pending;
+
+    private final AtomicLong migratedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    public SchemaMigrator(FoxelLog plugin) {
+        this.plugin = plugin;
+        this.collection = plugin.getMongoDB().getCollection(BaseAction.getCollection());
+        this.pending = hasLegacyDocuments();
+    }
+
+    private static int getVersion(DBObject document) {
+        final Object version = document.get(StorageSchema.FIELD_VERSION);
+        return version == null ? 1 : ((Number) version).intValue();
+    }
+
+    /**
+     * Old documents are the oldest ones, so looking at the first document is enough
+     */
+    public boolean hasLegacyDocuments() {
+        final DBCursor oldest = collection.find().sort(new BasicDBObject(StorageSchema.ID, 1)).limit(1);
+        try {
+            return oldest.hasNext() && getVersion(oldest.next()) < StorageSchema.VERSION;
+        } finally {
+            oldest.close();
+        }
+    }
+
+    /**
+     * @return false if a migration is already running
+     */
+    public synchronized boolean start() {
+        if (running)
+            return false;
+        final int batchSize = Integer.parseInt(plugin.configuration.getValue("migrate-batch-size", "1000"));
+        final long pauseMillis = Long.parseLong(plugin.configuration.getValue("migrate-pause-ms", "100"));
+        migratedCount.set(0);
+        skippedCount.set(0);
+        running = true;
+        migrationThread = new Thread("FoxelLog schema migration") {
+            @Override
+            public void run() {
+                try {
+                    migrate(batchSize, pauseMillis);
+                    if (running)
+                        pending = false;
+                    plugin.getLogger().info("Schema migration " + (running ? "finished" : "stopped") + ", " + migratedCount.get() + " actions rewritten, " + skippedCount.get() + " skipped");
+                } catch (MongoException e) {
+                    plugin.getLogger().warning("Schema migration failed after " + migratedCount.get() + " actions: " + e.getMessage());
+                } catch (InterruptedException e) {
+                } finally {
+                    running = false;
+                }
+            }
+        };
+        migrationThread.setDaemon(true);
+        migrationThread.start();
+        return true;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        try {
+            if (migrationThread != null)
+                migrationThread.join();
+        } catch (InterruptedException e) { }
+        migrationThread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return true if old layout actions were found on start and no migration went through since
+     */
+    public boolean isPending() {
+        return pending;
+    }
+
+    public long getMigratedCount() {
+        return migratedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    private void migrate(int batchSize, long pauseMillis) throws InterruptedException {
+        final BsonReader reader = new BsonReader();
+        final BsonWriter writer = new BsonWriter(64 * 1024);
+        final ActionRecord record = new ActionRecord();
+        final int[] offsets = new int[batchSize];
+        final ObjectId[] ids = new ObjectId[batchSize];
+        final int[] states = new int[batchSize];
+        final String[] stateFields = new String[batchSize];
+        Object lastId = null;
+
+        while (running) {
+            //Also matches documents without a version
+            final BasicDBObject query = new BasicDBObject(StorageSchema.FIELD_VERSION, new BasicDBObject("$not", new BasicDBObject("$gte", StorageSchema.VERSION)));
+            if (lastId != null)
+                query.append(StorageSchema.ID, new BasicDBObject("$gt", lastId));
+
+            writer.reset();
+            int read = 0, count = 0;
+            final DBCursor cursor = collection.find(query).sort(new BasicDBObject(StorageSchema.ID, 1)).limit(batchSize).setDecoderFactory(RawDBCodecs.DECODER_FACTORY);
+            try {
+                for (DBObject document : cursor) {
+                    final RawDBObject raw = (RawDBObject) document;
+                    read++;
+                    lastId = raw.get(StorageSchema.ID);
+                    final ActionCodec codec = ActionCodec.decode(raw.getData(), raw.getDataOffset(), reader, record, plugin.getWorldIndex(), plugin.getPlayerIndex(), true);
+                    if (codec == null || !(record.id instanceof ObjectId)) {
+                        skippedCount.incrementAndGet();
+                        continue;
+                    }
+                    offsets[count] = writer.position();
+                    ids[count] = (ObjectId) record.id;
+                    states[count] = record.state;
+                    stateFields[count] = raw.containsField(StorageSchema.FIELD_VERSION) ? StorageSchema.FIELD_STATE : "state";
+                    if (record.player < 0)
+                        record.player = plugin.getPlayerIndex().getIndexKeepingName(record.userMost, record.userLeast, record.userName);
+                    codec.encode(record, ids[count], writer);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (read == 0)
+                break;
+
+            if (count > 0) {
+                final byte[] data = writer.toByteArray();
+                final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+                for (int i = 0; i < count; i++) {
+                    //Only replace what is still unchanged, a rollback in between keeps the document for the next run
+                    bulk.find(new BasicDBObject(StorageSchema.ID, ids[i]).append(stateFields[i], states[i]))
+                            .replaceOne(RawDBCodecs.wrap(data, offsets[i], collection));
+                }
+                final int matched = bulk.execute().getMatchedCount();
+                migratedCount.addAndGet(matched);
+                skippedCount.addAndGet(count - matched);
+            }
+
+            if (pauseMillis > 0)
+                Thread.sleep(pauseMillis);
+        }
+    }
+}
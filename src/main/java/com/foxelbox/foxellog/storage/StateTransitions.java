@@ -0,0 +1,205 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.FoxelLog;
+import com.foxelbox.foxellog.actions.ActionState;
+import com.foxelbox.foxellog.query.ChangeSet;
+import com.foxelbox.foxellog.query.QueryContext;
+import com.foxelbox.foxellog.query.QueryInterface;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves actions between states in two phases, the way PLANS.txt describes.
+ * The planned actions are first marked as attempted, which also keeps other rollbacks and redos from picking them up,
+ * and get their final state once the world is changed. Whatever was not applied goes back to where it came from.
+ * Each transition leaves a marker in the meta collection while it runs, so an interrupted one can be resolved on the
+ * next start by checking which of its blocks were already changed.
+ */
+public class StateTransitions {
+    private static final String META_TYPE = "transition";
+
+    private final FoxelLog plugin;
+    private final DBCollection meta;
+    private final int batchSize;
+    private volatile boolean reconciling = false;
+
+    public StateTransitions(FoxelLog plugin) {
+        this.plugin = plugin;
+        this.meta = plugin.getMongoDB().getCollection(IndexManager.META_COLLECTION);
+        this.batchSize = Integer.parseInt(plugin.configuration.getValue("state-update-batch-size", "1000"));
+    }
+
+    public class Transition {
+        private final ObjectId markerId;
+        private final Map<DBCollection, List<Object>> ids;
+        private final ActionState from;
+        private final ActionState attempted;
+
+        private Transition(ObjectId markerId, Map<DBCollection, List<Object>> ids, ActionState from, ActionState attempted) {
+            this.markerId = markerId;
+            this.ids = ids;
+            this.from = from;
+            this.attempted = attempted;
+        }
+
+        /**
+         * Gives the actions that made it into the world their final state
+         */
+        public void commit(Map<DBCollection, List<Object>> applied, ActionState to) {
+            for (Map.Entry<DBCollection, List<Object>> entry : applied.entrySet())
+                setState(entry.getKey(), entry.getValue(), attempted, to);
+        }
+
+        /**
+         * Puts every action not committed back into its old state and ends the transition
+         */
+        public void finish() {
+            for (Map.Entry<DBCollection, List<Object>> entry : ids.entrySet())
+                setState(entry.getKey(), entry.getValue(), attempted, from);
+            meta.remove(new BasicDBObject(StorageSchema.ID, markerId));
+        }
+    }
+
+    /**
+     * Marks the actions as attempted
+     * @param ids the actions' ids per collection
+     */
+    public Transition begin(Map<DBCollection, List<Object>> ids, ActionState from, ActionState attempted) {
+        final BasicDBList collections = new BasicDBList();
+        for (DBCollection collection : ids.keySet())
+            collections.add(collection.getName());
+        final ObjectId markerId = new ObjectId();
+        meta.insert(new BasicDBObject(StorageSchema.ID, markerId).append("type", META_TYPE).append("collections", collections)
+                .append("attempted", attempted.getDbVal()));
+
+        for (Map.Entry<DBCollection, List<Object>> entry : ids.entrySet())
+            setState(entry.getKey(), entry.getValue(), from, attempted);
+        return new Transition(markerId, ids, from, attempted);
+    }
+
+    /**
+     * Sets the state of those actions still in the expected one, a batch of ids per update and one round trip per collection
+     */
+    private void setState(DBCollection collection, List<Object> ids, ActionState expected, ActionState state) {
+        if (ids.isEmpty())
+            return;
+        final DBObject update = new BasicDBObject("$set", new BasicDBObject(StorageSchema.FIELD_STATE, state.getDbVal()));
+        final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            final List<Object> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+            bulk.find(new BasicDBObject(StorageSchema.ID, new BasicDBObject("$in", batch)).append(StorageSchema.FIELD_STATE, expected.getDbVal())).update(update);
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Resolves the transitions left over from the last run on a background thread, the collections are not indexed by
+     * state. Rollbacks and redos have to wait for it, see {@link #isReconciling()}.
+     */
+    public void startReconcile() {
+        reconciling = true;
+        final Thread thread = new Thread("FoxelLog reconcile") {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                } catch (MongoException | QueryInterface.QueryException e) {
+                    plugin.getLogger().warning("Could not resolve an interrupted rollback or redo, trying again on the next start: " + e.getMessage());
+                } finally {
+                    reconciling = false;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true while transitions left over from the last run are resolved, no new ones may begin until then
+     */
+    public boolean isReconciling() {
+        return reconciling;
+    }
+
+    /**
+     * Resolves the actions of transitions that never finished, only safe while none are running.
+     * Their blocks are planned again and compared with the world the other way round: blocks that show what the
+     * rollback or redo sets were changed before it was interrupted and their actions get the final state, all other
+     * actions go back to where they came from.
+     * @return number of actions resolved
+     */
+    private int reconcile() throws QueryInterface.QueryException {
+        final List<DBObject> markers = new ArrayList<>();
+        final DBCursor cursor = meta.find(new BasicDBObject("type", META_TYPE));
+        try {
+            while (cursor.hasNext())
+                markers.add(cursor.next());
+        } finally {
+            cursor.close();
+        }
+        if (markers.isEmpty())
+            return 0;
+
+        final QueryContext context = new QueryContext(TimeUnit.DAYS.toMillis(1));
+        int count = 0, applied = 0;
+        for (DBObject marker : markers) {
+            final Object attemptedState = marker.get("attempted");
+            final List<ActionState> attemptedStates = (attemptedState instanceof Number) ? Collections.singletonList(ActionState.getByDbVal(((Number) attemptedState).intValue()))
+                    : Arrays.asList(ActionState.ATTEMPTED_ROLLBACK, ActionState.ATTEMPTED_REDO);
+            for (ActionState attempted : attemptedStates) {
+                final boolean rollback = attempted == ActionState.ATTEMPTED_ROLLBACK;
+                //The marker's partitions in the order of the actions
+                final List<DBCollection> collections = new ArrayList<>();
+                for (DBCollection collection : plugin.getPartitionRouter().getCollections(Long.MIN_VALUE, Long.MAX_VALUE, rollback))
+                    if (((List<?>) marker.get("collections")).contains(collection.getName()))
+                        collections.add(collection);
+
+                final ChangeSet changes = plugin.getQueryInterface().planChanges(new BasicDBObject(StorageSchema.FIELD_STATE, attempted.getDbVal()), collections, rollback, context);
+                changes.invert();
+                plugin.getWorldApplier().plan(changes, context);
+                for (Map.Entry<DBCollection, List<Object>> entry : changes.getPlannedIds(plugin.getWorldApplier().getPlanningPool()).entrySet()) {
+                    setState(entry.getKey(), entry.getValue(), attempted, rollback ? ActionState.GONE : ActionState.IN_PLACE);
+                    applied += entry.getValue().size();
+                    count += entry.getValue().size();
+                }
+                //Also the actions past a broken chain, which planning leaves out
+                final DBObject update = new BasicDBObject("$set", new BasicDBObject(StorageSchema.FIELD_STATE, (rollback ? ActionState.IN_PLACE : ActionState.GONE).getDbVal()));
+                for (DBCollection collection : collections)
+                    count += collection.updateMulti(new BasicDBObject(StorageSchema.FIELD_STATE, attempted.getDbVal()), update).getN();
+            }
+            meta.remove(new BasicDBObject(StorageSchema.ID, marker.get(StorageSchema.ID)));
+        }
+        if (count > 0)
+            plugin.getLogger().warning("Resolved " + count + " actions left over from an interrupted rollback or redo, " + applied + " of them had already been applied");
+        return count;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Field names and helpers of the compact document layout.
+ * Documents written before it have no version field and use the long names ("location.world", "user_uuid", ...).
+ * Version 2 stored the user as a UUID, version 3 stores the player's number from the player dictionary,
+ * version 4 adds the chunk key for area lookups.
+ */
+public class StorageSchema {
+    public static final int VERSION = 4;
+
+    public static final String COLLECTION_WORLDS = "worlds";
+    public static final String COLLECTION_PLAYERS = "players";
+
+    public static final String ID = "_id";
+    public static final String FIELD_VERSION = "v";
+    public static final String FIELD_DATE = "t";
+    public static final String FIELD_TYPE = "k";
+    public static final String FIELD_WORLD = "w";
+    public static final String FIELD_X = "x";
+    public static final String FIELD_Y = "y";
+    public static final String FIELD_Z = "z";
+    public static final String FIELD_BLOCK_KEY = "p";
+    public static final String FIELD_CHUNK_KEY = "q";
+    public static final String FIELD_USER = "u";
+    public static final String FIELD_STATE = "s";
+
+    public static final String FIELD_MATERIAL_FROM = "mf";
+    public static final String FIELD_MATERIAL_TO = "mt";
+    public static final String FIELD_CONTAINER = "c";
+    public static final String FIELD_ITEM = "i";
+    public static final String FIELD_AMOUNT = "n";
+    public static final String FIELD_MESSAGE = "m";
+
+    public static final String WORLD_NAME = "n";
+
+    public static final String PLAYER_UUID = "u";
+    public static final String PLAYER_NAME = "n";
+    public static final String PLAYER_NAME_LOWER = "l";
+
+    /**
+     * Packs a block position into one long, 26 bits for x and z and 12 bits for y.
+     * This is the stored key that rollbacks group by on the server. In memory they use
+     * {@link com.foxelbox.foxellog.util.BlockPos}, whose chunk first order keeps the blocks of a chunk together.
+     */
+    public static long packBlockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    public static int unpackX(long key) {
+        return (int) (key >> 38);
+    }
+
+    public static int unpackY(long key) {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int unpackZ(long key) {
+        return (int) (key << 26 >> 38);
+    }
+
+    /**
+     * Packs the chunk coordinates of a block position into one long, chunk x in the upper and chunk z in the lower half
+     */
+    public static long packChunkKey(int x, int z) {
+        return ((long) (x >> 4) << 32) | ((z >> 4) & 0xFFFFFFFFL);
+    }
+
+    public static BasicDBObject range(int from, int to) {
+        return new BasicDBObject("$gte", from).append("$lte", to);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import com.foxelbox.foxellog.storage.StorageSchema;
+
+/**
+ * Block positions packed into one long, chunk first so sorting positions groups them by chunk.
+ * 22 bits each for chunk x and z, 4 bits each for x and z within the chunk and 12 bits for y.
+ * Positions only tell blocks of one world apart. The lowest chunk x is never used (it is far outside any world border),
+ * so no position equals {@link Long#MIN_VALUE}.
+ * This is the in-memory key of the rollback engine. Stored documents carry
+ * {@link com.foxelbox.foxellog.storage.StorageSchema#packBlockKey(int, int, int)} instead, which orders by x and cannot
+ * be changed without rewriting every document; {@link #fromBlockKey(long)} converts.
+ */
+public class BlockPos {
+    public static long pack(int x, int y, int z) {
+        return ((long) (x >> 4) << 42) | (((long) (z >> 4) & 0x3FFFFF) << 20) | ((x & 15) << 16) | ((z & 15) << 12) | (y & 0xFFF);
+    }
+
+    /**
+     * @param blockKey a key packed by {@link com.foxelbox.foxellog.storage.StorageSchema#packBlockKey(int, int, int)}
+     */
+    public static long fromBlockKey(long blockKey) {
+        return pack(StorageSchema.unpackX(blockKey), StorageSchema.unpackY(blockKey), StorageSchema.unpackZ(blockKey));
+    }
+
+    public static int getX(long pos) {
+        return (getChunkX(pos) << 4) | (int) ((pos >>> 16) & 15);
+    }
+
+    public static int getY(long pos) {
+        return (int) (pos << 52 >> 52);
+    }
+
+    public static int getZ(long pos) {
+        return (getChunkZ(pos) << 4) | (int) ((pos >>> 12) & 15);
+    }
+
+    public static int getChunkX(long pos) {
+        return (int) (pos >> 42);
+    }
+
+    public static int getChunkZ(long pos) {
+        return (int) (pos << 22 >> 42);
+    }
+
+    /**
+     * @return the same value for all blocks of a chunk
+     */
+    public static long getChunkKey(long pos) {
+        return pos >> 20;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Arrays;
+
+/**
+ * Item amounts of an inventory by type id, in an open addressing map of ints.
+ * Data values are not kept apart, container actions only store the type of their items.
+ * Meant to be reused: capture the contents when a container is opened, subtract them when it is closed and what
+ * is left over is the difference.
+ */
+public class InventoryHistogram {
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] amounts;
+    /** Table slots in use, in insertion order */
+    private int[] used;
+    private int size = 0;
+
+    public InventoryHistogram() {
+        this(64);
+    }
+
+    public InventoryHistogram(int expectedEntries) {
+        int capacity = 16;
+        while (capacity < expectedEntries * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        amounts = new int[capacity];
+        used = new int[capacity / 2];
+    }
+
+    private static int hash(int key) {
+        final int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[used[i]] = EMPTY;
+            amounts[used[i]] = 0;
+        }
+        size = 0;
+    }
+
+    public void add(int key, int amount) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                amounts[slot] += amount;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        amounts[slot] = amount;
+        used[size++] = slot;
+        if (size * 2 >= keys.length)
+            grow();
+    }
+
+    /**
+     * Adds the amounts of all stacks times the sign (1 to add, -1 to subtract)
+     */
+    public void addAll(ItemStack[] items, int sign) {
+        for (final ItemStack item : items)
+            if (item != null)
+                add(item.getTypeId(), item.getAmount() * sign);
+    }
+
+    public int get(int key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return amounts[slot];
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys, oldAmounts = amounts, oldUsed = used;
+        final int oldSize = size;
+        keys = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        amounts = new int[keys.length];
+        used = new int[keys.length / 2];
+        size = 0;
+        for (int i = 0; i < oldSize; i++)
+            add(oldKeys[oldUsed[i]], oldAmounts[oldUsed[i]]);
+    }
+
+    /**
+     * @return number of distinct keys, including ones whose amount went back to 0
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getKeyAt(int index) {
+        return keys[used[index]];
+    }
+
+    public int getAmountAt(int index) {
+        return amounts[used[index]];
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys to short values, for large sets of block positions without a boxed key each.
+ * {@link Long#MIN_VALUE} can not be used as a key.
+ */
+public class LongShortMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private short[] values;
+    private int size = 0;
+
+    public LongShortMap() {
+        this(16);
+    }
+
+    public LongShortMap(int expectedEntries) {
+        int capacity = 16;
+        while (capacity * 3 < expectedEntries * 4)
+            capacity <<= 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new short[capacity];
+    }
+
+    private static int hash(long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private int find(long key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    public void put(long key, short value) {
+        final int slot = find(key);
+        values[slot] = value;
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            if (++size * 4 >= keys.length * 3)
+                grow();
+        }
+    }
+
+    /**
+     * Stores the value unless the key is there already
+     * @return whether it was stored
+     */
+    public boolean putIfAbsent(long key, short value) {
+        if (keys[find(key)] != EMPTY)
+            return false;
+        put(key, value);
+        return true;
+    }
+
+    public short get(long key, short missing) {
+        final int slot = find(key);
+        return (keys[slot] == EMPTY) ? missing : values[slot];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[find(key)] != EMPTY;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final short[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        values = new short[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                final int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the keys in no particular order
+     */
+    public long[] keys() {
+        final long[] result = new long[size];
+        int count = 0;
+        for (long key : keys)
+            if (key != EMPTY)
+                result[count++] = key;
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TimeUtils {
+    private static final Pattern RELATIVE_PART = Pattern.compile("(\\d+)([smhdw])");
+    private static final String[] ABSOLUTE_FORMATS = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd" };
+
+    private static long getUnitMillis(char unit) {
+        switch (unit) {
+            case 's':
+                return TimeUnit.SECONDS.toMillis(1);
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(1);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(1);
+            case 'd':
+                return TimeUnit.DAYS.toMillis(1);
+            default:
+                return TimeUnit.DAYS.toMillis(7);
+        }
+    }
+
+    /**
+     * Parses a time either relative to now ("30m", "2h", "1d12h", "2w") or absolute in local time
+     * ("2014-06-16", "2014-06-16T18:30")
+     * @return the time in milliseconds
+     */
+    public static long parseTime(String value, long now) {
+        final String lowerValue = value.toLowerCase();
+        final Matcher matcher = RELATIVE_PART.matcher(lowerValue);
+        long offset = 0;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            offset += Long.parseLong(matcher.group(1)) * getUnitMillis(matcher.group(2).charAt(0));
+            end = matcher.end();
+        }
+        if (end > 0 && end == lowerValue.length())
+            return now - offset;
+
+        for (String format : ABSOLUTE_FORMATS) {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            final ParsePosition position = new ParsePosition(0);
+            final Date date = dateFormat.parse(value, position);
+            if (date != null && position.getIndex() == value.length())
+                return date.getTime();
+        }
+        throw new IllegalArgumentException("Unknown time " + value + ", use something like 2h, 3d or 2014-06-16T18:30");
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import com.foxelbox.foxellog.codec.BsonReader;
+import com.foxelbox.foxellog.codec.BsonWriter;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+import com.foxelbox.foxellog.ingest.WorldIndexes;
+import com.foxelbox.foxellog.storage.StorageSchema;
+import com.mongodb.BasicDBObject;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.bukkit.Material;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ActionCodecTest {
+    private static ActionRecord newRecord(int type) {
+        final ActionRecord record = new ActionRecord();
+        record.clear();
+        record.type = type;
+        record.time = 1400000000000L;
+        record.world = 3;
+        record.x = -1234567;
+        record.y = 70;
+        record.z = 89;
+        record.player = 17;
+        record.state = ActionState.IN_PLACE.getDbVal();
+        return record;
+    }
+
+    /**
+     * Encodes the record, checks the common fields and decodes it again.
+     * The stored user is dropped before decoding as it needs the player dictionary.
+     */
+    private static ActionRecord roundTrip(ActionRecord record) {
+        final ObjectId id = new ObjectId();
+        final BsonWriter writer = new BsonWriter(64);
+        ActionCodec.forRecordType(record.type).encode(record, id, writer);
+
+        final BSONObject document = new BasicBSONDecoder().readObject(writer.toByteArray());
+        assertEquals(id, document.get(StorageSchema.ID));
+        assertEquals(StorageSchema.VERSION, document.get(StorageSchema.FIELD_VERSION));
+        assertEquals(new Date(record.time), document.get(StorageSchema.FIELD_DATE));
+        assertEquals(record.type, document.get(StorageSchema.FIELD_TYPE));
+        assertEquals(record.world, document.get(StorageSchema.FIELD_WORLD));
+        assertEquals(StorageSchema.packBlockKey(record.x, record.y, record.z), document.get(StorageSchema.FIELD_BLOCK_KEY));
+        assertEquals(StorageSchema.packChunkKey(record.x, record.z), document.get(StorageSchema.FIELD_CHUNK_KEY));
+        assertEquals(record.player, document.get(StorageSchema.FIELD_USER));
+
+        document.removeField(StorageSchema.FIELD_USER);
+        final ActionRecord decoded = new ActionRecord();
+        final ActionCodec codec = ActionCodec.decode(new BasicBSONEncoder().encode(document), 0, new BsonReader(), decoded, null, null);
+        assertEquals(ActionCodec.forRecordType(record.type), codec);
+        assertEquals(id, decoded.id);
+        assertEquals(record.type, decoded.type);
+        assertEquals(record.time, decoded.time);
+        assertEquals(record.world, decoded.world);
+        assertEquals(record.x, decoded.x);
+        assertEquals(record.y, decoded.y);
+        assertEquals(record.z, decoded.z);
+        assertEquals(record.state, decoded.state);
+        return decoded;
+    }
+
+    @Test
+    public void roundTripsBlockChanges() {
+        final ActionRecord record = newRecord(ActionRecord.TYPE_BLOCK);
+        record.materialFrom = Material.STONE.getId();
+        record.materialTo = Material.AIR.getId();
+        final ActionRecord decoded = roundTrip(record);
+        assertEquals(record.materialFrom, decoded.materialFrom);
+        assertEquals(record.materialTo, decoded.materialTo);
+    }
+
+    @Test
+    public void roundTripsInventoryChanges() {
+        final ActionRecord record = newRecord(ActionRecord.TYPE_INVENTORY);
+        record.materialFrom = Material.CHEST.getId();
+        record.materialTo = Material.WATER_BUCKET.getId();
+        record.amount = -3;
+        final ActionRecord decoded = roundTrip(record);
+        assertEquals(record.materialFrom, decoded.materialFrom);
+        assertEquals(record.materialTo, decoded.materialTo);
+        assertEquals(record.amount, decoded.amount);
+    }
+
+    @Test
+    public void roundTripsChat() {
+        final ActionRecord record = newRecord(ActionRecord.TYPE_CHAT);
+        record.message = "hello \u00e9";
+        assertEquals(record.message, roundTrip(record).message);
+    }
+
+    @Test
+    public void roundTripsContainerTransactions() {
+        final ActionRecord record = newRecord(ActionRecord.TYPE_CONTAINER);
+        record.materialFrom = Material.CHEST.getId();
+        for (int i = 0; i < 300; i++)
+            record.addItem(i + 1, (i % 2 == 0) ? i : -i);
+        final ActionRecord decoded = roundTrip(record);
+        assertEquals(record.materialFrom, decoded.materialFrom);
+        assertEquals(record.itemCount, decoded.itemCount);
+        assertArrayEquals(Arrays.copyOf(record.items, record.itemCount), Arrays.copyOf(decoded.items, decoded.itemCount));
+        assertArrayEquals(Arrays.copyOf(record.amounts, record.itemCount), Arrays.copyOf(decoded.amounts, decoded.itemCount));
+        assertEquals(record.itemCount, decoded.getLineCount());
+    }
+
+    private static byte[] legacyBlockChange(String world, UUID user) {
+        return new BasicBSONEncoder().encode(new BasicDBObject("type", PlayerBlockAction.TYPE)
+                .append("date", new Date(1300000000000L))
+                .append("location", new BasicDBObject("x", 10.0).append("y", 64.0).append("z", -20.0).append("world", world))
+                .append("user_uuid", user)
+                .append("state", ActionState.IN_PLACE.getDbVal())
+                .append("blockFrom", "STONE")
+                .append("blockTo", null));
+    }
+
+    @Test
+    public void decodesOldLayout() {
+        final UUID user = UUID.randomUUID();
+        final WorldIndex worldIndex = WorldIndexes.create("world");
+        final ActionRecord record = new ActionRecord();
+        final ActionCodec codec = ActionCodec.decode(legacyBlockChange("world", user), 0, new BsonReader(), record, worldIndex, null);
+
+        assertEquals(PlayerBlockAction.CODEC, codec);
+        assertEquals(ActionRecord.TYPE_BLOCK, record.type);
+        assertEquals(1300000000000L, record.time);
+        assertEquals(0, record.world);
+        assertEquals(10, record.x);
+        assertEquals(64, record.y);
+        assertEquals(-20, record.z);
+        assertEquals(user, new UUID(record.userMost, record.userLeast));
+        assertEquals(Material.STONE.getId(), record.materialFrom);
+        assertEquals(Material.AIR.getId(), record.materialTo);
+    }
+
+    @Test
+    public void leavesUnknownOldWorldsOut() {
+        final WorldIndex worldIndex = WorldIndexes.create("world");
+        final ActionRecord record = new ActionRecord();
+        ActionCodec.decode(legacyBlockChange("nether", UUID.randomUUID()), 0, new BsonReader(), record, worldIndex, null);
+        assertEquals(-1, record.world);
+        assertEquals(-1, worldIndex.lookup("nether"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownRecordTypes() {
+        ActionCodec.forRecordType(99);
+    }
+}
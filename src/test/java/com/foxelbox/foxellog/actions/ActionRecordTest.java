@@ -0,0 +1,121 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.actions;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ActionRecordTest {
+    private static ActionRecord newContainerRecord() {
+        final ActionRecord record = new ActionRecord();
+        record.clear();
+        record.type = ActionRecord.TYPE_CONTAINER;
+        record.time = 1400000000000L;
+        record.world = 2;
+        record.x = -5;
+        record.y = 12;
+        record.z = 300000;
+        record.materialFrom = 54;
+        record.addItem(1, 64);
+        record.addItem(4, -2);
+        record.userMost = 0x1234567890ABCDEFL;
+        record.userLeast = -1;
+        record.userName = "Notch";
+        record.state = ActionState.IN_PLACE.getDbVal();
+        return record;
+    }
+
+    private static void assertSameFields(ActionRecord expected, ActionRecord actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.world, actual.world);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.z, actual.z);
+        assertEquals(expected.materialFrom, actual.materialFrom);
+        assertEquals(expected.materialTo, actual.materialTo);
+        assertEquals(expected.amount, actual.amount);
+        assertEquals(expected.itemCount, actual.itemCount);
+        assertArrayEquals(Arrays.copyOf(expected.items, expected.itemCount), Arrays.copyOf(actual.items, actual.itemCount));
+        assertArrayEquals(Arrays.copyOf(expected.amounts, expected.itemCount), Arrays.copyOf(actual.amounts, actual.itemCount));
+        assertEquals(expected.userMost, actual.userMost);
+        assertEquals(expected.userLeast, actual.userLeast);
+        assertEquals(expected.userName, actual.userName);
+        assertEquals(expected.message, actual.message);
+        assertEquals(expected.state, actual.state);
+    }
+
+    private static ActionRecord writeAndRead(ActionRecord record) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        record.writeTo(new DataOutputStream(bytes));
+        final ActionRecord read = new ActionRecord();
+        read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return read;
+    }
+
+    @Test
+    public void roundTripsThroughStreams() throws IOException {
+        final ActionRecord record = newContainerRecord();
+        final ActionRecord read = writeAndRead(record);
+        assertSameFields(record, read);
+        assertEquals(-1, read.player);
+    }
+
+    @Test
+    public void roundTripsMissingStrings() throws IOException {
+        final ActionRecord record = newContainerRecord();
+        record.type = ActionRecord.TYPE_CHAT;
+        record.itemCount = 0;
+        record.userName = null;
+        assertSameFields(record, writeAndRead(record));
+
+        record.message = "";
+        assertSameFields(record, writeAndRead(record));
+    }
+
+    @Test
+    public void copiesEveryField() {
+        final ActionRecord record = newContainerRecord();
+        record.player = 8;
+        record.id = "id";
+        final ActionRecord copy = new ActionRecord();
+        copy.copyFrom(record);
+        assertSameFields(record, copy);
+        assertEquals(8, copy.player);
+        assertEquals("id", copy.id);
+
+        //The copy must not share the item arrays
+        record.items[0] = 99;
+        assertEquals(1, copy.items[0]);
+    }
+
+    @Test
+    public void countsOneLinePerContainerItem() {
+        final ActionRecord record = newContainerRecord();
+        assertEquals(2, record.getLineCount());
+        record.type = ActionRecord.TYPE_BLOCK;
+        assertEquals(1, record.getLineCount());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.codec;
+
+import com.mongodb.BasicDBObject;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BsonCodecTest {
+    private static final String TEXT = "Gr\u00fc\u00dfe, caf\u00e9";
+
+    @Test
+    public void writesWhatTheDriverReads() {
+        final ObjectId id = new ObjectId();
+        final UUID uuid = UUID.randomUUID();
+        //Small buffer so it has to grow
+        final BsonWriter writer = new BsonWriter(16);
+        writer.startDocument();
+        writer.writeObjectId("_id", id);
+        writer.writeInt32("i", -5);
+        writer.writeInt64("l", 1L << 40);
+        writer.writeDouble("d", 2.5);
+        writer.writeBoolean("b", true);
+        writer.writeDate("t", 1400000000000L);
+        writer.writeString("s", TEXT);
+        writer.writeNull("z");
+        writer.writeInt32Array("a", new int[] {3, 1, 4, 1}, 3);
+        writer.startDocument("sub");
+        writer.writeInt32("x", 7);
+        writer.endDocument();
+        writer.writeUUID("u", uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        writer.endDocument();
+
+        final BSONObject decoded = new BasicBSONDecoder().readObject(writer.toByteArray());
+        assertEquals(id, decoded.get("_id"));
+        assertEquals(-5, decoded.get("i"));
+        assertEquals(1L << 40, decoded.get("l"));
+        assertEquals(2.5, decoded.get("d"));
+        assertEquals(true, decoded.get("b"));
+        assertEquals(new Date(1400000000000L), decoded.get("t"));
+        assertEquals(TEXT, decoded.get("s"));
+        assertTrue(decoded.containsField("z"));
+        assertNull(decoded.get("z"));
+        assertEquals(Arrays.asList(3, 1, 4), (List<?>) decoded.get("a"));
+        assertEquals(7, ((BSONObject) decoded.get("sub")).get("x"));
+        assertEquals(uuid, decoded.get("u"));
+        assertEquals(writer.position(), writer.toByteArray().length);
+
+        writer.reset();
+        writer.startDocument();
+        writer.endDocument();
+        assertEquals(0, new BasicBSONDecoder().readObject(writer.toByteArray()).keySet().size());
+    }
+
+    @Test
+    public void readsWhatTheDriverWrites() {
+        final ObjectId id = new ObjectId();
+        final UUID uuid = UUID.randomUUID();
+        final BasicDBObject document = new BasicDBObject("_id", id)
+                .append("skipped", new BasicDBObject("deep", new BasicDBObject("x", 1)).append("s", "skip me"))
+                .append("i", 42)
+                .append("l", -(1L << 35))
+                .append("d", -0.25)
+                .append("b", false)
+                .append("t", new Date(1400000000123L))
+                .append("s", TEXT)
+                .append("skippedArray", Arrays.asList("a", "b"))
+                .append("u", uuid)
+                .append("sub", new BasicDBObject("x", 9).append("y", "z"))
+                .append("last", 1);
+        final byte[] bytes = new BasicBSONEncoder().encode(document);
+
+        final BsonReader reader = new BsonReader();
+        reader.reset(bytes, 0);
+        reader.readStartDocument();
+        assertEquals(BsonReader.OBJECT_ID, reader.readType());
+        assertEquals("_id", reader.readName());
+        assertEquals(id, reader.readObjectId());
+
+        byte type = reader.readType();
+        assertEquals(BsonReader.DOCUMENT, type);
+        assertEquals("skipped", reader.readName());
+        reader.skipValue(type);
+
+        assertEquals(BsonReader.INT32, reader.readType());
+        assertEquals("i", reader.readName());
+        assertEquals(42, reader.readInt32());
+
+        type = reader.readType();
+        assertEquals(BsonReader.INT64, type);
+        assertEquals("l", reader.readName());
+        assertEquals(-(1L << 35), reader.readLongNumber(type));
+
+        type = reader.readType();
+        assertEquals(BsonReader.DOUBLE, type);
+        assertEquals("d", reader.readName());
+        assertEquals(-0.25, reader.readDouble(), 0);
+
+        assertEquals(BsonReader.BOOLEAN, reader.readType());
+        assertEquals("b", reader.readName());
+        assertFalse(reader.readBoolean());
+
+        assertEquals(BsonReader.DATE, reader.readType());
+        assertEquals("t", reader.readName());
+        assertEquals(1400000000123L, reader.readDate());
+
+        assertEquals(BsonReader.STRING, reader.readType());
+        assertEquals("s", reader.readName());
+        assertEquals(TEXT, reader.readString());
+
+        type = reader.readType();
+        assertEquals(BsonReader.ARRAY, type);
+        reader.skipName();
+        reader.skipValue(type);
+
+        assertEquals(BsonReader.BINARY, reader.readType());
+        assertEquals("u", reader.readName());
+        assertEquals(16, reader.readBinaryLength());
+        assertEquals(BsonReader.SUBTYPE_UUID_LEGACY, reader.readBinarySubtype());
+        assertEquals(uuid, new UUID(reader.readRawInt64(), reader.readRawInt64()));
+
+        assertEquals(BsonReader.DOCUMENT, reader.readType());
+        assertEquals("sub", reader.readName());
+        reader.readStartDocument();
+        assertEquals(BsonReader.INT32, reader.readType());
+        assertEquals("x", reader.readName());
+        assertEquals(9, reader.readNumber(BsonReader.INT32));
+        //Leave the subdocument with a value still unread
+        final int position = reader.position();
+        assertEquals(BsonReader.STRING, reader.readType());
+        reader.seek(position);
+        type = reader.readType();
+        reader.skipName();
+        reader.skipValue(type);
+        assertEquals(BsonReader.END, reader.readType());
+
+        assertEquals(BsonReader.INT32, reader.readType());
+        assertEquals("last", reader.readName());
+        assertEquals(1, reader.readInt32());
+        assertEquals(BsonReader.END, reader.readType());
+        assertEquals(bytes.length, reader.position());
+    }
+
+    @Test
+    public void namesArrayEntries() {
+        assertEquals("0", BsonWriter.indexName(0));
+        assertEquals("255", BsonWriter.indexName(255));
+        assertEquals("1000", BsonWriter.indexName(1000));
+    }
+}
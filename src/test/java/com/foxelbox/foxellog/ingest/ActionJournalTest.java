@@ -0,0 +1,141 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class ActionJournalTest {
+    private static final Logger LOGGER = Logger.getLogger(ActionJournalTest.class.getName());
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void deleteFolder() {
+        final File[] files = folder.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        folder.delete();
+    }
+
+    private static byte[] payload(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ActionJournal.Record record) {
+        return new String(record.payload, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void replaysOnlyUnacknowledgedRecords() throws IOException {
+        final long[] positions = new long[5];
+        try (ActionJournal journal = new ActionJournal(folder, SEGMENT_SIZE, false, LOGGER)) {
+            for (int i = 0; i < positions.length; i++)
+                positions[i] = journal.append(payload(i));
+            assertEquals(5, journal.getPendingCount());
+            journal.acknowledge(positions[0]);
+            journal.acknowledge(positions[2]);
+            assertEquals(3, journal.getPendingCount());
+            //Only left over records are read back, not the ones appended since opening
+            assertNull(journal.poll());
+            journal.force();
+        }
+
+        try (ActionJournal journal = new ActionJournal(folder, SEGMENT_SIZE, false, LOGGER)) {
+            assertEquals(3, journal.getPendingCount());
+            final ActionJournal.Record first = journal.poll();
+            final ActionJournal.Record second = journal.poll();
+            final ActionJournal.Record third = journal.poll();
+            assertEquals("record 1", text(first));
+            assertEquals("record 3", text(second));
+            assertEquals("record 4", text(third));
+            assertNull(journal.poll());
+
+            journal.acknowledge(first.position);
+            journal.acknowledge(second.position);
+            journal.acknowledge(third.position);
+            assertEquals(0, journal.getPendingCount());
+            assertEquals(0, journal.getSegmentCount());
+        }
+        assertEquals(0, folder.list().length);
+    }
+
+    @Test
+    public void followsAppends() throws IOException {
+        try (ActionJournal journal = new ActionJournal(folder, SEGMENT_SIZE, true, LOGGER)) {
+            assertNull(journal.poll());
+            //Enough records to fill several segments
+            for (int i = 0; i < 1000; i++)
+                journal.append(payload(i));
+            assertTrue(journal.getSegmentCount() > 1);
+            for (int i = 0; i < 1000; i++) {
+                final ActionJournal.Record record = journal.poll();
+                assertEquals("record " + i, text(record));
+                journal.acknowledge(record.position);
+            }
+            assertNull(journal.poll());
+            journal.append(payload(1000));
+            assertEquals("record 1000", text(journal.poll()));
+            assertEquals(1, journal.getPendingCount());
+        }
+    }
+
+    @Test
+    public void dropsTornRecords() throws IOException {
+        final long lastPosition;
+        try (ActionJournal journal = new ActionJournal(folder, SEGMENT_SIZE, false, LOGGER)) {
+            journal.append(payload(0));
+            journal.append(payload(1));
+            lastPosition = journal.append(payload(2));
+            journal.force();
+        }
+
+        final File[] segments = folder.listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            final long lastByte = (int) lastPosition + 8 + payload(2).length - 1;
+            file.seek(lastByte);
+            final int value = file.read();
+            file.seek(lastByte);
+            file.write(value ^ 0xFF);
+        }
+
+        try (ActionJournal journal = new ActionJournal(folder, SEGMENT_SIZE, false, LOGGER)) {
+            assertEquals(2, journal.getPendingCount());
+            assertEquals("record 0", text(journal.poll()));
+            assertEquals("record 1", text(journal.poll()));
+            assertNull(journal.poll());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.actions.ActionRecord;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BlockChangeCoalescerTest {
+    private static final long WINDOW = 1000;
+    private static final int AIR = 0, STONE = 1, GRASS = 2, DIRT = 3, GLASS = 20;
+
+    private static ActionRecord change(long time, long user, int x, int from, int to) {
+        final ActionRecord record = new ActionRecord();
+        record.clear();
+        record.type = ActionRecord.TYPE_BLOCK;
+        record.time = time;
+        record.userMost = user;
+        record.userLeast = user;
+        record.x = x;
+        record.y = 64;
+        record.z = -x;
+        record.materialFrom = from;
+        record.materialTo = to;
+        return record;
+    }
+
+    private static void assertChange(ActionRecord record, long time, int x, int from, int to) {
+        assertEquals(time, record.time);
+        assertEquals(x, record.x);
+        assertEquals(from, record.materialFrom);
+        assertEquals(to, record.materialTo);
+    }
+
+    @Test
+    public void passesOtherActionsThrough() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        final ActionRecord chat = change(0, 1, 0, 0, 0);
+        chat.type = ActionRecord.TYPE_CHAT;
+        assertFalse(coalescer.absorb(chat));
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void joinsChainsWithinTheWindow() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        assertTrue(coalescer.absorb(change(0, 1, 5, AIR, STONE)));
+        assertTrue(coalescer.absorb(change(100, 1, 5, STONE, GRASS)));
+        assertTrue(coalescer.absorb(change(200, 1, 5, GRASS, DIRT)));
+        assertEquals(1, coalescer.size());
+        assertEquals(2, coalescer.getMergedCount());
+
+        final ActionRecord target = new ActionRecord();
+        //Held back until the window of the first change is over
+        assertFalse(coalescer.poll(WINDOW - 1, target));
+        assertEquals(1, coalescer.getMillisUntilNext(WINDOW - 1));
+        assertTrue(coalescer.poll(WINDOW, target));
+        assertChange(target, 200, 5, AIR, DIRT);
+        assertFalse(coalescer.poll(Long.MAX_VALUE, target));
+        assertEquals(0, coalescer.size());
+        assertEquals(-1, coalescer.getMillisUntilNext(WINDOW));
+    }
+
+    @Test
+    public void dropsChangesThatWereUndone() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        coalescer.absorb(change(0, 1, 5, AIR, STONE));
+        coalescer.absorb(change(100, 1, 5, STONE, AIR));
+        assertEquals(0, coalescer.size());
+        assertEquals(2, coalescer.getCancelledCount());
+        assertFalse(coalescer.pollAll(new ActionRecord()));
+    }
+
+    @Test
+    public void keepsBrokenChainsApart() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        coalescer.absorb(change(0, 1, 5, AIR, STONE));
+        //Someone else turned the stone into glass in between
+        coalescer.absorb(change(100, 1, 5, GLASS, DIRT));
+        assertEquals(2, coalescer.size());
+        assertEquals(0, coalescer.getMergedCount());
+
+        //The ended chain is ready right away, the new one waits for its window
+        final ActionRecord target = new ActionRecord();
+        assertEquals(0, coalescer.getMillisUntilNext(100));
+        assertTrue(coalescer.poll(100, target));
+        assertChange(target, 0, 5, AIR, STONE);
+        assertFalse(coalescer.poll(100, target));
+        assertTrue(coalescer.poll(100 + WINDOW, target));
+        assertChange(target, 100, 5, GLASS, DIRT);
+    }
+
+    @Test
+    public void keepsUsersAndBlocksApart() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        coalescer.absorb(change(0, 1, 5, AIR, STONE));
+        coalescer.absorb(change(10, 2, 5, STONE, GRASS));
+        coalescer.absorb(change(20, 1, 6, STONE, GRASS));
+        assertEquals(3, coalescer.size());
+        assertEquals(0, coalescer.getMergedCount());
+
+        final ActionRecord target = new ActionRecord();
+        int count = 0;
+        while (coalescer.pollAll(target))
+            count++;
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void releasesOldestWhenFull() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 2);
+        coalescer.absorb(change(0, 1, 1, AIR, STONE));
+        coalescer.absorb(change(1, 1, 2, AIR, STONE));
+        coalescer.absorb(change(2, 1, 3, AIR, STONE));
+        assertEquals(3, coalescer.size());
+
+        final ActionRecord target = new ActionRecord();
+        assertTrue(coalescer.poll(2, target));
+        assertChange(target, 0, 1, AIR, STONE);
+        assertFalse(coalescer.poll(2, target));
+        assertEquals(2, coalescer.size());
+    }
+
+    @Test
+    public void releasesInOrderOfArrival() {
+        final BlockChangeCoalescer coalescer = new BlockChangeCoalescer(WINDOW, 100);
+        for (int x = 0; x < 10; x++)
+            coalescer.absorb(change(x, 1, x, AIR, STONE));
+        final ActionRecord target = new ActionRecord();
+        for (int x = 0; x < 10; x++) {
+            assertTrue(coalescer.pollAll(target));
+            assertEquals(x, target.x);
+        }
+        assertFalse(coalescer.pollAll(target));
+    }
+}
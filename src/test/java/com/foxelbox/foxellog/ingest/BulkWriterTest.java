@@ -0,0 +1,240 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class BulkWriterTest {
+    private static final Logger LOGGER = Logger.getLogger(BulkWriterTest.class.getName());
+    static {
+        //Retries log a warning each
+        LOGGER.setLevel(Level.OFF);
+    }
+
+    private static final BulkWriter.CollectionRouter ROUTER = new BulkWriter.CollectionRouter() {
+        @Override
+        public DBCollection route(DBObject document) {
+            return null;
+        }
+    };
+
+    /**
+     * Writer without a database, inserts take as long as asked for and fail as often as asked for
+     */
+    private static class FakeWriter extends BulkWriter {
+        private volatile long latencyMillis = 0;
+        private final AtomicInteger failuresLeft = new AtomicInteger();
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final List<Object> inserted = Collections.synchronizedList(new ArrayList<Object>());
+
+        private FakeWriter(Settings settings) {
+            super(ROUTER, LOGGER, settings);
+        }
+
+        @Override
+        protected void insert(DBCollection collection, List<DBObject> documents) {
+            attempts.incrementAndGet();
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    throw new MongoException("Interrupted");
+                }
+            }
+            if (failuresLeft.getAndDecrement() > 0)
+                throw new MongoException("Connection refused");
+            for (DBObject document : documents)
+                inserted.add(document.get("i"));
+        }
+    }
+
+    private static class Tickets implements BulkWriter.Acknowledger {
+        private final List<Long> acknowledged = Collections.synchronizedList(new ArrayList<Long>());
+        private final List<Long> deferred = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void acknowledge(long ticket) {
+            acknowledged.add(ticket);
+        }
+
+        @Override
+        public void defer(long ticket, DBObject document) {
+            assertEquals(ticket, (long) (Integer) document.get("i"));
+            deferred.add(ticket);
+        }
+    }
+
+    private FakeWriter writer;
+
+    private static BulkWriter.Settings settings() {
+        final BulkWriter.Settings settings = new BulkWriter.Settings();
+        settings.threads = 2;
+        settings.maxInFlight = 2;
+        settings.retryBaseMillis = 1;
+        settings.retryMaxMillis = 4;
+        return settings;
+    }
+
+    @After
+    public void closeWriter() {
+        if (writer != null)
+            writer.close(1000);
+    }
+
+    private void submit(int count, int firstTicket, BulkWriter.Acknowledger acknowledger) throws InterruptedException {
+        assertTrue(writer.tryReserve(10000));
+        final List<DBObject> documents = new ArrayList<>(count);
+        final long[] tickets = new long[count];
+        for (int i = 0; i < count; i++) {
+            documents.add(new BasicDBObject("i", firstTicket + i));
+            tickets[i] = firstTicket + i;
+        }
+        writer.submit(documents, tickets, acknowledger);
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getInFlightBatches() > 0) {
+            assertTrue("Batches still in flight", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void growsBatchesWhileFast() throws InterruptedException {
+        final BulkWriter.Settings settings = settings();
+        settings.maxBatchSize = 500;
+        writer = new FakeWriter(settings);
+        final Tickets tickets = new Tickets();
+        int previous = writer.getBatchSize();
+        for (int i = 0; i < 50; i++) {
+            submit(writer.getBatchSize(), 0, tickets);
+            awaitIdle();
+            assertTrue(writer.getBatchSize() >= previous);
+            previous = writer.getBatchSize();
+        }
+        assertEquals(500, writer.getBatchSize());
+    }
+
+    @Test
+    public void halvesBatchesWhileSlow() throws InterruptedException {
+        final BulkWriter.Settings settings = settings();
+        settings.targetLatencyMillis = 1;
+        writer = new FakeWriter(settings);
+        writer.latencyMillis = 20;
+        final Tickets tickets = new Tickets();
+
+        final int start = writer.getBatchSize();
+        submit(start, 0, tickets);
+        awaitIdle();
+        assertEquals(start / 2, writer.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            submit(writer.getBatchSize(), 0, tickets);
+            awaitIdle();
+        }
+        //Never below the minimum
+        assertEquals(16, writer.getBatchSize());
+        assertTrue(writer.getLastLatencyMillis() >= 20);
+    }
+
+    @Test
+    public void ignoresLatencyOfPartialBatches() throws InterruptedException {
+        final BulkWriter.Settings settings = settings();
+        settings.targetLatencyMillis = 1;
+        writer = new FakeWriter(settings);
+        writer.latencyMillis = 20;
+        final int start = writer.getBatchSize();
+        submit(start / 4, 0, new Tickets());
+        awaitIdle();
+        assertEquals(start, writer.getBatchSize());
+    }
+
+    @Test
+    public void capsBatchesByDocumentSize() {
+        final BulkWriter.Settings settings = settings();
+        settings.maxBatchBytes = 64 * 1024;
+        writer = new FakeWriter(settings);
+        assertEquals(100, writer.getBatchSize());
+        for (int i = 0; i < 50; i++)
+            writer.recordBatchBytes(100 * 4096, 100);
+        //The average converges on 4 KiB per document, 16 of them fit
+        assertEquals(16, writer.getBatchSize());
+    }
+
+    @Test
+    public void retriesFailedBatches() throws InterruptedException {
+        writer = new FakeWriter(settings());
+        writer.failuresLeft.set(3);
+        final Tickets tickets = new Tickets();
+        final int start = writer.getBatchSize();
+        submit(40, 100, tickets);
+        awaitIdle();
+
+        assertEquals(4, writer.attempts.get());
+        assertEquals(3 * 40, writer.getRetriedCount());
+        assertEquals(40, writer.getInsertedCount());
+        assertEquals(40, tickets.acknowledged.size());
+        assertEquals(40, writer.inserted.size());
+        for (int i = 0; i < 40; i++)
+            assertTrue(tickets.acknowledged.contains(100L + i));
+        //Halved by every failure, grown once by the success
+        assertTrue(writer.getBatchSize() < start);
+    }
+
+    @Test
+    public void defersBatchesAfterMaxAttempts() throws InterruptedException {
+        writer = new FakeWriter(settings());
+        writer.failuresLeft.set(Integer.MAX_VALUE);
+        final Tickets tickets = new Tickets();
+        submit(10, 0, tickets);
+        awaitIdle();
+
+        assertEquals(8, writer.attempts.get());
+        assertEquals(16, writer.getBatchSize());
+        assertEquals(10, writer.getDeferredCount());
+        assertEquals(0, writer.getInsertedCount());
+        assertTrue(tickets.acknowledged.isEmpty());
+        assertEquals(10, tickets.deferred.size());
+        for (int i = 0; i < 10; i++)
+            assertTrue(tickets.deferred.contains((long) i));
+        //The reservation is free again
+        assertTrue(writer.tryReserve(0));
+        writer.release();
+    }
+
+    @Test
+    public void refusesReservationsOnceClosed() throws InterruptedException {
+        writer = new FakeWriter(settings());
+        writer.close(100);
+        assertFalse(writer.tryReserve(0));
+        writer = null;
+    }
+}
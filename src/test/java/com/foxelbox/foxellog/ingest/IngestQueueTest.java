@@ -0,0 +1,300 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class IngestQueueTest {
+    private static class Value implements IngestQueue.Slot<Value> {
+        private long value;
+
+        private Value(long value) {
+            this.value = value;
+        }
+
+        @Override
+        public void copyFrom(Value source) {
+            value = source.value;
+        }
+    }
+
+    private static final IngestQueue.SlotFactory<Value> FACTORY = new IngestQueue.SlotFactory<Value>() {
+        @Override
+        public Value newSlot() {
+            return new Value(-1);
+        }
+    };
+
+    private static IngestQueue<Value> newQueue(int capacity, OverflowPolicy policy) {
+        return new IngestQueue<>(capacity, FACTORY, policy, 0, null);
+    }
+
+    private static List<Long> drain(IngestQueue<Value> queue) {
+        final List<Long> values = new ArrayList<>();
+        final Value target = new Value(0);
+        while (queue.poll(target))
+            values.add(target.value);
+        return values;
+    }
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, newQueue(5, OverflowPolicy.DROP_OLDEST).capacity());
+        assertEquals(8, newQueue(8, OverflowPolicy.DROP_OLDEST).capacity());
+        assertEquals(2, newQueue(2, OverflowPolicy.DROP_OLDEST).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresSpillHandlerForSpillPolicy() {
+        newQueue(8, OverflowPolicy.SPILL);
+    }
+
+    @Test
+    public void wrapsAround() {
+        final IngestQueue<Value> queue = newQueue(4, OverflowPolicy.DROP_OLDEST);
+        final Value element = new Value(0);
+        final Value target = new Value(0);
+        long next = 0;
+        for (int round = 0; round < 100; round++) {
+            //Uneven fill levels so the positions end up everywhere in the ring
+            final int count = 1 + round % 4;
+            for (int i = 0; i < count; i++) {
+                element.value = next + i;
+                assertTrue(queue.offer(element));
+            }
+            assertEquals(count, queue.size());
+            for (int i = 0; i < count; i++) {
+                assertTrue(queue.poll(target));
+                assertEquals(next + i, target.value);
+            }
+            assertFalse(queue.poll(target));
+            assertTrue(queue.isEmpty());
+            next += count;
+        }
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void copiesElementsIn() {
+        final IngestQueue<Value> queue = newQueue(4, OverflowPolicy.DROP_OLDEST);
+        final Value element = new Value(1);
+        queue.offer(element);
+        element.value = 2;
+        queue.offer(element);
+        final List<Long> values = drain(queue);
+        assertEquals(2, values.size());
+        assertEquals(1L, (long) values.get(0));
+        assertEquals(2L, (long) values.get(1));
+    }
+
+    @Test
+    public void keepsEveryElementOfConcurrentProducers() throws InterruptedException {
+        final int producers = 4, perProducer = 50000;
+        final IngestQueue<Value> queue = new IngestQueue<>(1024, FACTORY, OverflowPolicy.BLOCK, 60000, null);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p << 32;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    final Value element = new Value(0);
+                    for (int i = 0; i < perProducer; i++) {
+                        element.value = base | i;
+                        queue.offer(element);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        //Elements of one producer have to come out in the order they went in
+        final int[] next = new int[producers];
+        final Value target = new Value(0);
+        int received = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received < producers * perProducer && System.nanoTime() < deadline) {
+            if (!queue.awaitBatch(64, TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(10)))
+                continue;
+            while (queue.poll(target)) {
+                final int producer = (int) (target.value >>> 32);
+                assertEquals(next[producer], (int) target.value);
+                next[producer]++;
+                received++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(producers * perProducer, received);
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void awaitsBatches() throws InterruptedException {
+        final IngestQueue<Value> queue = newQueue(16, OverflowPolicy.DROP_OLDEST);
+
+        //Nothing arrives: gives up after the idle time
+        final long idleStart = System.nanoTime();
+        assertFalse(queue.awaitBatch(4, TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - idleStart >= TimeUnit.MILLISECONDS.toNanos(10));
+
+        //A full batch is there already
+        final Value element = new Value(0);
+        for (int i = 0; i < 4; i++)
+            queue.offer(element);
+        assertTrue(queue.awaitBatch(4, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10)));
+        drain(queue);
+
+        //Less than a batch: returns once the linger time is over
+        queue.offer(element);
+        final long lingerStart = System.nanoTime();
+        assertTrue(queue.awaitBatch(4, TimeUnit.MILLISECONDS.toNanos(20), TimeUnit.SECONDS.toNanos(10)));
+        assertTrue(System.nanoTime() - lingerStart >= TimeUnit.MILLISECONDS.toNanos(10));
+        drain(queue);
+
+        //A producer wakes the parked consumer up
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final Value value = new Value(7);
+                for (int i = 0; i < 4; i++)
+                    queue.offer(value);
+            }
+        };
+        producer.start();
+        final long wakeStart = System.nanoTime();
+        assertTrue(queue.awaitBatch(4, TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(10)));
+        assertTrue(System.nanoTime() - wakeStart < TimeUnit.SECONDS.toNanos(5));
+        producer.join();
+        assertEquals(4, drain(queue).size());
+    }
+
+    @Test
+    public void dropsOldest() {
+        final IngestQueue<Value> queue = newQueue(4, OverflowPolicy.DROP_OLDEST);
+        final Value element = new Value(0);
+        for (int i = 0; i < 10; i++) {
+            element.value = i;
+            assertTrue(queue.offer(element));
+        }
+        assertEquals(6, queue.getDroppedCount());
+        final List<Long> values = drain(queue);
+        assertEquals(4, values.size());
+        for (int i = 0; i < 4; i++)
+            assertEquals(6L + i, (long) values.get(i));
+    }
+
+    @Test
+    public void blocksThenDropsOldest() {
+        final IngestQueue<Value> queue = new IngestQueue<>(4, FACTORY, OverflowPolicy.BLOCK, 20, null);
+        final Value element = new Value(0);
+        for (int i = 0; i < 4; i++) {
+            element.value = i;
+            queue.offer(element);
+        }
+
+        //No consumer: waits out the block time, then makes room
+        element.value = 4;
+        final long start = System.nanoTime();
+        assertTrue(queue.offer(element));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(15));
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(1, queue.getDroppedCount());
+        final List<Long> values = drain(queue);
+        assertEquals(4, values.size());
+        assertEquals(1L, (long) values.get(0));
+        assertEquals(4L, (long) values.get(3));
+    }
+
+    @Test
+    public void blocksUntilConsumerMakesRoom() throws InterruptedException {
+        final IngestQueue<Value> queue = new IngestQueue<>(2, FACTORY, OverflowPolicy.BLOCK, 60000, null);
+        final Value element = new Value(0);
+        queue.offer(element);
+        queue.offer(element);
+
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.poll(new Value(0));
+            }
+        };
+        consumer.start();
+        element.value = 1;
+        assertTrue(queue.offer(element));
+        consumer.join();
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void spillsWhenFull() {
+        final List<Long> spilled = new ArrayList<>();
+        final IngestQueue<Value> queue = new IngestQueue<>(4, FACTORY, OverflowPolicy.SPILL, 0, new IngestQueue.SpillHandler<Value>() {
+            @Override
+            public void spill(Value element) {
+                spilled.add(element.value);
+            }
+        });
+        final Value element = new Value(0);
+        for (int i = 0; i < 7; i++) {
+            element.value = i;
+            assertTrue(queue.offer(element));
+        }
+        assertEquals(3, queue.getSpilledCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(3, spilled.size());
+        assertEquals(4L, (long) spilled.get(0));
+        assertEquals(6L, (long) spilled.get(2));
+        assertEquals(4, drain(queue).size());
+    }
+
+    @Test
+    public void parsesPolicyNames() {
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.getByName("block"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.getByName("drop-oldest"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.getByName("DROP"));
+        assertEquals(OverflowPolicy.SPILL, OverflowPolicy.getByName("Spill"));
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.ingest;
+
+import com.foxelbox.foxellog.codec.RawDBCodecs;
+import com.foxelbox.foxellog.codec.RawDBObject;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class JournalAcknowledgerTest {
+    private static final Logger LOGGER = Logger.getLogger(JournalAcknowledgerTest.class.getName());
+    static {
+        LOGGER.setLevel(Level.OFF);
+    }
+
+    private File folder;
+    private ActionJournal journal;
+    private ActionJournal overflow;
+
+    @Before
+    public void openJournals() throws IOException {
+        folder = Files.createTempDirectory("acknowledger").toFile();
+        journal = new ActionJournal(new File(folder, "journal"), 4096, false, LOGGER);
+        overflow = new ActionJournal(new File(folder, "overflow"), 4096, true, LOGGER);
+    }
+
+    @After
+    public void deleteFolder() {
+        journal.close();
+        overflow.close();
+        for (File directory : folder.listFiles()) {
+            final File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+        folder.delete();
+    }
+
+    private static byte[] document(int i) {
+        return new BasicBSONEncoder().encode(new BasicDBObject("i", i).append("padding", "some text"));
+    }
+
+    @Test
+    public void acknowledgesStoredDocuments() throws IOException {
+        final long ticket = journal.append(document(1));
+        new JournalAcknowledger(journal, overflow, LOGGER).acknowledge(ticket);
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(0, overflow.getPendingCount());
+    }
+
+    @Test
+    public void movesDeferredDocumentsToOverflow() throws IOException {
+        //Several documents in one array, as the pipeline batches them
+        final byte[] first = document(1), second = document(2);
+        final byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        final long firstTicket = journal.append(data, 0, first.length);
+        final long secondTicket = journal.append(data, first.length, second.length);
+
+        final JournalAcknowledger acknowledger = new JournalAcknowledger(journal, overflow, LOGGER);
+        acknowledger.defer(firstTicket, RawDBCodecs.wrap(data, 0, null));
+        acknowledger.defer(secondTicket, RawDBCodecs.wrap(data, first.length, null));
+
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(2, overflow.getPendingCount());
+        assertArrayEquals(first, overflow.poll().payload);
+        assertArrayEquals(second, overflow.poll().payload);
+        assertNull(overflow.poll());
+    }
+
+    @Test
+    public void keepsDocumentsThatCannotBeMoved() throws IOException {
+        final long ticket = journal.append(document(1));
+        overflow.close();
+        //A journal directory that is a file makes every new segment fail
+        final File broken = new File(folder, "broken");
+        assertTrue(broken.mkdirs());
+        final ActionJournal brokenJournal = new ActionJournal(broken, 4096, true, LOGGER);
+        assertTrue(broken.delete() && broken.createNewFile());
+        try {
+            new JournalAcknowledger(journal, brokenJournal, LOGGER).defer(ticket, RawDBCodecs.wrap(document(1), 0, null));
+            assertEquals(1, journal.getPendingCount());
+        } finally {
+            brokenJournal.close();
+            broken.delete();
+        }
+    }
+
+    @Test
+    public void retriesDeferredBatchesFromOverflow() throws Exception {
+        //Database down for the first batch: it is deferred, moved to overflow and stored from there once it is back
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final List<Integer> stored = new ArrayList<>();
+        final BulkWriter.Settings settings = new BulkWriter.Settings();
+        settings.retryBaseMillis = 1;
+        settings.retryMaxMillis = 2;
+        final BulkWriter writer = new BulkWriter(new BulkWriter.CollectionRouter() {
+            @Override
+            public DBCollection route(DBObject document) {
+                return null;
+            }
+        }, LOGGER, settings) {
+            @Override
+            protected void insert(DBCollection collection, List<DBObject> documents) {
+                if (down.get())
+                    throw new MongoException("Connection refused");
+                synchronized (stored) {
+                    for (DBObject document : documents)
+                        stored.add((Integer) new BasicBSONDecoder().readObject(((RawDBObject) document).getData()).get("i"));
+                }
+            }
+        };
+        try {
+            final byte[] data = document(7);
+            final long ticket = journal.append(data);
+            assertTrue(writer.tryReserve(1000));
+            writer.submit(new ArrayList<DBObject>(Arrays.asList(RawDBCodecs.wrap(data, 0, null))), new long[] {ticket}, new JournalAcknowledger(journal, overflow, LOGGER));
+            awaitIdle(writer);
+            assertEquals(1, writer.getDeferredCount());
+            assertEquals(0, journal.getPendingCount());
+            assertEquals(1, overflow.getPendingCount());
+
+            down.set(false);
+            final ActionJournal.Record record = overflow.poll();
+            assertTrue(writer.tryReserve(1000));
+            writer.submit(new ArrayList<DBObject>(Arrays.asList(RawDBCodecs.wrap(record.payload, 0, null))), new long[] {record.position}, new JournalAcknowledger(overflow, overflow, LOGGER));
+            awaitIdle(writer);
+            assertEquals(Arrays.asList(7), stored);
+            assertEquals(0, overflow.getPendingCount());
+        } finally {
+            writer.close(1000);
+        }
+    }
+
+    private static void awaitIdle(BulkWriter writer) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getInFlightBatches() > 0) {
+            assertTrue("Batches still in flight", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.util.BlockPos;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ActionSorterTest {
+    private File folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("sorter").toFile();
+    }
+
+    @After
+    public void deleteFolder() {
+        final File[] files = folder.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        folder.delete();
+    }
+
+    private static List<ActionSorter.Entry> randomEntries(int count) {
+        final Random random = new Random(count);
+        final List<ActionSorter.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final ActionSorter.Entry entry = new ActionSorter.Entry();
+            entry.world = random.nextInt(3);
+            //Few positions so there are plenty of equal ones to order by time
+            entry.position = BlockPos.pack(random.nextInt(64) - 32, random.nextInt(256), random.nextInt(64) - 32);
+            entry.time = random.nextInt(1000000);
+            entry.materialFrom = random.nextInt(4096);
+            entry.materialTo = random.nextInt(4096);
+            entry.collection = random.nextInt(30);
+            entry.id = new ObjectId();
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void assertSorts(List<ActionSorter.Entry> entries, ActionSorter sorter) throws IOException {
+        final ActionSorter.Entry added = new ActionSorter.Entry();
+        for (ActionSorter.Entry entry : entries) {
+            //Entries are copied, so one can be reused
+            added.world = entry.world;
+            added.position = entry.position;
+            added.time = entry.time;
+            added.materialFrom = entry.materialFrom;
+            added.materialTo = entry.materialTo;
+            added.collection = entry.collection;
+            added.id = entry.id;
+            sorter.add(added);
+        }
+
+        final List<ActionSorter.Entry> expected = new ArrayList<>(entries);
+        Collections.sort(expected);
+        final Set<ObjectId> seen = new HashSet<>();
+        final ActionSorter.Reader reader = sorter.read();
+        final ActionSorter.Entry entry = new ActionSorter.Entry();
+        int count = 0;
+        ActionSorter.Entry previous = null;
+        while (reader.next(entry)) {
+            final ActionSorter.Entry reference = expected.get(count++);
+            assertEquals(0, reference.compareTo(entry));
+            if (previous != null)
+                assertTrue(previous.compareTo(entry) <= 0);
+            assertTrue(seen.add(entry.id));
+            previous = new ActionSorter.Entry();
+            previous.world = entry.world;
+            previous.position = entry.position;
+            previous.time = entry.time;
+        }
+        assertEquals(entries.size(), count);
+
+        for (ActionSorter.Entry original : entries)
+            assertTrue(seen.contains(original.id));
+    }
+
+    private void assertFieldsSurvive(ActionSorter sorter) throws IOException {
+        final ActionSorter.Entry entry = new ActionSorter.Entry();
+        entry.world = 1;
+        entry.position = BlockPos.pack(-100, 5, 100);
+        entry.time = 1400000000000L;
+        entry.materialFrom = 4095;
+        entry.materialTo = 65535;
+        entry.collection = 12;
+        entry.id = new ObjectId();
+        sorter.add(entry);
+
+        final ActionSorter.Entry read = new ActionSorter.Entry();
+        assertTrue(sorter.read().next(read));
+        assertEquals(entry.world, read.world);
+        assertEquals(entry.position, read.position);
+        assertEquals(entry.time, read.time);
+        assertEquals(entry.materialFrom, read.materialFrom);
+        assertEquals(entry.materialTo, read.materialTo);
+        assertEquals(entry.collection, read.collection);
+        assertEquals(entry.id, read.id);
+    }
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        try (ActionSorter sorter = new ActionSorter(folder, 100000)) {
+            assertSorts(randomEntries(5000), sorter);
+            assertEquals(0, sorter.getRunCount());
+        }
+    }
+
+    @Test
+    public void sortsThroughRuns() throws IOException {
+        try (ActionSorter sorter = new ActionSorter(folder, 777)) {
+            assertSorts(randomEntries(10000), sorter);
+            assertTrue(sorter.getRunCount() > 1);
+        }
+        assertEquals(0, folder.list().length);
+    }
+
+    @Test
+    public void mergesInSeveralPasses() throws IOException {
+        //One entry per run makes more runs than are merged at once
+        try (ActionSorter sorter = new ActionSorter(folder, 1)) {
+            assertSorts(randomEntries(1000), sorter);
+        }
+        assertEquals(0, folder.list().length);
+    }
+
+    @Test
+    public void keepsAllFieldsInMemory() throws IOException {
+        try (ActionSorter sorter = new ActionSorter(folder, 10)) {
+            assertFieldsSurvive(sorter);
+        }
+    }
+
+    @Test
+    public void keepsAllFieldsThroughRuns() throws IOException {
+        try (ActionSorter sorter = new ActionSorter(folder, 1)) {
+            assertFieldsSurvive(sorter);
+            assertEquals(1, sorter.getRunCount());
+        }
+    }
+
+    @Test
+    public void cleansLeftoverRuns() throws IOException {
+        final File run = new File(folder, "run123.tmp");
+        final File other = new File(folder, "other.tmp");
+        assertTrue(run.createNewFile());
+        assertTrue(other.createNewFile());
+        ActionSorter.clean(folder);
+        assertFalse(run.exists());
+        assertTrue(other.exists());
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import com.foxelbox.foxellog.util.BlockPos;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ChangeSetTest {
+    private static final int STONE = 1, GRASS = 2, DIRT = 3, AIR = 0;
+    private static final long POS = BlockPos.pack(10, 64, -20);
+    private static final long OTHER = BlockPos.pack(11, 64, -20);
+
+    /**
+     * @return the ids of all positions, collections are left out so there is only the null one
+     */
+    private static List<Object> plannedIds(ChangeSet changes) {
+        for (ChangeSet.WorldChanges world : changes.getWorlds())
+            for (long pos : world.getPositions())
+                world.addPlanned(pos);
+        final List<Object> ids = changes.getPlannedIds(new ForkJoinPool(1)).get(null);
+        return (ids == null) ? Collections.emptyList() : ids;
+    }
+
+    private static ChangeSet.WorldChanges onlyWorld(ChangeSet changes) {
+        assertEquals(1, changes.getWorlds().size());
+        return changes.getWorlds().iterator().next();
+    }
+
+    @Test
+    public void followsLinkedChain() {
+        final ChangeSet changes = new ChangeSet();
+        assertTrue(changes.add(0, POS, AIR, STONE, null, "a"));
+        assertTrue(changes.add(0, POS, STONE, DIRT, null, "b"));
+        assertTrue(changes.add(0, POS, DIRT, GRASS, null, "c"));
+        final ChangeSet.WorldChanges world = onlyWorld(changes);
+        assertEquals(AIR, world.getExpected(POS));
+        assertEquals(GRASS, world.getTarget(POS));
+        assertEquals(Arrays.<Object>asList("a", "b", "c"), plannedIds(changes));
+    }
+
+    @Test
+    public void stopsAtBrokenLink() {
+        final ChangeSet changes = new ChangeSet();
+        assertTrue(changes.add(0, POS, AIR, STONE, null, "a"));
+        assertTrue(changes.add(0, POS, STONE, AIR, null, "b"));
+        //Something that was never logged put dirt there
+        assertFalse(changes.add(0, POS, DIRT, GRASS, null, "c"));
+        //Later actions do not pick the chain up again, even if they would link
+        assertFalse(changes.add(0, POS, AIR, STONE, null, "d"));
+        final ChangeSet.WorldChanges world = onlyWorld(changes);
+        assertEquals(AIR, world.getExpected(POS));
+        assertEquals(AIR, world.getTarget(POS));
+        assertEquals(Arrays.<Object>asList("a", "b"), plannedIds(changes));
+    }
+
+    @Test
+    public void keepsBlocksApart() {
+        final ChangeSet changes = new ChangeSet();
+        assertTrue(changes.add(0, POS, AIR, STONE, null, "a"));
+        assertFalse(changes.add(0, POS, DIRT, STONE, null, "b"));
+        assertTrue(changes.add(0, OTHER, DIRT, STONE, null, "c"));
+        assertTrue(changes.add(1, POS, DIRT, STONE, null, "d"));
+        assertEquals(2, changes.getWorlds().size());
+        assertEquals(Arrays.<Object>asList("a", "c", "d"), sorted(plannedIds(changes)));
+    }
+
+    @Test
+    public void invertSwapsMaterials() {
+        final ChangeSet changes = new ChangeSet();
+        changes.add(0, POS, AIR, STONE, null, "a");
+        changes.add(0, POS, STONE, DIRT, null, "b");
+        changes.invert();
+        assertEquals(DIRT, onlyWorld(changes).getExpected(POS));
+        assertEquals(AIR, onlyWorld(changes).getTarget(POS));
+    }
+
+    private static List<Object> sorted(List<Object> ids) {
+        final Object[] array = ids.toArray();
+        Arrays.sort(array);
+        return Arrays.asList(array);
+    }
+}
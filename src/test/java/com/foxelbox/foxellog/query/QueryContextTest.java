@@ -0,0 +1,110 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.query;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class QueryContextTest {
+    /**
+     * Runs a task on its own thread that enters the commit phase if asked to, then waits to be let go
+     */
+    private static class Worker {
+        private final QueryContext context = new QueryContext(60000);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicBoolean interrupted = new AtomicBoolean();
+        private final Thread thread;
+
+        private Worker(final boolean commit) {
+            final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (commit)
+                        context.beginCommit();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                    } finally {
+                        if (commit)
+                            context.endCommit();
+                    }
+                    return null;
+                }
+            });
+            context.setFuture(task);
+            thread = new Thread(task);
+            thread.start();
+        }
+
+        private void finish() throws InterruptedException {
+            release.countDown();
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    public void interruptsOutsideOfCommit() throws Exception {
+        final Worker worker = new Worker(false);
+        assertTrue(worker.started.await(10, TimeUnit.SECONDS));
+        worker.context.cancel();
+        worker.thread.join(10000);
+        assertTrue(worker.interrupted.get());
+        assertTrue(worker.context.isCancelled());
+    }
+
+    @Test
+    public void doesNotInterruptCommit() throws Exception {
+        final Worker worker = new Worker(true);
+        assertTrue(worker.started.await(10, TimeUnit.SECONDS));
+        worker.context.cancel();
+        assertTrue(worker.context.isCancelled());
+        worker.finish();
+        assertFalse(worker.interrupted.get());
+    }
+
+    @Test(expected = QueryInterface.QueryException.class)
+    public void refusesCommitAfterCancel() throws Exception {
+        final QueryContext context = new QueryContext(60000);
+        context.cancel();
+        context.beginCommit();
+    }
+
+    @Test
+    public void checkStopsAfterCancelDuringCommit() throws Exception {
+        final QueryContext context = new QueryContext(60000);
+        context.beginCommit();
+        context.cancel();
+        context.endCommit();
+        try {
+            context.check();
+            fail();
+        } catch (QueryInterface.QueryException e) {
+            assertEquals("Query cancelled", e.getMessage());
+        }
+    }
+}
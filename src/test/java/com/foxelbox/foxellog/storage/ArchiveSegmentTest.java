@@ -0,0 +1,194 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.storage;
+
+import com.foxelbox.foxellog.actions.ActionRecord;
+import com.foxelbox.foxellog.actions.ActionState;
+import com.foxelbox.foxellog.ingest.WorldIndex;
+import com.foxelbox.foxellog.ingest.WorldIndexes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArchiveSegmentTest {
+    private static final String[] NAMES = {"Notch", "jeb_", null};
+
+    private File folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("segments").toFile();
+    }
+
+    @After
+    public void deleteFolder() {
+        final File[] files = folder.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        folder.delete();
+    }
+
+    private static List<ActionRecord> randomRecords(int count) {
+        final Random random = new Random(count);
+        final List<ActionRecord> records = new ArrayList<>();
+        long time = 1400000000000L;
+        for (int i = 0; i < count; i++) {
+            final ActionRecord record = new ActionRecord();
+            record.clear();
+            record.type = 1 + random.nextInt(4);
+            time += random.nextInt(5000);
+            record.time = time;
+            record.world = random.nextInt(2);
+            record.x = random.nextInt(60000000) - 30000000;
+            record.y = random.nextInt(256);
+            record.z = random.nextInt(2000) - 1000;
+            final int user = random.nextInt(NAMES.length);
+            record.userMost = user;
+            record.userLeast = -user;
+            record.userName = NAMES[user];
+            record.materialFrom = random.nextInt(200);
+            record.materialTo = random.nextInt(200);
+            record.amount = random.nextInt(129) - 64;
+            record.state = random.nextBoolean() ? ActionState.IN_PLACE.getDbVal() : ActionState.GONE.getDbVal();
+            if (record.type == ActionRecord.TYPE_CONTAINER)
+                for (int j = random.nextInt(5); j > 0; j--)
+                    record.addItem(random.nextInt(400), random.nextInt(129) - 64);
+            if (record.type == ActionRecord.TYPE_CHAT)
+                record.message = random.nextBoolean() ? "" : "message " + i + " \u00e9";
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static void assertSameRecord(ActionRecord expected, ActionRecord actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.world, actual.world);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.z, actual.z);
+        assertEquals(expected.userMost, actual.userMost);
+        assertEquals(expected.userLeast, actual.userLeast);
+        assertEquals(expected.userName, actual.userName);
+        assertEquals(expected.materialFrom, actual.materialFrom);
+        assertEquals(expected.materialTo, actual.materialTo);
+        assertEquals(expected.amount, actual.amount);
+        assertEquals(expected.state, actual.state);
+        assertEquals(expected.itemCount, actual.itemCount);
+        assertArrayEquals(Arrays.copyOf(expected.items, expected.itemCount), Arrays.copyOf(actual.items, actual.itemCount));
+        assertArrayEquals(Arrays.copyOf(expected.amounts, expected.itemCount), Arrays.copyOf(actual.amounts, actual.itemCount));
+        assertEquals(expected.message, actual.message);
+    }
+
+    private ArchiveSegment.Header write(List<ActionRecord> records, WorldIndex worldIndex) throws IOException {
+        final ArchiveSegment.Writer writer = new ArchiveSegment.Writer(worldIndex);
+        for (ActionRecord record : records)
+            writer.add(record);
+        assertEquals(records.size(), writer.size());
+        return writer.write(new File(folder, "segment.fls"));
+    }
+
+    @Test
+    public void roundTripsRecords() throws IOException {
+        final WorldIndex worldIndex = WorldIndexes.create("world", "world_nether");
+        final List<ActionRecord> records = randomRecords(20000);
+        final ArchiveSegment.Header header = write(records, worldIndex);
+
+        assertEquals(records.size(), header.count);
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+        for (ActionRecord record : records) {
+            minTime = Math.min(minTime, record.time);
+            maxTime = Math.max(maxTime, record.time);
+            minX = Math.min(minX, record.x);
+            maxX = Math.max(maxX, record.x);
+            minZ = Math.min(minZ, record.z);
+            maxZ = Math.max(maxZ, record.z);
+        }
+        assertEquals(minTime, header.minTime);
+        assertEquals(maxTime, header.maxTime);
+        assertEquals(minX, header.minX);
+        assertEquals(maxX, header.maxX);
+        assertEquals(minZ, header.minZ);
+        assertEquals(maxZ, header.maxZ);
+        assertFalse(new File(folder, "segment.fls.tmp").exists());
+
+        final ArchiveSegment.Reader reader = new ArchiveSegment.Reader(ArchiveSegment.readHeader(header.file), worldIndex);
+        final ActionRecord record = new ActionRecord();
+        for (ActionRecord expected : records) {
+            assertTrue(reader.next(record));
+            assertSameRecord(expected, record);
+        }
+        assertFalse(reader.next(record));
+
+        reader.rewind();
+        for (ActionRecord expected : records) {
+            assertTrue(reader.next(record));
+            assertSameRecord(expected, record);
+        }
+        assertFalse(reader.next(record));
+    }
+
+    @Test
+    public void mapsWorldsByName() throws IOException {
+        final List<ActionRecord> records = randomRecords(100);
+        final ArchiveSegment.Header header = write(records, WorldIndexes.create("world", "world_nether"));
+
+        //Other numbering on the reading side, and the nether is unknown there
+        final ArchiveSegment.Reader reader = new ArchiveSegment.Reader(header, WorldIndexes.create("other", "world"));
+        final ActionRecord record = new ActionRecord();
+        for (ActionRecord expected : records) {
+            assertTrue(reader.next(record));
+            assertEquals((expected.world == 0) ? 1 : -1, record.world);
+        }
+    }
+
+    @Test
+    public void checksOverlaps() throws IOException {
+        final ActionRecord record = randomRecords(1).get(0);
+        record.time = 1000;
+        record.x = 10;
+        record.z = -10;
+        final ArchiveSegment.Header header = write(Arrays.asList(record), WorldIndexes.create("world", "world_nether"));
+        assertTrue(header.overlaps(1000, 1001));
+        assertFalse(header.overlaps(1001, 2000));
+        assertFalse(header.overlaps(0, 1000));
+        assertTrue(header.overlaps(0, 10, -10, 0));
+        assertFalse(header.overlaps(11, 20, -20, 20));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        final File file = new File(folder, "garbage.fls");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[64]);
+        }
+        ArchiveSegment.readHeader(file);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import com.foxelbox.foxellog.storage.StorageSchema;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockPosTest {
+    private static final int WORLD_BORDER = 30000000;
+
+    private static void assertRoundTrip(int x, int y, int z) {
+        final long pos = BlockPos.pack(x, y, z);
+        assertEquals(x, BlockPos.getX(pos));
+        assertEquals(y, BlockPos.getY(pos));
+        assertEquals(z, BlockPos.getZ(pos));
+        assertEquals(x >> 4, BlockPos.getChunkX(pos));
+        assertEquals(z >> 4, BlockPos.getChunkZ(pos));
+        assertTrue(pos != Long.MIN_VALUE);
+
+        final long blockKey = StorageSchema.packBlockKey(x, y, z);
+        assertEquals(x, StorageSchema.unpackX(blockKey));
+        assertEquals(y, StorageSchema.unpackY(blockKey));
+        assertEquals(z, StorageSchema.unpackZ(blockKey));
+        assertEquals(pos, BlockPos.fromBlockKey(blockKey));
+    }
+
+    @Test
+    public void packsAndUnpacksEdges() {
+        final int[] coordinates = {0, 1, -1, 15, 16, -16, -17, WORLD_BORDER, -WORLD_BORDER, WORLD_BORDER - 1};
+        final int[] heights = {0, 1, 255, -1, 2047, -2048};
+        for (int x : coordinates)
+            for (int z : coordinates)
+                for (int y : heights)
+                    assertRoundTrip(x, y, z);
+    }
+
+    @Test
+    public void packsAndUnpacksRandomPositions() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100000; i++)
+            assertRoundTrip(random.nextInt(2 * WORLD_BORDER + 1) - WORLD_BORDER, random.nextInt(4096) - 2048, random.nextInt(2 * WORLD_BORDER + 1) - WORLD_BORDER);
+    }
+
+    @Test
+    public void sharesChunkKeyWithinChunk() {
+        final long chunkKey = BlockPos.getChunkKey(BlockPos.pack(-32, 0, 48));
+        for (int x = -32; x < -16; x++)
+            for (int z = 48; z < 64; z++)
+                assertEquals(chunkKey, BlockPos.getChunkKey(BlockPos.pack(x, 100, z)));
+        assertTrue(chunkKey != BlockPos.getChunkKey(BlockPos.pack(-33, 0, 48)));
+        assertTrue(chunkKey != BlockPos.getChunkKey(BlockPos.pack(-32, 0, 64)));
+    }
+
+    @Test
+    public void ordersBlocksOfAChunkTogether() {
+        //Everything in chunk 0,0 sorts between the neighbouring chunks
+        final long first = BlockPos.pack(0, 0, 0), last = BlockPos.pack(15, -1, 15);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = -2048; y < 2048; y += 64) {
+                    final long pos = BlockPos.pack(x, y, z);
+                    assertTrue(pos >= first && pos <= last);
+                }
+            }
+        }
+        assertTrue(BlockPos.pack(0, 0, 16) > last);
+        assertTrue(BlockPos.pack(16, 0, 0) > last);
+        assertTrue(BlockPos.pack(-1, 0, 0) < first);
+    }
+
+    @Test
+    public void packsChunkKeys() {
+        assertEquals(StorageSchema.packChunkKey(0, 0), StorageSchema.packChunkKey(15, 15));
+        assertEquals((-1L << 32) | 0xFFFFFFFFL, StorageSchema.packChunkKey(-1, -1));
+        assertEquals((2L << 32) | 3, StorageSchema.packChunkKey(32, 48));
+    }
+}
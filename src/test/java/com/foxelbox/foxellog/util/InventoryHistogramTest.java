@@ -0,0 +1,103 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InventoryHistogramTest {
+    @Test
+    public void diffsContents() {
+        final ItemStack[] before = {
+                new ItemStack(Material.STONE, 64), null, new ItemStack(Material.STONE, 10), new ItemStack(Material.WATER_BUCKET, 1)
+        };
+        final ItemStack[] after = {
+                new ItemStack(Material.STONE, 64), new ItemStack(Material.CHEST, 2), null, new ItemStack(Material.WATER_BUCKET, 1)
+        };
+        final InventoryHistogram histogram = new InventoryHistogram();
+        histogram.addAll(after, 1);
+        histogram.addAll(before, -1);
+
+        assertEquals(-10, histogram.get(Material.STONE.getId()));
+        assertEquals(2, histogram.get(Material.CHEST.getId()));
+        assertEquals(0, histogram.get(Material.WATER_BUCKET.getId()));
+        assertEquals(0, histogram.get(Material.LAVA.getId()));
+        //Types that cancel out are still listed, with 0
+        assertEquals(3, histogram.size());
+    }
+
+    @Test
+    public void mergesDataValues() {
+        final InventoryHistogram histogram = new InventoryHistogram();
+        histogram.addAll(new ItemStack[] {new ItemStack(35, 3, (short) 1), new ItemStack(35, 4, (short) 14)}, 1);
+        assertEquals(1, histogram.size());
+        assertEquals(7, histogram.get(35));
+    }
+
+    @Test
+    public void listsKeysInInsertionOrder() {
+        final InventoryHistogram histogram = new InventoryHistogram(4);
+        final int[] keys = {17, 3, 4000, 0, 256, 5};
+        for (int i = 0; i < keys.length; i++)
+            histogram.add(keys[i], i + 1);
+        histogram.add(3, 10);
+        assertEquals(keys.length, histogram.size());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], histogram.getKeyAt(i));
+            assertEquals((keys[i] == 3) ? 12 : i + 1, histogram.getAmountAt(i));
+        }
+    }
+
+    @Test
+    public void matchesHashMapWhileGrowing() {
+        final Random random = new Random(3);
+        final InventoryHistogram histogram = new InventoryHistogram(4);
+        final Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            final int key = random.nextInt(3000);
+            final int amount = random.nextInt(129) - 64;
+            histogram.add(key, amount);
+            final Integer previous = expected.get(key);
+            expected.put(key, (previous == null) ? amount : previous + amount);
+        }
+        assertEquals(expected.size(), histogram.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet())
+            assertEquals((int) entry.getValue(), histogram.get(entry.getKey()));
+    }
+
+    @Test
+    public void startsOverAfterClear() {
+        final InventoryHistogram histogram = new InventoryHistogram();
+        for (int key = 0; key < 100; key++)
+            histogram.add(key, 1);
+        histogram.clear();
+        assertEquals(0, histogram.size());
+        for (int key = 0; key < 100; key++)
+            assertEquals(0, histogram.get(key));
+        histogram.add(7, 2);
+        assertEquals(1, histogram.size());
+        assertEquals(7, histogram.getKeyAt(0));
+        assertEquals(2, histogram.getAmountAt(0));
+    }
+}
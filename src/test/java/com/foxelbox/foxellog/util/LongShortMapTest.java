@@ -0,0 +1,74 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongShortMapTest {
+    @Test
+    public void matchesHashMap() {
+        final Random random = new Random(2);
+        final LongShortMap map = new LongShortMap();
+        final Map<Long, Short> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            final long key = BlockPos.pack(random.nextInt(2000) - 1000, random.nextInt(256), random.nextInt(2000) - 1000);
+            final short value = (short) random.nextInt(4096);
+            map.put(key, value);
+            expected.put(key, value);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Short> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals((short) entry.getValue(), map.get(entry.getKey(), (short) -1));
+        }
+        final long[] keys = map.keys();
+        Arrays.sort(keys);
+        final long[] expectedKeys = new long[expected.size()];
+        int i = 0;
+        for (long key : expected.keySet())
+            expectedKeys[i++] = key;
+        Arrays.sort(expectedKeys);
+        assertArrayEquals(expectedKeys, keys);
+    }
+
+    @Test
+    public void returnsMissingValueForUnknownKeys() {
+        final LongShortMap map = new LongShortMap(4);
+        map.put(5, (short) 1);
+        assertEquals(-1, map.get(6, (short) -1));
+        assertFalse(map.containsKey(6));
+    }
+
+    @Test
+    public void keepsFirstValueOnPutIfAbsent() {
+        final LongShortMap map = new LongShortMap();
+        assertTrue(map.putIfAbsent(-7, (short) 3));
+        assertFalse(map.putIfAbsent(-7, (short) 4));
+        assertEquals(3, map.get(-7, (short) 0));
+        map.put(-7, (short) 5);
+        assertEquals(5, map.get(-7, (short) 0));
+        assertEquals(1, map.size());
+    }
+}
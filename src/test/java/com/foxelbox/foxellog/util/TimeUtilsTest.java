@@ -0,0 +1,72 @@
+/**
+ * This file is part of FoxelLog.
+ *
+ * FoxelLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FoxelLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FoxelLog.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.foxelbox.foxellog.util;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimeUtilsTest {
+    private static final long NOW = 1403000000000L;
+
+    private static long localTime(int year, int month, int day, int hour, int minute, int second) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void parsesRelativeUnits() {
+        assertEquals(NOW - TimeUnit.SECONDS.toMillis(45), TimeUtils.parseTime("45s", NOW));
+        assertEquals(NOW - TimeUnit.MINUTES.toMillis(30), TimeUtils.parseTime("30m", NOW));
+        assertEquals(NOW - TimeUnit.HOURS.toMillis(2), TimeUtils.parseTime("2h", NOW));
+        assertEquals(NOW - TimeUnit.DAYS.toMillis(3), TimeUtils.parseTime("3d", NOW));
+        assertEquals(NOW - TimeUnit.DAYS.toMillis(14), TimeUtils.parseTime("2w", NOW));
+    }
+
+    @Test
+    public void addsUpRelativeParts() {
+        assertEquals(NOW - TimeUnit.DAYS.toMillis(1) - TimeUnit.HOURS.toMillis(12), TimeUtils.parseTime("1d12h", NOW));
+        assertEquals(NOW - TimeUnit.HOURS.toMillis(1) - TimeUnit.MINUTES.toMillis(90), TimeUtils.parseTime("1h90m", NOW));
+        assertEquals(NOW - TimeUnit.HOURS.toMillis(2), TimeUtils.parseTime("2H", NOW));
+        assertEquals(NOW, TimeUtils.parseTime("0s", NOW));
+    }
+
+    @Test
+    public void parsesAbsoluteLocalTimes() {
+        assertEquals(localTime(2014, 6, 16, 0, 0, 0), TimeUtils.parseTime("2014-06-16", NOW));
+        assertEquals(localTime(2014, 6, 16, 18, 30, 0), TimeUtils.parseTime("2014-06-16T18:30", NOW));
+        assertEquals(localTime(2014, 6, 16, 18, 30, 15), TimeUtils.parseTime("2014-06-16T18:30:15", NOW));
+    }
+
+    @Test
+    public void refusesMalformedTimes() {
+        final String[] values = { "", "h", "2", "2x", "2h foo", "h2", "2h 3m", "-2h", "2014-13-01", "2014-06-16T25:00", "2014-06-16T18:30Z", "yesterday" };
+        for (String value : values) {
+            try {
+                TimeUtils.parseTime(value, NOW);
+                fail("Parsed " + value);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(value));
+            }
+        }
+    }
+}